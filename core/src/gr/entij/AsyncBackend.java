@@ -0,0 +1,107 @@
+package gr.entij;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The executors that run the asynchronous work of entities, i.e.
+ * {@link Entity#asyncReact} and {@link Entity#asyncExecute}; see
+ * {@link Entity#setAsyncBackend}. <p>
+ * Whatever the backend, the work of an entity is queued in a mailbox of the
+ * entity and performed one task at a time; the executor only decides on
+ * which threads the mailboxes are drained. An executor is created when
+ * asynchronous work is first submitted and shut down by
+ * {@link Entity#asyncShutdownLater()}, by {@link Entity#asyncShutdownNow()}
+ * or when the backend is replaced.
+ * <ul>
+ * <li>{@link #pooled()}, the default, drains the mailboxes on a fixed number
+ * of platform threads; best for logics that do not block.</li>
+ * <li>{@link #virtualThreads()} drains each mailbox on a virtual thread, so
+ * logics that block, e.g. on file loads or on the future of another entity,
+ * do not hold a platform thread while blocked. It needs a JDK with virtual
+ * threads (21 or later).</li>
+ * </ul>
+ */
+@FunctionalInterface
+public interface AsyncBackend {
+
+    /**
+     * Creates the executor that drains the mailboxes of the entities.
+     * @return a new executor
+     */
+    ExecutorService newExecutor();
+
+    /**
+     * Returns a backend of work-stealing pools with one thread per available
+     * processor.
+     * @return a pooled backend
+     */
+    static AsyncBackend pooled() {
+        return pooled(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Returns a backend of work-stealing pools with the given number of
+     * threads. The threads are not daemon threads.
+     * @param parallelism the number of threads of each pool
+     * @return a pooled backend
+     * @throws IllegalArgumentException if {@code parallelism} is less than 1
+     */
+    static AsyncBackend pooled(int parallelism) throws IllegalArgumentException {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be >= 1; found: "+parallelism);
+        return () -> {
+            AtomicInteger count = new AtomicInteger();
+            return new ForkJoinPool(parallelism, pool -> {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setName("entij-async-"+count.incrementAndGet());
+                t.setDaemon(false);
+                return t;
+            }, null, true);
+        };
+    }
+
+    /**
+     * Returns a backend that starts a virtual thread per scheduled mailbox.
+     * @return a virtual thread backend
+     * @throws UnsupportedOperationException if the JDK has no virtual threads
+     */
+    static AsyncBackend virtualThreads() throws UnsupportedOperationException {
+        Method factory;
+        try {
+            // looked up reflectively to keep compiling for older JDKs
+            factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ((ExecutorService) factory.invoke(null)).shutdown();
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new UnsupportedOperationException("virtual threads are not supported by this JDK", ex);
+        } catch (InvocationTargetException ex) {
+            // e.g. virtual threads in preview and preview features disabled
+            throw new UnsupportedOperationException("virtual threads are not enabled", ex.getCause());
+        }
+        return () -> {
+            try {
+                return (ExecutorService) factory.invoke(null);
+            } catch (IllegalAccessException | InvocationTargetException ex) {
+                throw new IllegalStateException("cannot create a virtual thread executor", ex);
+            }
+        };
+    }
+
+    /**
+     * Returns whether {@link #virtualThreads()} is supported by this JDK.
+     * @return {@code true} if virtual threads are available
+     */
+    static boolean virtualThreadsSupported() {
+        try {
+            virtualThreads();
+            return true;
+        } catch (UnsupportedOperationException ex) {
+            return false;
+        }
+    }
+}
@@ -1,81 +1,151 @@
 package gr.entij;
 
+import java.util.Queue;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
-
+/**
+ * Scheduler of {@link Entity#asyncReact} and {@link Entity#asyncExecute}. <p>
+ * Each entity with pending asynchronous work has an {@link AsyncEntry}: a
+ * mailbox of tasks that is drained by a shared executor, created by the
+ * {@link AsyncBackend}, one task at a time, so an entity never performs two
+ * tasks at once whatever the threads of the executor. An entry yields its
+ * thread after {@link #BATCH} tasks, so busy entities do not starve the
+ * others. When its mailbox is empty, the entry is released by the entity and
+ * becomes garbage; idle entities hold no entry. <p>
+ * {@link #shutdownLater()} shuts the executor down once the work submitted
+ * so far is done; later work starts a new executor.
+ */
 class AsyncEntryPool {
-    
-    public class AsyncEntry {
-        private AsyncEntry next;
-        // *Single* Thread Executor
-        private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
-                                        0L, TimeUnit.MILLISECONDS,
-                                        new LinkedBlockingQueue<>());
-
-        public synchronized <T> Future<T> sumbitCode(Entity target, Function<? super Entity, T> code)
+
+    /** Maximum number of tasks an entry performs before yielding its worker. */
+    static final int BATCH = 64;
+
+    public class AsyncEntry implements Runnable {
+        private final Entity target;
+        private final Queue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+        /** Whether this entry is queued in or run by the pool; guarded by the target. */
+        private boolean scheduled;
+
+        AsyncEntry(Entity target) {
+            this.target = target;
+        }
+
+        /**
+         * Queues the given code; the caller must hold the lock of the target.
+         */
+        public <T> Future<T> sumbitCode(Function<? super Entity, T> code)
                 throws IllegalStateException {
             if (isShutdown)
                 throw new IllegalStateException("AsyncEntryPool has been shutdown and cannot accept new submissions");
-            return executor.submit(() -> {
-                try {
-                    return code.apply(target);
-                } finally {
-                    // synchronized again because we are in another thread
-                    synchronized (AsyncEntry.this) {
-                        if (executor.getQueue().isEmpty()) {
-                            target.signalAsyncQueueEmpty(); // assume that it does not throw an exception
-                            if (isShutdownLater) {
-                                executor.shutdown();
-                            }
-                        }
-                        if (isShutdown) {
-                            executor.shutdown();
-                        }
-                    }
-                }
-            });
+            FutureTask<T> task = new FutureTask<>(() -> code.apply(target));
+            mailbox.add(task);
+            if (!scheduled) {
+                scheduled = true;
+                active.incrementAndGet();
+                schedule(this);
+            }
+            return task;
         }
 
-        public synchronized Future<Reaction> submitAction(Entity target, Object input)
-                throws IllegalStateException {
-            return sumbitCode(target, (t) -> {
+        public Future<Reaction> submitAction(Object input) throws IllegalStateException {
+            return sumbitCode((t) -> {
                 return t.react(input);
             });
         }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < BATCH; ) {
+                Runnable task = mailbox.poll();
+                if (task != null) {
+                    task.run();
+                    i++;
+                    continue;
+                }
+                // tasks are queued with the lock of the target held
+                synchronized (target) {
+                    if (mailbox.isEmpty()) {
+                        scheduled = false;
+                        target.signalAsyncQueueEmpty(); // assume that it does not throw an exception
+                    }
+                }
+                if (!scheduled) {
+                    released();
+                    return;
+                }
+            }
+            schedule(this);
+        }
     }
 
-    private AsyncEntry head;
-    private boolean isShutdown;
-    private boolean isShutdownLater;
-
-    public synchronized AsyncEntry get() {
-        if (head == null) {
-            return new AsyncEntry();
-        } else {
-            AsyncEntry result = head;
-            head = head.next;
-            return result;
+    private final AtomicInteger active = new AtomicInteger();
+    private volatile AsyncBackend backend = AsyncBackend.pooled();
+    private volatile ExecutorService executor;
+    private volatile boolean isShutdown;
+    private volatile boolean isShutdownLater;
+
+    public AsyncEntry get(Entity target) {
+        return new AsyncEntry(target);
+    }
+
+    private void schedule(AsyncEntry entry) {
+        ExecutorService e = executor;
+        if (e != null) {
+            try {
+                e.execute(entry);
+                return;
+            } catch (RejectedExecutionException ex) {
+                // shut down meanwhile; start a new executor
+            }
+        }
+        synchronized (this) {
+            e = executor;
+            if (e == null || e.isShutdown()) {
+                e = executor = backend.newExecutor();
+            }
+            e.execute(entry);
         }
     }
 
-    public synchronized void putBack(AsyncEntry entry) {
-        if (!entry.executor.isShutdown()) {
-            entry.next = head;
-            head = entry;
+    private void released() {
+        if (active.decrementAndGet() == 0 && isShutdownLater) {
+            synchronized (this) {
+                if (active.get() == 0 && executor != null) {
+                    executor.shutdown();
+                    executor = null;
+                }
+            }
         }
     }
 
+    /**
+     * Replaces the backend; the current executor, if any, is shut down and
+     * the entries it runs move to a new executor when they yield.
+     */
+    public synchronized void setBackend(AsyncBackend backend) {
+        this.backend = backend;
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    public AsyncBackend getBackend() {
+        return backend;
+    }
+
     public synchronized void shutdownNow() {
         isShutdown = true;
         shutdownLater();
     }
-    
+
     public synchronized void shutdownLater() {
         isShutdownLater = true;
-        for (AsyncEntry entry = head; entry != null; entry = entry.next) {
-            entry.executor.shutdown();
+        if (active.get() == 0 && executor != null) {
+            executor.shutdown();
+            executor = null;
         }
-        head = null;
     }
 }
@@ -0,0 +1,396 @@
+package gr.entij;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Executes chain reactions iteratively, from an explicit queue. <p>
+ * Normally, {@link Entity#react} performs the follow-up moves of a
+ * {@link Reaction} ({@link Reaction#andThenMove andThenMove}) by recursively
+ * calling {@code react} on their targets, so a long chain (a fuse, a
+ * conveyor belt, an explosion spreading over thousands of entities) uses
+ * stack proportional to its length and may overflow it. While a cascade
+ * {@linkplain #run runs} on a thread, the follow-up moves of all the
+ * reactions performed on that thread are appended to the queue of the
+ * cascade instead, and are performed one after the other, in
+ * {@linkplain Order#BREADTH_FIRST breadth first} or
+ * {@linkplain Order#DEPTH_FIRST depth first} order. <p>
+ * A cascade may also limit the depth of the chain and the number of times a
+ * single entity is moved during a run, which stops cycles, and may
+ * {@linkplain #batchPerEntity(boolean) batch} the moves of each entity.
+ * Moves beyond these limits are dropped and counted by
+ * {@link #droppedCount()}. <p>
+ * Usage:
+ * <pre>{@code
+ * Cascade cascade = new Cascade(Cascade.Order.BREADTH_FIRST).maxVisitsPerEntity(1);
+ * cascade.run(bomb, EXPLODE);
+ * }</pre>
+ * A cascade must be used by one thread at a time; it may be reused.
+ * @see Reaction#andThenMove(Entity, Object)
+ */
+public final class Cascade {
+
+    /**
+     * The order in which the follow-up moves are performed.
+     */
+    public static enum Order {
+        /**
+         * All the moves of a depth are performed before the moves they
+         * cause.
+         */
+        BREADTH_FIRST,
+        /**
+         * The moves caused by a move are performed before the remaining
+         * moves of its depth, as by recursive calls, but without using the
+         * stack.
+         */
+        DEPTH_FIRST
+    }
+
+    private static final ThreadLocal<Cascade> CURRENT = new ThreadLocal<>();
+    /** Number of running cascades on all threads; avoids the thread local lookup. */
+    private static volatile int runningCount;
+
+    private final Order order;
+    private int maxDepth = Integer.MAX_VALUE;
+    private int maxVisits = Integer.MAX_VALUE;
+    private boolean batching;
+
+    // circular queue of moves
+    private Entity[] targets = new Entity[16];
+    private Object[] inputs = new Object[16];
+    private int[] depths = new int[16];
+    private int head;
+    private int size;
+
+    private boolean running;
+    private Cascade previous;
+    /** The depth of the move being performed. */
+    private int depth;
+    private Map<Entity, int[]> visits;
+    private int performed;
+    private int dropped;
+
+    /**
+     * Creates a cascade with the given order, without limits and batching.
+     * @param order the order in which follow-up moves are performed
+     * @throws NullPointerException if {@code order} is {@code null}
+     */
+    public Cascade(Order order) throws NullPointerException {
+        this.order = Objects.requireNonNull(order, "order cannot be null");
+    }
+
+    /**
+     * Sets the maximum depth of the chain; the initial move has depth 0 and
+     * the moves it causes depth 1. Deeper moves are dropped.
+     * @param maxDepth the maximum depth
+     * @return this cascade
+     * @throws IllegalArgumentException if {@code maxDepth} is negative
+     */
+    public Cascade maxDepth(int maxDepth) throws IllegalArgumentException {
+        if (maxDepth < 0)
+            throw new IllegalArgumentException("maxDepth must be >= 0; found: "+maxDepth);
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of moves an entity performs during a run;
+     * further moves targeting it are dropped. A limit of 1 performs each
+     * entity's first move only, which breaks any cycle.
+     * @param maxVisits the maximum number of moves per entity
+     * @return this cascade
+     * @throws IllegalArgumentException if {@code maxVisits} is less than 1
+     */
+    public Cascade maxVisitsPerEntity(int maxVisits) throws IllegalArgumentException {
+        if (maxVisits < 1)
+            throw new IllegalArgumentException("maxVisits must be >= 1; found: "+maxVisits);
+        this.maxVisits = maxVisits;
+        return this;
+    }
+
+    /**
+     * Enables or disables batching of moves per entity. When enabled, the
+     * moves of the same depth that target the same entity (in depth first
+     * order, consecutive moves that target the same entity) are performed
+     * together in one {@link Entity#batch batch}, so its listeners are
+     * notified once for all of them. Disabled by default.
+     * @param batching whether to batch the moves of each entity
+     * @return this cascade
+     */
+    public Cascade batchPerEntity(boolean batching) {
+        this.batching = batching;
+        return this;
+    }
+
+    /**
+     * Makes the given entity react to the given input and performs the whole
+     * chain of moves that follows.
+     * @param target the entity to react
+     * @param input the input to react to
+     * @return the reaction of {@code target} that consumed the input or
+     * {@code null}, as returned by {@link Entity#react}
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalStateException if this cascade is already running
+     */
+    public Reaction run(Entity target, Object input)
+            throws NullPointerException, IllegalStateException {
+        Objects.requireNonNull(target, "target cannot be null");
+        Objects.requireNonNull(input, "input cannot be null");
+        if (running)
+            throw new IllegalStateException("cascade is already running");
+        running = true;
+        previous = CURRENT.get();
+        CURRENT.set(this);
+        synchronized (Cascade.class) {
+            runningCount++;
+        }
+        performed = 0;
+        dropped = 0;
+        if (maxVisits != Integer.MAX_VALUE) {
+            visits = new IdentityHashMap<>();
+        }
+        try {
+            depth = 0;
+            Reaction result = null;
+            if (visit(target)) {
+                int mark = size;
+                result = target.react(input);
+                performed++;
+                if (order == Order.DEPTH_FIRST) {
+                    reverseFrom(mark);
+                }
+            }
+            drain();
+            return result;
+        } finally {
+            Arrays.fill(targets, null);
+            Arrays.fill(inputs, null);
+            head = 0;
+            size = 0;
+            visits = null;
+            running = false;
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+            previous = null;
+            synchronized (Cascade.class) {
+                runningCount--;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of moves performed by the last run, including the
+     * initial one.
+     * @return the number of moves performed by the last run
+     */
+    public int performedCount() {
+        return performed;
+    }
+
+    /**
+     * Returns the number of moves dropped by the last run because of the
+     * depth or visit limits.
+     * @return the number of moves dropped by the last run
+     */
+    public int droppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Returns the cascade running on the current thread or {@code null}.
+     */
+    static Cascade current() {
+        return runningCount == 0 ? null : CURRENT.get();
+    }
+
+    /**
+     * Appends a follow-up move of the move being performed.
+     */
+    void enqueue(Entity target, Object input) {
+        if (depth >= maxDepth) {
+            dropped++;
+            return;
+        }
+        if (size == targets.length) {
+            grow();
+        }
+        int i = (head + size++) & (targets.length - 1);
+        targets[i] = target;
+        inputs[i] = input;
+        depths[i] = depth + 1;
+    }
+
+    private void drain() {
+        while (size > 0) {
+            if (order == Order.BREADTH_FIRST) {
+                if (batching) {
+                    performLevel();
+                } else {
+                    int i = head;
+                    Entity target = targets[i];
+                    Object input = inputs[i];
+                    int d = depths[i];
+                    targets[i] = null;
+                    inputs[i] = null;
+                    head = (head + 1) & (targets.length - 1);
+                    size--;
+                    perform(target, input, d);
+                }
+            } else {
+                int i = (head + size - 1) & (targets.length - 1);
+                Entity target = targets[i];
+                int count = 1;
+                while (batching && count < size
+                        && targets[(i - count) & (targets.length - 1)] == target) {
+                    count++;
+                }
+                if (count == 1) {
+                    Object input = inputs[i];
+                    int d = depths[i];
+                    targets[i] = null;
+                    inputs[i] = null;
+                    size--;
+                    perform(target, input, d);
+                } else {
+                    Object[] groupInputs = new Object[count];
+                    int[] groupDepths = new int[count];
+                    for (int k = 0; k < count; k++) {
+                        int j = (i - k) & (targets.length - 1);
+                        groupInputs[k] = inputs[j];
+                        groupDepths[k] = depths[j];
+                        targets[j] = null;
+                        inputs[j] = null;
+                    }
+                    size -= count;
+                    final int n = count;
+                    target.batch(t -> {
+                        for (int k = 0; k < n; k++) {
+                            perform(target, groupInputs[k], groupDepths[k]);
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * Performs all the moves of the depth at the head of the queue, the moves
+     * of each target in one batch.
+     */
+    private void performLevel() {
+        int mask = targets.length - 1;
+        int d = depths[head];
+        int count = 0;
+        while (count < size && depths[(head + count) & mask] == d) {
+            count++;
+        }
+        Entity[] levelTargets = new Entity[count];
+        Object[] levelInputs = new Object[count];
+        for (int k = 0; k < count; k++) {
+            int j = (head + k) & mask;
+            levelTargets[k] = targets[j];
+            levelInputs[k] = inputs[j];
+            targets[j] = null;
+            inputs[j] = null;
+        }
+        head = (head + count) & mask;
+        size -= count;
+
+        // group the moves by target, in order of first appearance
+        Map<Entity, int[]> groups = new IdentityHashMap<>();
+        int[] next = new int[count];
+        for (int k = count - 1; k >= 0; k--) {
+            int[] first = groups.get(levelTargets[k]);
+            if (first == null) {
+                groups.put(levelTargets[k], new int[] {k});
+                next[k] = -1;
+            } else {
+                next[k] = first[0];
+                first[0] = k;
+            }
+        }
+        for (int k = 0; k < count; k++) {
+            Entity target = levelTargets[k];
+            int[] first = groups.get(target);
+            if (first == null || first[0] != k) continue;
+            groups.remove(target);
+            if (next[k] < 0) {
+                perform(target, levelInputs[k], d);
+            } else {
+                final int start = k;
+                target.batch(t -> {
+                    for (int m = start; m >= 0; m = next[m]) {
+                        perform(target, levelInputs[m], d);
+                    }
+                });
+            }
+        }
+    }
+
+    private void perform(Entity target, Object input, int d) {
+        if (!visit(target)) return;
+        depth = d;
+        int mark = size;
+        target.react(input);
+        performed++;
+        if (order == Order.DEPTH_FIRST) {
+            reverseFrom(mark);
+        }
+    }
+
+    /**
+     * Counts a visit to the given entity; returns {@code false} if the
+     * entity has reached the visit limit and the move is dropped.
+     */
+    private boolean visit(Entity target) {
+        if (visits == null) return true;
+        int[] count = visits.get(target);
+        if (count == null) {
+            visits.put(target, new int[] {1});
+            return true;
+        }
+        if (count[0] >= maxVisits) {
+            dropped++;
+            return false;
+        }
+        count[0]++;
+        return true;
+    }
+
+    /**
+     * Reverses the moves appended after the first {@code mark} ones, so that
+     * the first follow-up of a move is at the tail of the queue.
+     */
+    private void reverseFrom(int mark) {
+        int mask = targets.length - 1;
+        for (int a = mark, b = size - 1; a < b; a++, b--) {
+            int i = (head + a) & mask, j = (head + b) & mask;
+            Entity t = targets[i]; targets[i] = targets[j]; targets[j] = t;
+            Object in = inputs[i]; inputs[i] = inputs[j]; inputs[j] = in;
+            int dp = depths[i]; depths[i] = depths[j]; depths[j] = dp;
+        }
+    }
+
+    private void grow() {
+        int n = targets.length;
+        Entity[] newTargets = new Entity[n * 2];
+        Object[] newInputs = new Object[n * 2];
+        int[] newDepths = new int[n * 2];
+        for (int k = 0; k < size; k++) {
+            int i = (head + k) & (n - 1);
+            newTargets[k] = targets[i];
+            newInputs[k] = inputs[i];
+            newDepths[k] = depths[i];
+        }
+        targets = newTargets;
+        inputs = newInputs;
+        depths = newDepths;
+        head = 0;
+    }
+}
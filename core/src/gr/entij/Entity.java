@@ -3,10 +3,15 @@ import gr.entij.AsyncEntryPool.AsyncEntry;
 import gr.entij.event.*;
 
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import static gr.entij.event.EntityEvent.Type;
+import gr.entij.function_records.EmptyFunctionRecord;
 import gr.entij.function_records.HashFunctionRecord;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.StampedLock;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
@@ -19,7 +24,9 @@ import java.util.function.Predicate;
  *   <li>A collection of arbitrary properties (name-value fields).</li>
  * </ul>
  * Entities, also, provide the ability to monitor changes to any of the above properties
- * (except for the name which does not change) by adding appropriate listeners. <p>
+ * (except for the name which does not change) by adding appropriate listeners.
+ * Listeners may be added and removed from any thread, even while events are
+ * being fired. <p>
  * Finally, an entity can have its own {@linkplain Logic logic} that defines its
  * behavior upon the acceptance of different inputs (see {@link Entity#react}).
  */
@@ -41,6 +48,19 @@ public class Entity {
         
     }
     
+    /**
+     * Listener of posit or state changes that is only notified of the changes
+     * matching its transition; see {@link Listeners#wants(Predicate[], long, long)}.
+     */
+    static final class TransitionListener<T> extends RemovableListener<T> {
+        final Transition transition;
+
+        TransitionListener(Transition transition, Consumer<T> action) {
+            super(action);
+            this.transition = transition;
+        }
+    }
+    
     static class Node<T> {
         T data;
         Node<T> next;
@@ -49,39 +69,107 @@ public class Entity {
             this.data = data;
             this.next = next;
         }
+    }
+    
+    /**
+     * The fields most entities never use, kept out of the entity itself to
+     * keep plain entities small; allocated on first use by {@link #extras()}.
+     */
+    static final class Extras {
+        // copy-on-write listener lists; see Listeners
+        volatile Predicate<?>[] positListeners;
+        volatile Predicate<?>[] stateListeners;
+        volatile Predicate<?>[] propertyListeners;
+        /** Property listeners of a single property, by {@link PropertyKey#index()}. */
+        volatile Listeners.Keyed keyedPropertyListeners;
+        volatile Predicate<?>[] entityListeners;
         
-        void destroy() {
-            data = null;
-            next = null;
-        }
+        AsyncEntry asyncEntry;
+        List<Entity> children;
         
-        void ensureNotDestoyed() throws ConcurrentModificationException {
-            if (data == null) {
-                throw new ConcurrentModificationException();
-            }
-        }
+        static final AtomicReferenceFieldUpdater<Extras, Predicate<?>[]> POSIT_LISTENERS
+                = Listeners.typed(AtomicReferenceFieldUpdater.newUpdater(Extras.class, Predicate[].class, "positListeners"));
+        static final AtomicReferenceFieldUpdater<Extras, Predicate<?>[]> STATE_LISTENERS
+                = Listeners.typed(AtomicReferenceFieldUpdater.newUpdater(Extras.class, Predicate[].class, "stateListeners"));
+        static final AtomicReferenceFieldUpdater<Extras, Predicate<?>[]> PROPERTY_LISTENERS
+                = Listeners.typed(AtomicReferenceFieldUpdater.newUpdater(Extras.class, Predicate[].class, "propertyListeners"));
+        static final AtomicReferenceFieldUpdater<Extras, Listeners.Keyed> KEYED_PROPERTY_LISTENERS
+                = AtomicReferenceFieldUpdater.newUpdater(Extras.class, Listeners.Keyed.class, "keyedPropertyListeners");
+        static final AtomicReferenceFieldUpdater<Extras, Predicate<?>[]> ENTITY_LISTENERS
+                = Listeners.typed(AtomicReferenceFieldUpdater.newUpdater(Extras.class, Predicate[].class, "entityListeners"));
     }
     
     private final String name;
     private long posit;
     private long state;
     
+    /** The registry that assigned the id of this entity or {@code null}. */
+    private EntityRegistry registry;
+    private int id = -1;
+    /**
+     * The store that holds the posit and state or {@code null}; if not
+     * {@code null}, it is also the registry.
+     */
+    private EntityStore store;
+    private static volatile EntityRegistry defaultRegistry;
+    
+    /**
+     * Guards posit, state, properties and pending changes or {@code null} if
+     * this entity is not thread-safe; see {@link #setThreadSafe}.
+     */
+    private StampedLock lock;
+    /** Locks shared by the thread-safe entities; a power of two. */
+    private static final StampedLock[] STRIPES = new StampedLock[
+            Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 8 - 1) << 1];
+    static {
+        for (int i = 0; i < STRIPES.length; i++) {
+            STRIPES[i] = new StampedLock();
+        }
+    }
+    
     private Node<Logic> logics;
-    private Node<Predicate<? super PositEvent>> positListeners; 
-    private Node<Predicate<? super StateEvent>> stateListeners ;
-    private Node<Predicate<? super PropertyEvent>> propertyListeners;
-    private Node<Predicate<? super EntityEvent>> entityListeners;
+    
+    /**
+     * The rarely used fields of this entity or {@code null} if none of them
+     * has been set; never reset to {@code null} once allocated.
+     */
+    private volatile Extras extras;
+    private static final AtomicReferenceFieldUpdater<Entity, Extras> EXTRAS
+            = AtomicReferenceFieldUpdater.newUpdater(Entity.class, Extras.class, "extras");
+    
+    private static volatile boolean reuseEvents;
+    static volatile EventBus eventBus;
+    private static volatile ReactionRecorder recorder;
+    
+    /** Changes whose events are held back or {@code null}; see #batch. */
+    private PendingChanges pending;
     
     static AsyncEntryPool pool = new AsyncEntryPool();
-    AsyncEntry asyncEntry;
     
     /**
-     * List used to store the child-entities.
-     * The meaning of this list is up to the application.
+     * The {@linkplain PropertyKey#index() key indices} of the properties of
+     * this entity, ascending, in the first {@link #propCount} elements; the
+     * arrays below have the same slots.
+     */
+    private int[] propKeys;
+    private int propCount;
+    /**
+     * Property values by slot; a {@code null} slot is an absent property and
+     * {@link #NULL_VALUE} a {@code null} value.
+     */
+    private Object[] propValues;
+    /**
+     * Unboxed values of the slots tagged {@link #LONG_VALUE} or
+     * {@link #DOUBLE_VALUE} (raw bits) or {@code null}.
      */
-    public List<Entity> children = null;
-    private Map<String, Object> properties;
-    private FunctionRecord functionRecord = new HashFunctionRecord();
+    private long[] propPrims;
+    private static final Object NULL_VALUE = new Object();
+    private static final Object LONG_VALUE = new Object();
+    private static final Object DOUBLE_VALUE = new Object();
+    /** {@link EmptyFunctionRecord#INSTANCE} until a function record is set. */
+    private volatile FunctionRecord functionRecord = EmptyFunctionRecord.INSTANCE;
+    private static final AtomicReferenceFieldUpdater<Entity, FunctionRecord> FUNCTION_RECORD
+            = AtomicReferenceFieldUpdater.newUpdater(Entity.class, FunctionRecord.class, "functionRecord");
     
     /**
      * Creates an {@code Entity} with {@code null} as name and 0 as posit
@@ -89,6 +177,7 @@ public class Entity {
      */
     public Entity() {
         name = null;
+        registerDefault();
     }
     
     /**
@@ -98,6 +187,7 @@ public class Entity {
      */
     public Entity(String name) {
         this.name = name;
+        registerDefault();
     }
 
     /**
@@ -110,6 +200,33 @@ public class Entity {
         this.name = name;
         this.posit = posit;
         this.state = state;
+        registerDefault();
+    }
+    
+    /**
+     * Creates an {@code Entity} whose position and state are held by the
+     * given {@link EntityStore} instead of by the entity itself.
+     * @param store the store that will hold the position and state
+     * @param name the name of the new entity
+     * @param posit the initial posit of the new entity
+     * @param state the initial state of the new entity
+     * @throws NullPointerException if {@code store} is {@code null}
+     * @see EntityStore
+     */
+    public Entity(EntityStore store, String name, long posit, long state)
+            throws NullPointerException {
+        Objects.requireNonNull(store, "store cannot be null");
+        this.name = name;
+        this.store = store;
+        this.registry = store;
+        this.id = store.allocate(this, posit, state);
+    }
+    
+    private void registerDefault() {
+        EntityRegistry r = defaultRegistry;
+        if (r != null) {
+            attach(r);
+        }
     }
 
     /**
@@ -119,8 +236,220 @@ public class Entity {
      * @see #addEntityListener
      */
     public void destroy() {
-        EntityEvent destroyEvent = new EntityEvent(this, EntityEvent.Type.DESTROYED);
-        entityListeners = fireEvent(entityListeners, destroyEvent);
+        EventBus bus = eventBus;
+        if (bus != null) {
+            bus.publishLifecycle(this, EntityEvent.Type.DESTROYED);
+        }
+        Extras x = extras;
+        if (x != null) {
+            EntityEvent destroyEvent = new EntityEvent(this, EntityEvent.Type.DESTROYED);
+            Listeners.fire(Extras.ENTITY_LISTENERS, x, destroyEvent);
+        }
+        long stamp = writeLock();
+        try {
+            if (store != null) {
+                posit = store.posit(id);
+                state = store.state(id);
+                store = null;
+            }
+            if (registry != null) {
+                registry.release(id);
+                registry = null;
+                id = -1;
+            }
+        } finally {
+            unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * Returns the id of this entity in its {@linkplain #getRegistry()
+     * registry} or -1 if it is not registered. The id is released when this
+     * entity is destroyed.
+     * @return the id of this entity or -1
+     * @see EntityRegistry
+     */
+    public int getId() {
+        return id;
+    }
+    
+    /**
+     * Returns the {@link EntityRegistry} that assigned the id of this entity
+     * or {@code null} if it is not registered.
+     * @return the registry of this entity or {@code null}
+     */
+    public EntityRegistry getRegistry() {
+        return registry;
+    }
+    
+    /**
+     * Registers this entity in the given registry; if it is a store, moves
+     * the posit and state into it. The check for an existing registration
+     * is made under the write lock, so concurrent registrations of a
+     * thread-safe entity cannot both succeed.
+     * @return the id of this entity
+     * @throws IllegalStateException if this entity is already registered
+     */
+    int attach(EntityRegistry r) throws IllegalStateException {
+        long stamp = writeLock();
+        try {
+            if (registry != null)
+                throw new IllegalStateException("entity is already registered with id "+id);
+            if (r instanceof EntityStore) {
+                EntityStore s = (EntityStore) r;
+                id = s.allocate(this, posit, state);
+                store = s;
+            } else {
+                id = r.allocate(this);
+            }
+            registry = r;
+            return id;
+        } finally {
+            unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * Installs the given {@link EntityRegistry}; from now on every new entity
+     * is registered in it and gets an {@linkplain #getId() id}. Entities held
+     * by an {@link EntityStore} are registered in their store instead.
+     * {@code null} uninstalls the current registry.
+     * @param registry the registry to install or {@code null}
+     * @see EntityRegistry#register(Entity)
+     */
+    public static void setDefaultRegistry(EntityRegistry registry) {
+        defaultRegistry = registry;
+    }
+    
+    /**
+     * Returns the installed default {@link EntityRegistry} or {@code null}.
+     * @return the installed default {@link EntityRegistry} or {@code null}
+     */
+    public static EntityRegistry getDefaultRegistry() {
+        return defaultRegistry;
+    }
+    
+    /**
+     * Returns the {@link EntityStore} that holds the position and state of
+     * this entity or {@code null} if they are held by the entity itself.
+     * @return the store of this entity or {@code null}
+     */
+    public EntityStore getStore() {
+        return store;
+    }
+    
+    /**
+     * Returns the handle of this entity in its {@linkplain #getStore() store}
+     * or -1 if this entity is not held by a store.
+     * @return the handle of this entity in its store or -1
+     */
+    public int getStoreHandle() {
+        return store != null ? id : -1;
+    }
+    
+    /**
+     * Enables or disables the thread-safe mode of this entity. <p>
+     * In thread-safe mode, the posit, state and properties of this entity may
+     * be read and changed by several threads at once, e.g. by asynchronous
+     * reactions and a render thread. Changes are guarded by a lock, shared
+     * with a few other entities; reads do not block, they are validated and
+     * retried under the lock only if a change happened meanwhile. <p>
+     * Listeners are notified on the thread that made the change and outside
+     * the lock, so the events of concurrent changes may arrive in any order;
+     * a listener may always read the current values from the source. <p>
+     * The mode should be set before the entity is shared between threads.
+     * Disabled by default.
+     * @param threadSafe whether this entity is thread-safe
+     * @see Terrain
+     */
+    public void setThreadSafe(boolean threadSafe) {
+        lock = threadSafe ? STRIPES[System.identityHashCode(this) & (STRIPES.length - 1)] : null;
+    }
+    
+    /**
+     * Returns {@code true} if this entity is thread-safe.
+     * @return {@code true} if this entity is thread-safe
+     * @see #setThreadSafe(boolean)
+     */
+    public boolean isThreadSafe() {
+        return lock != null;
+    }
+    
+    /**
+     * Acquires the write lock of this entity if it is thread-safe.
+     * @return the stamp to pass to {@link #unlockWrite} or 0
+     */
+    private long writeLock() {
+        StampedLock l = lock;
+        return l == null ? 0 : l.writeLock();
+    }
+    
+    private void unlockWrite(long stamp) {
+        if (stamp != 0) {
+            lock.unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * Enables or disables the reuse of {@link PositEvent}, {@link StateEvent}
+     * and {@link PrimitivePropertyEvent} objects for all entities. <p>
+     * When enabled, these events are taken from the
+     * {@linkplain EventPool pool} of the dispatching thread and are valid only
+     * while the listener is running. Listeners that keep an event after they
+     * return must keep {@link Event#retain() event.retain()} instead. <p>
+     * Regardless of this setting, no event is created if the entity has no
+     * listener for it. Disabled by default.
+     * @param reuse whether to reuse events
+     * @see EventPool
+     */
+    public static void setEventReuse(boolean reuse) {
+        reuseEvents = reuse;
+    }
+    
+    /**
+     * Installs the given {@link EventBus}; from now on all entities publish
+     * their changes to it. {@code null} uninstalls the current bus.
+     * @param bus the bus to install or {@code null}
+     * @see EventBus
+     */
+    public static void setEventBus(EventBus bus) {
+        eventBus = bus;
+    }
+    
+    /**
+     * Returns the installed {@link EventBus} or {@code null}.
+     * @return the installed {@link EventBus} or {@code null}
+     */
+    public static EventBus getEventBus() {
+        return eventBus;
+    }
+    
+    /**
+     * Installs the given {@link ReactionRecorder}; from now on every reaction
+     * performed by {@link #react} (and so by {@link #asyncReact}) is passed to
+     * it before being applied. {@code null} uninstalls the current recorder.
+     * @param reactionRecorder the recorder to install or {@code null}
+     * @see gr.entij.snapshot.ReactionJournal
+     */
+    public static void setReactionRecorder(ReactionRecorder reactionRecorder) {
+        recorder = reactionRecorder;
+    }
+    
+    /**
+     * Returns the installed {@link ReactionRecorder} or {@code null}.
+     * @return the installed {@link ReactionRecorder} or {@code null}
+     */
+    public static ReactionRecorder getReactionRecorder() {
+        return recorder;
+    }
+    
+    /**
+     * Returns {@code true} if events are reused.
+     * @return {@code true} if events are reused
+     * @see #setEventReuse(boolean)
+     */
+    public static boolean isEventReuse() {
+        return reuseEvents;
     }
     
     /**
@@ -137,7 +466,28 @@ public class Entity {
      * @return the current position of this entity
      */
     public long getPosit() {
-        return posit;
+        StampedLock l = lock;
+        if (l == null) return rawPosit();
+        long stamp = l.tryOptimisticRead();
+        long result = rawPosit();
+        if (!l.validate(stamp)) {
+            stamp = l.readLock();
+            try {
+                result = rawPosit();
+            } finally {
+                l.unlockRead(stamp);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the posit; safe to call without the lock, since the store
+     * bounds-checks a stale handle.
+     */
+    private long rawPosit() {
+        EntityStore s = store;
+        return s == null ? posit : s.posit(id);
     }
 
     /**
@@ -153,9 +503,47 @@ public class Entity {
     }
     
     private void setPositImpl(long posit, Object move) {
-        PositEvent e = new PositEvent(this, move, this.posit, posit);
-        this.posit = posit;
-        positListeners = fireEvent(positListeners, e);
+        long previous;
+        boolean held;
+        long stamp = writeLock();
+        try {
+            previous = rawPosit();
+            if (store == null) {
+                this.posit = posit;
+            } else {
+                store.setPosit(id, posit);
+            }
+            held = holdEvents(positListeners() != null);
+            if (held) {
+                pending.posit(previous, move);
+            }
+        } finally {
+            unlockWrite(stamp);
+        }
+        if (!held) {
+            firePosit(move, previous, posit);
+        }
+    }
+    
+    private void firePosit(Object move, long previous, long posit) {
+        EventBus bus = eventBus;
+        if (bus != null) {
+            bus.publishPosit(this, move, previous, posit);
+        }
+        Extras x = extras;
+        if (x == null || !Listeners.wants(x.positListeners, previous, posit)) return;
+        if (reuseEvents) {
+            EventPool pool = EventPool.current();
+            PositEvent e = pool.acquirePosit(this, move, previous, posit);
+            try {
+                Listeners.fire(Extras.POSIT_LISTENERS, x, e, previous, posit);
+            } finally {
+                pool.release(e);
+            }
+        } else {
+            Listeners.fire(Extras.POSIT_LISTENERS, x,
+                    new PositEvent(this, move, previous, posit), previous, posit);
+        }
     }
 
     /**
@@ -163,7 +551,24 @@ public class Entity {
      * @return the current state of this entity
      */
     public long getState() {
-        return state;
+        StampedLock l = lock;
+        if (l == null) return rawState();
+        long stamp = l.tryOptimisticRead();
+        long result = rawState();
+        if (!l.validate(stamp)) {
+            stamp = l.readLock();
+            try {
+                result = rawState();
+            } finally {
+                l.unlockRead(stamp);
+            }
+        }
+        return result;
+    }
+    
+    private long rawState() {
+        EntityStore s = store;
+        return s == null ? state : s.state(id);
     }
 
     /**
@@ -178,9 +583,47 @@ public class Entity {
     }
     
     private void setStateImpl(long state, Object move) {
-        StateEvent e = new StateEvent(this, move, this.state, state);
-        this.state = state;
-        stateListeners = fireEvent(stateListeners, e);
+        long previous;
+        boolean held;
+        long stamp = writeLock();
+        try {
+            previous = rawState();
+            if (store == null) {
+                this.state = state;
+            } else {
+                store.setState(id, state);
+            }
+            held = holdEvents(stateListeners() != null);
+            if (held) {
+                pending.state(previous, move);
+            }
+        } finally {
+            unlockWrite(stamp);
+        }
+        if (!held) {
+            fireState(move, previous, state);
+        }
+    }
+    
+    private void fireState(Object move, long previous, long state) {
+        EventBus bus = eventBus;
+        if (bus != null) {
+            bus.publishState(this, move, previous, state);
+        }
+        Extras x = extras;
+        if (x == null || !Listeners.wants(x.stateListeners, previous, state)) return;
+        if (reuseEvents) {
+            EventPool pool = EventPool.current();
+            StateEvent e = pool.acquireState(this, move, previous, state);
+            try {
+                Listeners.fire(Extras.STATE_LISTENERS, x, e, previous, state);
+            } finally {
+                pool.release(e);
+            }
+        } else {
+            Listeners.fire(Extras.STATE_LISTENERS, x,
+                    new StateEvent(this, move, previous, state), previous, state);
+        }
     }
 
     /**
@@ -195,14 +638,27 @@ public class Entity {
         this.logics = new Node<>(logic, this.logics);
     }
 
-//    /**
-//     * Returns the list used to store the child-entities.
-//     * The meaning of the returned list is up to the application.
-//     * @return the actual list used to store th child-entities
-//     */
-//    public List<Entity> children() {
-//        return children;
-//    }
+    /**
+     * Returns the list used to store the child-entities or {@code null} if
+     * none has been set. The meaning of the list is up to the application.
+     * @return the actual list used to store the child-entities or {@code null}
+     * @see #setChildren
+     */
+    public List<Entity> getChildren() {
+        Extras x = extras;
+        return x == null ? null : x.children;
+    }
+    
+    /**
+     * Sets the list used to store the child-entities.
+     * The meaning of this list is up to the application.
+     * @param children the list used to store the child-entities or {@code null}
+     */
+    public void setChildren(List<Entity> children) {
+        if (children != null || extras != null) {
+            extras().children = children;
+        }
+    }
   
     /**
      * Accepts the given input and performs a reaction depending on
@@ -212,7 +668,10 @@ public class Entity {
      * steps of any non-null reaction. <br>
      * If a logic consumes the input (see {@link MoveReaction#consume}) the
      * remaining logics will not be questioned. <p>
-     * If there is no <em>logic</em> in this entity, nothing happens.
+     * If there is no <em>logic</em> in this entity, nothing happens. <p>
+     * Follow-up moves of the reactions are performed recursively, before
+     * this method returns, unless a {@link Cascade} runs on this thread, in
+     * which case they are queued to it.
      * 
      * @param input the input to react to; cannot be null
      * @return the reaction that consumed the {@code input}
@@ -226,6 +685,46 @@ public class Entity {
         for (Node<Logic> logic = logics; logic != null; logic = logic.next) {
             Reaction reaction = logic.data.reaction(this, input);
             if (reaction != null) {
+                ReactionRecorder r = recorder;
+                if (r != null) {
+                    r.record(this, input, reaction);
+                }
+                applyMoveReaction(reaction, input);
+                if (reaction.consume) {
+                    return reaction;
+                }
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Same as {@link #react(Object)} for an input given as a numeric code. <p>
+     * The logics are questioned by {@link Logic#reaction(Entity, long)}, so
+     * logics that support codes, such as
+     * {@link gr.entij.logics.MapLogic#mapCode MapLogic}, find their reaction
+     * without boxing the code. The code is boxed only if a reaction is
+     * performed, as the move of its events. <p>
+     * Arguments of {@link #react(Object)} are boxed as usual, e.g.
+     * {@code react(5)} reacts to an {@code Integer}; only this method passes
+     * a primitive code.
+     * @param code the code of the input to react to
+     * @return the reaction that consumed the input or {@code null}
+     * @see #react(Object)
+     */
+    public Reaction reactCode(long code) {
+        Object input = null;
+        for (Node<Logic> logic = logics; logic != null; logic = logic.next) {
+            Reaction reaction = logic.data.reaction(this, code);
+            if (reaction != null) {
+                if (input == null) {
+                    input = code;
+                }
+                ReactionRecorder r = recorder;
+                if (r != null) {
+                    r.record(this, input, reaction);
+                }
                 applyMoveReaction(reaction, input);
                 if (reaction.consume) {
                     return reaction;
@@ -236,26 +735,48 @@ public class Entity {
         return null;
     }
     
+    /**
+     * Queues the given input to be reacted to by {@link #react(Object)} on a
+     * worker of a shared pool. The inputs of an entity are reacted to one at
+     * a time, in the order they were queued; different entities react in
+     * parallel.
+     * @param input the input to react to
+     * @return the future of the reaction that consumed the input
+     * @throws NullPointerException if {@code input} is {@code null}
+     * @throws IllegalStateException if {@link #asyncShutdownNow()} has been
+     * called
+     */
     public synchronized Future<Reaction> asyncReact(Object input) throws NullPointerException {
         Objects.requireNonNull(input, "input cannot be null");
-        if (asyncEntry == null) {
-            asyncEntry = pool.get();
+        Extras x = extras();
+        if (x.asyncEntry == null) {
+            x.asyncEntry = pool.get(this);
         }
-        return asyncEntry.submitAction(this, input);
+        return x.asyncEntry.submitAction(input);
     }
     
+    /**
+     * Queues the given code to be applied to this entity, in the same queue
+     * as the inputs of {@link #asyncReact}.
+     * @param <T> the type of the result of the code
+     * @param code the code to apply
+     * @return the future of the result of the code
+     * @throws NullPointerException if {@code code} is {@code null}
+     * @throws IllegalStateException if {@link #asyncShutdownNow()} has been
+     * called
+     */
     public synchronized <T> Future<T>  asyncExecute(Function<? super Entity, T> code) throws NullPointerException {
         Objects.requireNonNull(code, "input cannot be null");
-        if (asyncEntry == null) {
-            asyncEntry = pool.get();
+        Extras x = extras();
+        if (x.asyncEntry == null) {
+            x.asyncEntry = pool.get(this);
         }
-        return asyncEntry.sumbitCode(this, code);
+        return x.asyncEntry.sumbitCode(code);
     }
     
-    // package private because it is called by AsyncEntry2
+    // package private because it is called by AsyncEntry
     synchronized void signalAsyncQueueEmpty() {
-        pool.putBack(asyncEntry);
-        asyncEntry = null;
+        extras.asyncEntry = null;
     }
 
     public static void asyncShutdownNow() {
@@ -265,34 +786,207 @@ public class Entity {
     public static void asyncShutdownLater() {
         pool.shutdownLater();
     }
+
+    /**
+     * Sets the backend that runs {@link #asyncReact} and
+     * {@link #asyncExecute}; {@link AsyncBackend#pooled()} by default.
+     * Pending work moves to the new backend. Either way, the work of an
+     * entity is performed one task at a time.
+     * @param backend the new backend
+     * @throws NullPointerException if {@code backend} is {@code null}
+     * @see AsyncBackend#virtualThreads()
+     */
+    public static void setAsyncBackend(AsyncBackend backend) throws NullPointerException {
+        pool.setBackend(Objects.requireNonNull(backend, "backend cannot be null"));
+    }
+
+    /**
+     * Returns the backend that runs {@link #asyncReact} and
+     * {@link #asyncExecute}.
+     * @return the current backend
+     * @see #setAsyncBackend
+     */
+    public static AsyncBackend getAsyncBackend() {
+        return pool.getBackend();
+    }
     
     private void applyMoveReaction(Reaction reaction, Object move) {
-        if (reaction.nextPosit != null) {
+        int flags = reaction.flags;
+        if ((flags & Reaction.HAS_POSIT) != 0) {
             setPositImpl(reaction.nextPosit, move);
         }
-        if (reaction.nextState != null) {
+        if ((flags & Reaction.HAS_STATE) != 0) {
             setStateImpl(reaction.nextState, move);
         }
         if (reaction.nextPropValues != null) {
             putAllImpl(reaction.nextPropValues, move);
         }
-        if (reaction.andThen != null) {
-            for (Reaction.AndThen andThen : reaction.andThen) {
-                if (andThen.funcName != null) {
-                    call(andThen.funcName, andThen.args);
-                } else {
-                    Object andThenMove = andThen.input;
+        Reaction.AndThen[] andThens = reaction.andThen;
+        Cascade cascade = reaction.andThenCount == 0 ? null : Cascade.current();
+        for (int i = 0, n = reaction.andThenCount; i < n; i++) {
+            Reaction.AndThen andThen = andThens[i];
+            if (andThen.func != null) {
+                switch (andThen.arity) {
+                    case 0: call(andThen.func); break;
+                    case 1: call(andThen.func, andThen.arg0); break;
+                    default: call(andThen.func, andThen.arg0, andThen.arg1);
+                }
+            } else if (andThen.funcName != null) {
+                call(andThen.funcName, andThen.args);
+            } else {
+                Object andThenMove = andThen.input;
+                if (andThen.parallel) {
+                    FanOut.react(andThen.targets, andThenMove);
+                } else if (cascade != null) {
+                    // queued instead of performed recursively; see Cascade
                     if (andThen.target != null) {
-                        andThen.target.react(andThenMove);
+                        cascade.enqueue(andThen.target, andThenMove);
+                    } else if (andThen.targets != null) {
+                        for (Entity ent : andThen.targets) {
+                            cascade.enqueue(ent, andThenMove);
+                        }
                     } else {
-                        //assert andThen.targets != null;
-                        andThen.targets.forEach((Entity ent) -> ent.react(andThenMove));
+                        andThen.targetStream.forEach((Entity ent) -> cascade.enqueue(ent, andThenMove));
+                    }
+                } else if (andThen.target != null) {
+                    andThen.target.react(andThenMove);
+                } else if (andThen.targets != null) {
+                    for (Entity ent : andThen.targets) {
+                        ent.react(andThenMove);
                     }
+                } else {
+                    andThen.targetStream.forEach((Entity ent) -> ent.react(andThenMove));
                 }
             }
         }
     }
     
+    /**
+     * Performs the given changes on this entity as a single batch. <p>
+     * The changes are applied as usual, but their events are held back until
+     * the batch completes. Then each kind of listener is notified at most
+     * once, with the net change: one {@link PositEvent} from the posit before
+     * the batch to the final posit, one {@link StateEvent} likewise and one
+     * {@link PropertyEvent} whose {@code oldValues} contain the value each
+     * changed property had before the batch. So, for example, a
+     * {@link Terrain} updates its indexes of this entity once per batch. <p>
+     * The events carry the move of the last change of their kind. Batches may
+     * be nested; events are fired when the outermost batch completes, even if
+     * {@code changes} throws an exception.
+     * @param changes the changes to perform; receives this entity
+     * @see #react
+     */
+    public void batch(Consumer<? super Entity> changes) {
+        beginPending();
+        try {
+            changes.accept(this);
+        } finally {
+            endPending();
+        }
+    }
+    
+    void beginPending() {
+        long stamp = writeLock();
+        try {
+            if (pending == null) {
+                pending = new PendingChanges();
+            }
+            pending.depth++;
+        } finally {
+            unlockWrite(stamp);
+        }
+    }
+    
+    void endPending() {
+        PendingChanges p;
+        long stamp = writeLock();
+        try {
+            p = --pending.depth == 0 && !pending.queued ? takePending() : null;
+        } finally {
+            unlockWrite(stamp);
+        }
+        if (p != null) {
+            firePending(p);
+        }
+    }
+    
+    /**
+     * Returns {@code true} if the events of this entity are currently held
+     * back. If they are not, but an {@link EventQueue} is open on this thread
+     * and the change is {@code listened}, this entity is added to that queue
+     * and its events are held back from now on. Called with the write lock
+     * held.
+     */
+    private boolean holdEvents(boolean listened) {
+        if (pending != null) return true;
+        if (!listened) return false;
+        EventQueue queue = EventQueue.current();
+        if (queue == null) return false;
+        pending = new PendingChanges();
+        pending.queued = true;
+        queue.enqueue(this);
+        return true;
+    }
+    
+    /**
+     * Returns {@code true} if the events of this entity are currently held
+     * back by a {@link #batch} or an {@link EventQueue}.
+     */
+    boolean hasPendingChanges() {
+        StampedLock l = lock;
+        if (l == null) return pending != null;
+        long stamp = l.readLock();
+        try {
+            return pending != null;
+        } finally {
+            l.unlockRead(stamp);
+        }
+    }
+    
+    /**
+     * Called by the {@link EventQueue} this entity waits in, when it is flushed.
+     */
+    void firePendingOfQueue() {
+        PendingChanges p;
+        long stamp = writeLock();
+        try {
+            p = pending;
+            if (p == null) return;
+            p.queued = false;
+            p = p.depth == 0 ? takePending() : null;
+        } finally {
+            unlockWrite(stamp);
+        }
+        if (p != null) {
+            firePending(p);
+        }
+    }
+    
+    /**
+     * Clears and returns the pending changes of this entity. Called with the
+     * write lock held.
+     */
+    private PendingChanges takePending() {
+        PendingChanges p = pending;
+        pending = null;
+        return p;
+    }
+    
+    /**
+     * Fires the given, no longer pending, changes of this entity.
+     */
+    void firePending(PendingChanges p) {
+        if (p.positChanged) {
+            firePosit(p.positMove, p.previousPosit, getPosit());
+        }
+        if (p.stateChanged) {
+            fireState(p.stateMove, p.previousState, getState());
+        }
+        if (p.oldValues != null) {
+            dispatchPropertyEvent(p.oldValues, p.propertyMove);
+        }
+    }
+    
 // Listener Management
     
     /**
@@ -306,22 +1000,39 @@ public class Entity {
      */
     public void addPositListener(Consumer<? super PositEvent> toAdd) {
         Objects.requireNonNull(toAdd, "listener cannot be null");
-        positListeners = new Node<>(new RemovableListener<>(toAdd), positListeners);
+        Listeners.add(Extras.POSIT_LISTENERS, extras(), new RemovableListener<>(toAdd));
     }
         
     /**
      * Same as {@link #addPositListener(java.util.function.Consumer)} but the
      * added listener will be retained as long as it returns {@code true}.
-     * The listener will be removed the first time it returns {@code false}
-     * and the remove operation will take O(1) time.
+     * The listener will be removed the first time it returns {@code false}.
      * <p> NOTE: the listener will not be removed it throw an exception.
      * @param toAdd the listener to be added
      * @see PositEvent
      */
     public void addPositListenerRemovable(Predicate<? super PositEvent> toAdd) {
         Objects.requireNonNull(toAdd, "listener cannot be null");
-//        moveListeners.add(toAdd);
-        positListeners = new Node<>(toAdd, positListeners);
+        Listeners.add(Extras.POSIT_LISTENERS, extras(), toAdd);
+    }
+    
+    /**
+     * Adds the given {@link PositEvent} listener, to be notified only of the
+     * position changes that match the given {@link Transition}. <br>
+     * Non matching changes do not call the listener; if no listener of a
+     * change is interested in it, no event is created. Changes held back by
+     * a {@linkplain #batch batch} are matched as one net change. <p>
+     * The listener is removed by {@link #removePositListener}.
+     * @param filter the changes the listener is interested in
+     * @param toAdd the listener to be added
+     * @throws NullPointerException if any argument is {@code null}
+     * @see Transition
+     */
+    public void addPositListener(Transition filter, Consumer<? super PositEvent> toAdd)
+            throws NullPointerException {
+        Objects.requireNonNull(filter, "filter cannot be null");
+        Objects.requireNonNull(toAdd, "listener cannot be null");
+        Listeners.add(Extras.POSIT_LISTENERS, extras(), new TransitionListener<>(filter, toAdd));
     }
     
     /**
@@ -329,7 +1040,10 @@ public class Entity {
      * @param toRemove the listener to be removed
      */
     public void removePositListener(Consumer<? super PositEvent> toRemove) {
-        positListeners = removeListener(positListeners, toRemove);
+        Extras x = extras;
+        if (x != null) {
+            Listeners.remove(Extras.POSIT_LISTENERS, x, toRemove);
+        }
     }
     
     /**
@@ -342,22 +1056,37 @@ public class Entity {
      */
     public void addStateListener(Consumer<? super StateEvent> toAdd) {
         Objects.requireNonNull(toAdd, "listener cannot be null");
-        stateListeners = new Node<>(new RemovableListener<>(toAdd), stateListeners);
+        Listeners.add(Extras.STATE_LISTENERS, extras(), new RemovableListener<>(toAdd));
     }
       
     /**
      * Same as {@link #addStateListener(java.util.function.Consumer)} but the
      * added listener will be retained as long as it returns {@code true}.
-     * The listener will be removed the first time it returns {@code false}
-     * and the remove operation will take O(1) time.
+     * The listener will be removed the first time it returns {@code false}.
      * <p> NOTE: the listener will not be removed it throw an exception.
      * @param toAdd the listener to be added
      * @see StateEvent
      */
     public void addStateListenerRemovable(Predicate<? super StateEvent> toAdd) {
         Objects.requireNonNull(toAdd, "listener cannot be null");
-//        stateListeners.add(toAdd);
-        stateListeners = new Node<>(toAdd, stateListeners);
+        Listeners.add(Extras.STATE_LISTENERS, extras(), toAdd);
+    }
+    
+    /**
+     * Adds the given {@link StateEvent} listener, to be notified only of the
+     * state changes that match the given {@link Transition}; see
+     * {@link #addPositListener(Transition, Consumer)}. <p>
+     * The listener is removed by {@link #removeStateListener}.
+     * @param filter the changes the listener is interested in
+     * @param toAdd the listener to be added
+     * @throws NullPointerException if any argument is {@code null}
+     * @see Transition
+     */
+    public void addStateListener(Transition filter, Consumer<? super StateEvent> toAdd)
+            throws NullPointerException {
+        Objects.requireNonNull(filter, "filter cannot be null");
+        Objects.requireNonNull(toAdd, "listener cannot be null");
+        Listeners.add(Extras.STATE_LISTENERS, extras(), new TransitionListener<>(filter, toAdd));
     }
     
     /**
@@ -365,7 +1094,10 @@ public class Entity {
      * @param toRemove the listener to be removed
      */
     public void removeStateListener(Consumer<StateEvent> toRemove) {
-        stateListeners = removeListener(stateListeners, toRemove);
+        Extras x = extras;
+        if (x != null) {
+            Listeners.remove(Extras.STATE_LISTENERS, x, toRemove);
+        }
     }
     
     /**
@@ -384,22 +1116,79 @@ public class Entity {
      */
     public void addPropertyListener(Consumer<? super PropertyEvent> toAdd) {
         Objects.requireNonNull(toAdd, "listener cannot be null");
-        propertyListeners = new Node<>(new RemovableListener<>(toAdd), propertyListeners);
+        Listeners.add(Extras.PROPERTY_LISTENERS, extras(), new RemovableListener<>(toAdd));
     }
     
     /**
      * Same as {@link #addPropertyListener(java.util.function.Consumer)} but the
      * added listener will be retained as long as it returns {@code true}.
-     * The listener will be removed the first time it returns {@code false}
-     * and the remove operation will take O(1) time.
+     * The listener will be removed the first time it returns {@code false}.
      * <p> NOTE: the listener will not be removed it throw an exception.
      * @param toAdd the listener to be added
      * @see PropertyEvent
      */
     public void addPropertyListenerRemovable(Predicate<? super PropertyEvent> toAdd) {
         Objects.requireNonNull(toAdd, "listener cannot be null");
-//        propertyListeners.add(toAdd);
-        propertyListeners = new Node<>(toAdd, propertyListeners);
+        Listeners.add(Extras.PROPERTY_LISTENERS, extras(), toAdd);
+    }
+    
+    /**
+     * Adds the given {@link PropertyEvent} listener, to be notified only of
+     * the events in which the specified property changed. The event may
+     * contain other changed properties as well. <p>
+     * Such listeners are indexed by key, so changing a property only invokes
+     * the listeners of that property (and the unfiltered ones), regardless
+     * of the listeners of other properties. A listener added for several
+     * keys is notified once for each of its keys that changed.
+     * @param key the key of the property the listener is interested in
+     * @param toAdd the listener to be added
+     * @throws NullPointerException if any argument is {@code null}
+     * @see #removePropertyListener(PropertyKey, Consumer)
+     */
+    public void addPropertyListener(PropertyKey<?> key, Consumer<? super PropertyEvent> toAdd)
+            throws NullPointerException {
+        Objects.requireNonNull(key, "key cannot be null");
+        Objects.requireNonNull(toAdd, "listener cannot be null");
+        Listeners.addKeyed(Extras.KEYED_PROPERTY_LISTENERS, extras(), key.index(), new RemovableListener<>(toAdd));
+    }
+    
+    /**
+     * Same as {@link #addPropertyListener(PropertyKey, Consumer)
+     * addPropertyListener(PropertyKey.of(propertyName), toAdd)}.
+     * @param propertyName the name of the property the listener is interested in
+     * @param toAdd the listener to be added
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public void addPropertyListener(String propertyName, Consumer<? super PropertyEvent> toAdd)
+            throws NullPointerException {
+        addPropertyListener(PropertyKey.of(propertyName), toAdd);
+    }
+    
+    /**
+     * Same as {@link #addPropertyListener(PropertyKey, Consumer)} but the
+     * added listener will be retained as long as it returns {@code true}.
+     * @param key the key of the property the listener is interested in
+     * @param toAdd the listener to be added
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public void addPropertyListenerRemovable(PropertyKey<?> key, Predicate<? super PropertyEvent> toAdd)
+            throws NullPointerException {
+        Objects.requireNonNull(key, "key cannot be null");
+        Objects.requireNonNull(toAdd, "listener cannot be null");
+        Listeners.addKeyed(Extras.KEYED_PROPERTY_LISTENERS, extras(), key.index(), toAdd);
+    }
+    
+    /**
+     * Removes the specified {@link PropertyEvent} listener of the specified
+     * property.
+     * @param key the key the listener was added for
+     * @param toRemove the listener to be removed
+     */
+    public void removePropertyListener(PropertyKey<?> key, Consumer<? super PropertyEvent> toRemove) {
+        Extras x = extras;
+        if (x != null) {
+            Listeners.removeKeyed(Extras.KEYED_PROPERTY_LISTENERS, x, key.index(), toRemove);
+        }
     }
     
     /**
@@ -407,7 +1196,10 @@ public class Entity {
      * @param toRemove the listener to be removed
      */
     public void removePropertyListener(Consumer<? super PropertyEvent> toRemove) {
-        propertyListeners = removeListener(propertyListeners, toRemove);
+        Extras x = extras;
+        if (x != null && !Listeners.remove(Extras.PROPERTY_LISTENERS, x, toRemove)) {
+            Listeners.removeKeyed(Extras.KEYED_PROPERTY_LISTENERS, x, -1, toRemove);
+        }
     }
        
     /**
@@ -420,22 +1212,20 @@ public class Entity {
      */ 
     public void addEntityListener(Consumer<? super EntityEvent> toAdd) {
         Objects.requireNonNull(toAdd, "listener cannot be null");
-        entityListeners = new Node<>(new RemovableListener<>(toAdd), entityListeners);
+        Listeners.add(Extras.ENTITY_LISTENERS, extras(), new RemovableListener<>(toAdd));
     }
              
     /**
      * Same as {@link #addEntityListener(java.util.function.Consumer)} but the
      * added listener will be retained as long as it returns {@code true}.
-     * The listener will be removed the first time it returns {@code false}
-     * and the remove operation will take O(1) time.
+     * The listener will be removed the first time it returns {@code false}.
      * <p> NOTE: the listener will not be removed it throw an exception.
      * @param toAdd the listener to be added
      * @see EntityEvent
      */ 
     public void addEntityListenerRemovable(Predicate<? super EntityEvent> toAdd) {
         Objects.requireNonNull(toAdd, "listener cannot be null");
-//        entityListeners.add(toAdd);
-        entityListeners = new Node<>(toAdd, entityListeners);
+        Listeners.add(Extras.ENTITY_LISTENERS, extras(), toAdd);
     }
     
     /**
@@ -443,85 +1233,10 @@ public class Entity {
      * @param toRemove the listener to be removed
      */
     public void removeEntityListener(Consumer<? super EntityEvent> toRemove) {
-        entityListeners = removeListener(entityListeners, toRemove);
-    }
-    
-    /**
-     * NOTE! always replace the reference to the given listenerList with the
-     * returned value!
-     * E.g. always call this method like that: {@code 
-     * listenerList = removeListener(listenerList, listenerToRemove);
-     * }
-     * @param <T> the of events these listeners handle
-     * @param listenerList the head of the listener list
-     * @param toRemove the listener to be removed
-     * @return the new head of the listener list
-     */
-    static  <T> Node<Predicate<? super T>> removeListener(Node<Predicate<? super T>> listenerList, Consumer<? super T> toRemove) {
-        if (listenerList == null) return null;
-        Node<Predicate<? super T>> current = listenerList;
-        Node<Predicate<? super T>> previous = null;
-        
-        while (current != null) {
-            if (current.data instanceof RemovableListener && ((RemovableListener) current.data).action == toRemove) {
-                if (previous != null) {
-                    previous.next = current.next;
-                } else {
-                    listenerList = current.next;
-                }
-                current.destroy();
-                return listenerList;
-            }
-            previous = current;
-            current = current.next;
-        }
-        
-        return listenerList;
-    }
-    
-    /**
-     * NOTE! always replace the reference to the given listenerList with the
-     * returned value!
-     * E.g. always call this method like that: {@code 
-     * listenerList = fireEvent(listenerList, event);
-     * }
-     * @param <T> the type of event to be fired
-     * @param listenerList the head of the listeners to be notified
-     * @param event the event to be fired
-     * @return the new head of the notified listeners; 
-     */
-    static <T> Node<Predicate<? super T>> fireEvent(Node<Predicate<? super T>> listenerList, T event) {
-        if (listenerList == null) return null;
-        Node<Predicate<? super T>> current = listenerList;
-        Node<Predicate<? super T>> previous = null;
-        
-        while (current != null) {
-            boolean removed = false;
-            try {
-                current.ensureNotDestoyed();
-                if (!current.data.test(event)) {
-                    if (previous != null) {
-                        previous.ensureNotDestoyed();
-                        previous.next = current.next;
-                        current.destroy();
-                        current = previous.next;
-                        removed = true;
-                    } else {
-                        listenerList = current.next;
-                        current.destroy();
-                        current = listenerList;
-                        removed = true;
-                    }
-                }
-            } catch (RuntimeException e) {
-                e.printStackTrace();
-            }
-            if (!removed) {
-                previous = current;
-                current = current.next;
-            }
+        Extras x = extras;
+        if (x != null) {
+            Listeners.remove(Extras.ENTITY_LISTENERS, x, toRemove);
         }
-        return listenerList;
     }
     
 // Property Management
@@ -539,8 +1254,39 @@ public class Entity {
      */
     @SuppressWarnings("unchecked")
     public <T> T get(String propertyName) throws ClassCastException {
-        ensurePropertiesInitialized();
-        return (T) properties.get(propertyName);
+        PropertyKey<?> key = PropertyKey.lookup(propertyName);
+        return key == null ? null : (T) get(key);
+    }
+    
+    /**
+     * Returns the value of the specified property or {@code null} if the
+     * property is not present. <p>
+     * This method is equivalent to {@link #get(String) get(key.name())} but
+     * does not perform any hashing.
+     * @param <T> the type of the value of the property
+     * @param key the key of the property
+     * @return the value of the specified property or {@code null} if the
+     * property is not present
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(PropertyKey<T> key) {
+        int index = key.index();
+        StampedLock l = lock;
+        long stamp = l == null ? 0 : l.tryOptimisticRead();
+        int pos = find(index);
+        Object raw = valueAt(pos);
+        long bits = primAt(pos);
+        if (l != null && !l.validate(stamp)) {
+            stamp = l.readLock();
+            try {
+                pos = find(index);
+                raw = valueAt(pos);
+                bits = primAt(pos);
+            } finally {
+                l.unlockRead(stamp);
+            }
+        }
+        return (T) decode(raw, bits);
     }
     
     /**
@@ -552,10 +1298,37 @@ public class Entity {
      * @see #addPropertyListener
      */
     public void set(String propertyName, Object propertyValue) {
-        ensurePropertiesInitialized();
-        Map<String, Object> oldValues = Collections.singletonMap(
-                propertyName, properties.put(propertyName, propertyValue));
-        dispatchPropertyEvent(oldValues, null);
+        set(PropertyKey.of(propertyName), propertyValue);
+    }
+    
+    /**
+     * Sets the value of the specified property. <br>
+     * Same as {@link #set(String, Object) set(key.name(), propertyValue)}.
+     * @param <T> the type of the value of the property
+     * @param key the key of the property to set
+     * @param propertyValue the value to be set for the property
+     * @see #addPropertyListener
+     */
+    public <T> void set(PropertyKey<T> key, T propertyValue) {
+        int index = key.index();
+        Object oldValue = null;
+        boolean dispatch = false;
+        long stamp = writeLock();
+        try {
+            int pos = slot(index);
+            Object old = putSlot(pos, propertyValue);
+            if (holdEvents(propertyListened())) {
+                pending.property(key.name(), slotValue(old, pos), null);
+            } else if (propertyObserved()) {
+                oldValue = slotValue(old, pos);
+                dispatch = true;
+            }
+        } finally {
+            unlockWrite(stamp);
+        }
+        if (dispatch) {
+            dispatchPropertyEvent(Collections.singletonMap(key.name(), oldValue), null);
+        }
     }
     
     /**
@@ -563,12 +1336,39 @@ public class Entity {
      * @param propNameToRemove the name of the property to remove
      */
     public void remove(String propNameToRemove) {
-        if (properties != null && properties.containsKey(propNameToRemove)) {
-            Map<String, Object> oldValues = Collections.singletonMap(
-                propNameToRemove, properties.remove(propNameToRemove));
-            dispatchPropertyEvent(oldValues, null);
+        PropertyKey<?> key = PropertyKey.lookup(propNameToRemove);
+        if (key != null) {
+            remove(key);
+        }
+    }
+    
+    /**
+     * Removes the specified property.
+     * @param keyToRemove the key of the property to remove
+     */
+    public void remove(PropertyKey<?> keyToRemove) {
+        int index = keyToRemove.index();
+        Object oldValue = null;
+        boolean dispatch = false;
+        long stamp = writeLock();
+        try {
+            // the slot is kept, empty, for the next value of the property
+            int pos = find(index);
+            Object old = valueAt(pos);
+            if (old == null) return;
+            propValues[pos] = null;
+            if (holdEvents(propertyListened())) {
+                pending.property(keyToRemove.name(), slotValue(old, pos), null);
+            } else if (propertyObserved()) {
+                oldValue = slotValue(old, pos);
+                dispatch = true;
+            }
+        } finally {
+            unlockWrite(stamp);
+        }
+        if (dispatch) {
+            dispatchPropertyEvent(Collections.singletonMap(keyToRemove.name(), oldValue), null);
         }
-        
     }
     
     /**
@@ -578,7 +1378,63 @@ public class Entity {
      * @return {@code true} if the specified property is present
      */
     public boolean has(String propertyName) {
-        return properties != null && properties.containsKey(propertyName);
+        PropertyKey<?> key = PropertyKey.lookup(propertyName);
+        return key != null && has(key);
+    }
+    
+    /**
+     * Returns {@code true} if the specified property is present. <p>
+     * Note that the value of the property may be {@code null}.
+     * @param key the key of the property
+     * @return {@code true} if the specified property is present
+     */
+    public boolean has(PropertyKey<?> key) {
+        int index = key.index();
+        StampedLock l = lock;
+        if (l == null) return valueAt(find(index)) != null;
+        long stamp = l.tryOptimisticRead();
+        boolean result = valueAt(find(index)) != null;
+        if (!l.validate(stamp)) {
+            stamp = l.readLock();
+            try {
+                result = valueAt(find(index)) != null;
+            } finally {
+                l.unlockRead(stamp);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Calls the given action for each property of this entity.
+     * @param action the action to be called with the key and the value of
+     * each property
+     */
+    public void forEachProperty(BiConsumer<? super PropertyKey<?>, Object> action) {
+        int count;
+        int[] keys;
+        Object[] values;
+        long[] prims;
+        // take a snapshot; the action may change this entity
+        StampedLock l = lock;
+        long stamp = l == null ? 0 : l.readLock();
+        try {
+            count = propCount;
+            if (count == 0) return;
+            keys = Arrays.copyOf(propKeys, count);
+            values = Arrays.copyOf(propValues, count);
+            prims = propPrims == null ? null : Arrays.copyOf(propPrims, count);
+        } finally {
+            if (l != null) {
+                l.unlockRead(stamp);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            Object val = values[i];
+            if (val != null) {
+                action.accept(PropertyKey.byIndex(keys[i]), decode(val, prims == null ? 0 : prims[i]));
+            }
+        }
     }
     
     /**
@@ -589,21 +1445,37 @@ public class Entity {
      * @see #addPropertyListener
      */
     public void setAll(Map<String, ? extends Object> props) {
-        if (propertyListeners == null) {
-            properties = new HashMap<>(props); return;
+        Map<String, Object> oldValues = null;
+        long stamp = writeLock();
+        try {
+            boolean held = holdEvents(propertyListened());
+            if (held || propertyObserved()) {
+                oldValues = new HashMap<>();
+                for (int i = 0; i < propCount; i++) {
+                    if (propValues[i] != null) {
+                        oldValues.put(PropertyKey.byIndex(propKeys[i]).name(),
+                                slotValue(propValues[i], i));
+                    }
+                }
+                for (String name : props.keySet()) {
+                    oldValues.putIfAbsent(name, null);
+                }
+            }
+            propKeys = null;
+            propValues = null;
+            propPrims = null;
+            propCount = 0;
+            props.forEach((name, val) -> putSlot(slot(PropertyKey.of(name).index()), val));
+            if (held) {
+                pending.properties(oldValues, null);
+                return;
+            }
+        } finally {
+            unlockWrite(stamp);
         }
-        
-        Map<String, Object> oldValues = properties == null ? Collections.EMPTY_MAP : properties;
-        properties = new HashMap<>(props);
-        if (oldValues.isEmpty()) {
-            oldValues.putAll(props);
-            oldValues.entrySet().stream().forEach(ent -> ent.setValue(null));
-        } else {
-            properties.entrySet().stream()
-                    .filter(ent -> !oldValues.containsKey(ent.getKey()))
-                    .forEach(ent -> oldValues.put(ent.getKey(), null));
+        if (oldValues != null) {
+            dispatchPropertyEvent(oldValues, null);
         }
-        dispatchPropertyEvent(oldValues, null);
     }
     
     /**
@@ -618,34 +1490,423 @@ public class Entity {
     }
     
     private void putAllImpl(Map<String, ? extends Object> props, Object move) {
-        ensurePropertiesInitialized();
-        if (propertyListeners == null) {
-            properties.putAll(props); return; 
+        Map<String, Object> oldValues;
+        long stamp = writeLock();
+        try {
+            boolean held = holdEvents(propertyListened());
+            if (!held && !propertyObserved()) {
+                props.forEach((name, val) -> putSlot(slot(PropertyKey.of(name).index()), val));
+                return;
+            }
+            
+            oldValues = new HashMap<>(props.size() * 2);
+            props.forEach((name, val) -> {
+                int pos = slot(PropertyKey.of(name).index());
+                oldValues.put(name, slotValue(putSlot(pos, val), pos));
+            });
+            if (held) {
+                pending.properties(oldValues, move);
+                return;
+            }
+        } finally {
+            unlockWrite(stamp);
         }
-
-        Map<String, Object> oldValues = new HashMap<>(props);
-        oldValues.entrySet().stream().forEach(ent -> {
-            ent.setValue(properties.get(ent.getKey()));
-        });
-        properties.putAll(props);
         dispatchPropertyEvent(oldValues, move);
     }
     
-    private void ensurePropertiesInitialized() {
-        if (properties == null) {
-            properties = new HashMap<>(1);
+    /**
+     * Returns the value of the specified {@code long} property, without boxing.
+     * If the property holds a {@code double} or another {@link Number}, its
+     * value is converted to {@code long}.
+     * @param key the key of the property
+     * @return the value of the property or 0 if it is absent or {@code null}
+     * @throws ClassCastException if the property holds a value that is not a
+     * {@code Number}
+     * @see #setLong(PropertyKey, long)
+     */
+    public long getLong(PropertyKey<?> key) throws ClassCastException {
+        int index = key.index();
+        StampedLock l = lock;
+        long stamp = l == null ? 0 : l.tryOptimisticRead();
+        int pos = find(index);
+        Object val = valueAt(pos);
+        long bits = primAt(pos);
+        if (l != null && !l.validate(stamp)) {
+            stamp = l.readLock();
+            try {
+                pos = find(index);
+                val = valueAt(pos);
+                bits = primAt(pos);
+            } finally {
+                l.unlockRead(stamp);
+            }
+        }
+        if (val == LONG_VALUE) return bits;
+        if (val == DOUBLE_VALUE) return (long) Double.longBitsToDouble(bits);
+        if (val == null || val == NULL_VALUE) return 0;
+        return ((Number) val).longValue();
+    }
+    
+    /**
+     * Same as {@link #getLong(PropertyKey) getLong(PropertyKey.of(propertyName))}.
+     * @param propertyName the name of the property
+     * @return the value of the property or 0 if it is absent or {@code null}
+     * @throws ClassCastException if the property holds a value that is not a
+     * {@code Number}
+     */
+    public long getLong(String propertyName) throws ClassCastException {
+        PropertyKey<?> key = PropertyKey.lookup(propertyName);
+        return key == null ? 0 : getLong(key);
+    }
+    
+    /**
+     * Returns the value of the specified {@code double} property, without
+     * boxing. If the property holds a {@code long} or another {@link Number},
+     * its value is converted to {@code double}.
+     * @param key the key of the property
+     * @return the value of the property or 0 if it is absent or {@code null}
+     * @throws ClassCastException if the property holds a value that is not a
+     * {@code Number}
+     * @see #setDouble(PropertyKey, double)
+     */
+    public double getDouble(PropertyKey<?> key) throws ClassCastException {
+        int index = key.index();
+        StampedLock l = lock;
+        long stamp = l == null ? 0 : l.tryOptimisticRead();
+        int pos = find(index);
+        Object val = valueAt(pos);
+        long bits = primAt(pos);
+        if (l != null && !l.validate(stamp)) {
+            stamp = l.readLock();
+            try {
+                pos = find(index);
+                val = valueAt(pos);
+                bits = primAt(pos);
+            } finally {
+                l.unlockRead(stamp);
+            }
         }
+        if (val == DOUBLE_VALUE) return Double.longBitsToDouble(bits);
+        if (val == LONG_VALUE) return bits;
+        if (val == null || val == NULL_VALUE) return 0;
+        return ((Number) val).doubleValue();
+    }
+    
+    /**
+     * Same as {@link #getDouble(PropertyKey) getDouble(PropertyKey.of(propertyName))}.
+     * @param propertyName the name of the property
+     * @return the value of the property or 0 if it is absent or {@code null}
+     * @throws ClassCastException if the property holds a value that is not a
+     * {@code Number}
+     */
+    public double getDouble(String propertyName) throws ClassCastException {
+        PropertyKey<?> key = PropertyKey.lookup(propertyName);
+        return key == null ? 0 : getDouble(key);
+    }
+    
+    /**
+     * Sets the specified property to the given {@code long} value, which is
+     * stored unboxed, whatever the key. {@link #get(PropertyKey)} returns it
+     * as a {@code Long}. Once the entity holds the property, setting it
+     * allocates nothing unless a listener or the event bus needs an event. <p>
+     * If the property was absent or held a {@code long}, property listeners
+     * receive a {@link PrimitivePropertyEvent}; otherwise a regular
+     * {@link PropertyEvent}. No event object is created if there are no
+     * property listeners.
+     * @param key the key of the property
+     * @param value the new value
+     * @see #addPropertyListener
+     */
+    public void setLong(PropertyKey<?> key, long value) {
+        putPrimitive(key, LONG_VALUE, value);
     }
     
+    /**
+     * Same as {@link #setLong(PropertyKey, long) setLong(PropertyKey.of(propertyName), value)}.
+     * @param propertyName the name of the property
+     * @param value the new value
+     */
+    public void setLong(String propertyName, long value) {
+        putPrimitive(PropertyKey.of(propertyName), LONG_VALUE, value);
+    }
+    
+    /**
+     * Sets the specified property to the given {@code double} value, which is
+     * stored unboxed, whatever the key. {@link #get(PropertyKey)} returns it
+     * as a {@code Double}. Once the entity holds the property, setting it
+     * allocates nothing unless a listener or the event bus needs an event. <p>
+     * If the property was absent or held a {@code double}, property listeners
+     * receive a {@link PrimitivePropertyEvent}; otherwise a regular
+     * {@link PropertyEvent}. No event object is created if there are no
+     * property listeners.
+     * @param key the key of the property
+     * @param value the new value
+     * @see #addPropertyListener
+     */
+    public void setDouble(PropertyKey<?> key, double value) {
+        putPrimitive(key, DOUBLE_VALUE, Double.doubleToRawLongBits(value));
+    }
+    
+    /**
+     * Same as {@link #setDouble(PropertyKey, double) setDouble(PropertyKey.of(propertyName), value)}.
+     * @param propertyName the name of the property
+     * @param value the new value
+     */
+    public void setDouble(String propertyName, double value) {
+        putPrimitive(PropertyKey.of(propertyName), DOUBLE_VALUE, Double.doubleToRawLongBits(value));
+    }
+    
+    private void putPrimitive(PropertyKey<?> key, Object tag, long bits) {
+        int index = key.index();
+        Object old;
+        long oldBits;
+        boolean sameKind;
+        Object oldValue;
+        long stamp = writeLock();
+        try {
+            int pos = slot(index);
+            old = propValues[pos];
+            oldBits = primAt(pos);
+            sameKind = old == null || old == tag;
+            boolean held = holdEvents(propertyListened());
+            oldValue = held || !sameKind && propertyObserved()
+                    ? decode(old, oldBits) : null;
+            putPrim(pos, tag, bits);
+            if (held) {
+                pending.property(key.name(), oldValue, null);
+                return;
+            }
+        } finally {
+            unlockWrite(stamp);
+        }
+        
+        if (!sameKind) {
+            if (propertyObserved()) {
+                dispatchPropertyEvent(Collections.singletonMap(key.name(), oldValue), null);
+            }
+            return;
+        }
+        boolean hadPrevious = old != null;
+        boolean doubleValued = tag == DOUBLE_VALUE;
+        EventBus bus = eventBus;
+        if (bus != null) {
+            if (hadPrevious) {
+                bus.publishPrimitiveProperty(this, null, key, doubleValued, oldBits, bits);
+            } else {
+                bus.publishProperty(this, null, key, null);
+            }
+        }
+        Extras x = extras;
+        if (x == null || x.propertyListeners == null
+                && Listeners.keyed(x.keyedPropertyListeners, key.index()) == null) return;
+        if (reuseEvents) {
+            EventPool pool = EventPool.current();
+            PrimitivePropertyEvent e = pool.acquirePrimitiveProperty(this, null, key,
+                    doubleValued, hadPrevious, hadPrevious ? oldBits : 0, bits);
+            try {
+                Listeners.fire(Extras.PROPERTY_LISTENERS, x, e);
+                Listeners.fireKeyed(Extras.KEYED_PROPERTY_LISTENERS, x, key.index(), e);
+            } finally {
+                pool.release(e);
+            }
+        } else {
+            PrimitivePropertyEvent e = new PrimitivePropertyEvent(this, null,
+                    key, doubleValued, hadPrevious, hadPrevious ? oldBits : 0, bits);
+            Listeners.fire(Extras.PROPERTY_LISTENERS, x, e);
+            Listeners.fireKeyed(Extras.KEYED_PROPERTY_LISTENERS, x, key.index(), e);
+        }
+    }
+    
+    /**
+     * Returns the slot of the property with the given key index or a
+     * negative value if this entity has no slot for it; safe to call without
+     * the lock.
+     */
+    private int find(int index) {
+        int[] keys = propKeys;
+        if (keys == null) return -1;
+        return Arrays.binarySearch(keys, 0, Math.min(propCount, keys.length), index);
+    }
+    
+    /**
+     * Returns the slot of the property with the given key index, adding an
+     * empty slot if there is none. Called with the write lock held.
+     */
+    private int slot(int index) {
+        int pos = find(index);
+        if (pos >= 0) return pos;
+        pos = -pos - 1;
+        int n = propCount;
+        int[] keys = propKeys;
+        Object[] values = propValues;
+        long[] prims = propPrims;
+        if (keys == null) {
+            keys = new int[4];
+            values = new Object[4];
+        } else if (n == keys.length) {
+            keys = Arrays.copyOf(keys, n * 2);
+            values = Arrays.copyOf(values, n * 2);
+            if (prims != null) {
+                prims = Arrays.copyOf(prims, n * 2);
+            }
+        }
+        System.arraycopy(keys, pos, keys, pos + 1, n - pos);
+        System.arraycopy(values, pos, values, pos + 1, n - pos);
+        if (prims != null) {
+            System.arraycopy(prims, pos, prims, pos + 1, n - pos);
+            prims[pos] = 0;
+        }
+        keys[pos] = index;
+        values[pos] = null;
+        propKeys = keys;
+        propValues = values;
+        propPrims = prims;
+        propCount = n + 1;
+        return pos;
+    }
+    
+    /**
+     * Stores the given value at the given slot and returns the previous
+     * content of the slot ({@code null} if absent). Decode it with
+     * {@link #slotValue}.
+     */
+    private Object putSlot(int pos, Object val) {
+        Object old = propValues[pos];
+        propValues[pos] = val == null ? NULL_VALUE : val;
+        return old;
+    }
+    
+    /**
+     * Stores the given tagged primitive value at the given slot.
+     */
+    private void putPrim(int pos, Object tag, long bits) {
+        if (propPrims == null) {
+            propPrims = new long[propValues.length];
+        }
+        propValues[pos] = tag;
+        propPrims[pos] = bits;
+    }
+    
+    /**
+     * Converts the raw content of the given slot to the property value,
+     * boxing primitive values.
+     */
+    private Object slotValue(Object raw, int pos) {
+        return decode(raw, raw == LONG_VALUE || raw == DOUBLE_VALUE ? propPrims[pos] : 0);
+    }
+    
+    /**
+     * Converts the given raw slot content and unboxed bits to the property
+     * value.
+     */
+    private static Object decode(Object raw, long bits) {
+        if (raw == NULL_VALUE) return null;
+        if (raw == LONG_VALUE) return bits;
+        if (raw == DOUBLE_VALUE) return Double.longBitsToDouble(bits);
+        return raw;
+    }
+    
+    /**
+     * Returns the raw content of the given slot or {@code null}; safe to call
+     * without the lock.
+     */
+    private Object valueAt(int pos) {
+        Object[] values = propValues;
+        return pos >= 0 && values != null && pos < values.length ? values[pos] : null;
+    }
+    
+    /**
+     * Returns the unboxed bits of the given slot or 0; safe to call without
+     * the lock.
+     */
+    private long primAt(int pos) {
+        long[] prims = propPrims;
+        return pos >= 0 && prims != null && pos < prims.length ? prims[pos] : 0;
+    }
+    
+    /**
+     * Publishes the given property changes to the event bus and notifies the
+     * property listeners. Called without the lock.
+     */
     private void dispatchPropertyEvent(Map<String, Object> oldValues, Object move) {
-        propertyListeners = fireEvent(propertyListeners,
-                new PropertyEvent(this, move, oldValues));
+        EventBus bus = eventBus;
+        if (bus != null) {
+            oldValues.forEach((name, old) ->
+                    bus.publishProperty(this, move, PropertyKey.of(name), old));
+        }
+        Extras x = extras;
+        if (x == null || x.propertyListeners == null && x.keyedPropertyListeners == null) return;
+        PropertyEvent e = new PropertyEvent(this, move, oldValues);
+        Listeners.fire(Extras.PROPERTY_LISTENERS, x, e);
+        if (x.keyedPropertyListeners != null) {
+            for (String name : oldValues.keySet()) {
+                PropertyKey<?> key = PropertyKey.lookup(name);
+                if (key != null) {
+                    Listeners.fireKeyed(Extras.KEYED_PROPERTY_LISTENERS, x, key.index(), e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns {@code true} if property changes have to be reported to
+     * listeners.
+     */
+    private boolean propertyListened() {
+        Extras x = extras;
+        return x != null && (x.propertyListeners != null || x.keyedPropertyListeners != null);
+    }
+    
+    private Predicate<?>[] positListeners() {
+        Extras x = extras;
+        return x == null ? null : x.positListeners;
+    }
+    
+    private Predicate<?>[] stateListeners() {
+        Extras x = extras;
+        return x == null ? null : x.stateListeners;
+    }
+    
+    /**
+     * Returns the rarely used fields of this entity, allocating them if
+     * needed.
+     */
+    private Extras extras() {
+        Extras x = extras;
+        if (x == null) {
+            x = new Extras();
+            if (!EXTRAS.compareAndSet(this, null, x)) {
+                x = extras;
+            }
+        }
+        return x;
+    }
+    
+    /**
+     * Returns {@code true} if property changes have to be reported to
+     * listeners or to the event bus.
+     */
+    private boolean propertyObserved() {
+        return propertyListened() || eventBus != null;
     }
 
 // function management
 
+    /**
+     * Returns the function record of this entity, which may be used to add
+     * functions of this entity only. An entity starts with a shared empty
+     * record; its own modifiable record is created by the first call of this
+     * method or of {@link #setFunctionRecord}.
+     * @return the function record of this entity
+     */
     public FunctionRecord getFunctionRecord() {
-        return functionRecord;
+        FunctionRecord r = functionRecord;
+        if (r == EmptyFunctionRecord.INSTANCE) {
+            FunctionRecord created = new HashFunctionRecord();
+            // another thread may have created or set the record meanwhile
+            r = FUNCTION_RECORD.compareAndSet(this, r, created) ? created : functionRecord;
+        }
+        return r;
     }
 
     public void setFunctionRecord(FunctionRecord functionRecord) {
@@ -657,10 +1918,132 @@ public class Entity {
         return functionRecord.apply(this, func, args);
     }
     
+    /**
+     * Calls the function of the given handle with the given arguments. <p>
+     * Same as {@link #call(String, Object...) call(func.name(), args)}, but
+     * the function is resolved once and then reused while no function record
+     * changes, so repeated calls cost no name lookup.
+     * @param <T> the type of the result
+     * @param func the handle of the function to call
+     * @param args the arguments of the call
+     * @return the result of the function
+     * @throws NoSuchElementException if there is no such function
+     * @throws ClassCastException if the result is not of type {@code T}
+     * @see FunctionHandle
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T call(FunctionHandle func, Object... args)
+            throws NoSuchElementException, ClassCastException {
+        return (T) resolve(func).apply(this, args);
+    }
+    
+    /**
+     * Calls the function of the given handle without arguments. If the
+     * function is an {@link EntityFunction}, no argument array is allocated.
+     * @param <T> the type of the result
+     * @param func the handle of the function to call
+     * @return the result of the function
+     * @throws NoSuchElementException if there is no such function
+     * @throws ClassCastException if the result is not of type {@code T}
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T call(FunctionHandle func)
+            throws NoSuchElementException, ClassCastException {
+        BiFunction<Entity, Object[], Object> f = resolve(func);
+        return (T) (f instanceof EntityFunction
+                ? ((EntityFunction) f).apply0(this)
+                : f.apply(this, EntityFunction.NO_ARGS));
+    }
+    
+    /**
+     * Calls the function of the given handle with one argument. If the
+     * function is an {@link EntityFunction}, no argument array is allocated.
+     * @param <T> the type of the result
+     * @param func the handle of the function to call
+     * @param arg0 the argument
+     * @return the result of the function
+     * @throws NoSuchElementException if there is no such function
+     * @throws ClassCastException if the result is not of type {@code T}
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T call(FunctionHandle func, Object arg0)
+            throws NoSuchElementException, ClassCastException {
+        BiFunction<Entity, Object[], Object> f = resolve(func);
+        return (T) (f instanceof EntityFunction
+                ? ((EntityFunction) f).apply1(this, arg0)
+                : f.apply(this, new Object[] {arg0}));
+    }
+    
+    /**
+     * Calls the function of the given handle with two arguments. If the
+     * function is an {@link EntityFunction}, no argument array is allocated.
+     * @param <T> the type of the result
+     * @param func the handle of the function to call
+     * @param arg0 the first argument
+     * @param arg1 the second argument
+     * @return the result of the function
+     * @throws NoSuchElementException if there is no such function
+     * @throws ClassCastException if the result is not of type {@code T}
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T call(FunctionHandle func, Object arg0, Object arg1)
+            throws NoSuchElementException, ClassCastException {
+        BiFunction<Entity, Object[], Object> f = resolve(func);
+        return (T) (f instanceof EntityFunction
+                ? ((EntityFunction) f).apply2(this, arg0, arg1)
+                : f.apply(this, new Object[] {arg0, arg1}));
+    }
+    
+    /**
+     * Calls the function of the given handle with a {@code long} argument
+     * and result. If the function is an {@link EntityFunction}, neither the
+     * argument nor the result is boxed.
+     * @param func the handle of the function to call
+     * @param arg the argument
+     * @return the result of the function
+     * @throws NoSuchElementException if there is no such function
+     * @throws ClassCastException if the result is not a {@link Number}
+     * @see EntityFunction#ofLong
+     */
+    public long callLong(FunctionHandle func, long arg)
+            throws NoSuchElementException, ClassCastException {
+        BiFunction<Entity, Object[], Object> f = resolve(func);
+        return f instanceof EntityFunction
+                ? ((EntityFunction) f).applyLong(this, arg)
+                : ((Number) f.apply(this, new Object[] {arg})).longValue();
+    }
+    
+    /**
+     * Calls the function of the given handle with a {@code double} argument
+     * and result. If the function is an {@link EntityFunction}, neither the
+     * argument nor the result is boxed.
+     * @param func the handle of the function to call
+     * @param arg the argument
+     * @return the result of the function
+     * @throws NoSuchElementException if there is no such function
+     * @throws ClassCastException if the result is not a {@link Number}
+     * @see EntityFunction#ofDouble
+     */
+    public double callDouble(FunctionHandle func, double arg)
+            throws NoSuchElementException, ClassCastException {
+        BiFunction<Entity, Object[], Object> f = resolve(func);
+        return f instanceof EntityFunction
+                ? ((EntityFunction) f).applyDouble(this, arg)
+                : ((Number) f.apply(this, new Object[] {arg})).doubleValue();
+    }
+    
+    private BiFunction<Entity, Object[], Object> resolve(FunctionHandle func)
+            throws NoSuchElementException {
+        BiFunction<Entity, Object[], Object> f = functionRecord.resolve(func);
+        if (f == null)
+            throw new NoSuchElementException("Not found function named: "+func.name());
+        return f;
+    }
+    
     
     @Override
     public String toString() {
         return super.toString()+ " name: "+(name==null?"null":"\""+name+"\"")
-                +", posit: "+posit+", state: "+state;
+                +", posit: "+getPosit()+", state: "+getState();
     }
 }
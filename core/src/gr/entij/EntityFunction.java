@@ -0,0 +1,209 @@
+package gr.entij;
+
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Entity function that may also be called with a fixed number of arguments,
+ * without allocating an argument array or boxing primitive arguments. <p>
+ * An {@code EntityFunction} is a {@code BiFunction<Entity, Object[], Object>},
+ * so it may be stored in any {@link FunctionRecord} and called by name with
+ * varargs as usual. In addition, {@link Entity#call(FunctionHandle)},
+ * {@link Entity#call(FunctionHandle, Object)},
+ * {@link Entity#call(FunctionHandle, Object, Object)},
+ * {@link Entity#callLong(FunctionHandle, long)} and
+ * {@link Entity#callDouble(FunctionHandle, double)} call the specialized
+ * method of the same arity directly. The default implementations of the
+ * specialized methods delegate to {@link #apply(Object, Object)
+ * apply(Entity, Object[])}, so only the shapes a function is actually
+ * called with need to be implemented; the static factories implement one
+ * shape and derive the varargs form from it:
+ * <pre>{@code
+ * record.setFunc("damage", EntityFunction.ofLong((e, amount) -> e.getLong(HP) - amount));
+ * long hp = entity.callLong(DAMAGE, 10);
+ * }</pre>
+ */
+public interface EntityFunction extends BiFunction<Entity, Object[], Object> {
+
+    /**
+     * Function of an entity and two arguments.
+     */
+    @FunctionalInterface
+    public static interface Binary {
+        Object apply(Entity e, Object arg0, Object arg1);
+    }
+
+    /**
+     * Function of an entity and a {@code long}, returning a {@code long}.
+     */
+    @FunctionalInterface
+    public static interface LongOp {
+        long apply(Entity e, long arg);
+    }
+
+    /**
+     * Function of an entity and a {@code double}, returning a {@code double}.
+     */
+    @FunctionalInterface
+    public static interface DoubleOp {
+        double apply(Entity e, double arg);
+    }
+
+    /** Shared empty argument array. */
+    static final Object[] NO_ARGS = {};
+
+    /**
+     * Calls this function without arguments.
+     * @param e the entity the function is called on
+     * @return the result of the function
+     */
+    default Object apply0(Entity e) {
+        return apply(e, NO_ARGS);
+    }
+
+    /**
+     * Calls this function with one argument.
+     * @param e the entity the function is called on
+     * @param arg0 the argument
+     * @return the result of the function
+     */
+    default Object apply1(Entity e, Object arg0) {
+        return apply(e, new Object[] {arg0});
+    }
+
+    /**
+     * Calls this function with two arguments.
+     * @param e the entity the function is called on
+     * @param arg0 the first argument
+     * @param arg1 the second argument
+     * @return the result of the function
+     */
+    default Object apply2(Entity e, Object arg0, Object arg1) {
+        return apply(e, new Object[] {arg0, arg1});
+    }
+
+    /**
+     * Calls this function with one {@code long} argument and a {@code long}
+     * result.
+     * @param e the entity the function is called on
+     * @param arg the argument
+     * @return the result of the function
+     * @throws ClassCastException if the result is not a {@link Number}
+     */
+    default long applyLong(Entity e, long arg) throws ClassCastException {
+        return ((Number) apply(e, new Object[] {arg})).longValue();
+    }
+
+    /**
+     * Calls this function with one {@code double} argument and a
+     * {@code double} result.
+     * @param e the entity the function is called on
+     * @param arg the argument
+     * @return the result of the function
+     * @throws ClassCastException if the result is not a {@link Number}
+     */
+    default double applyDouble(Entity e, double arg) throws ClassCastException {
+        return ((Number) apply(e, new Object[] {arg})).doubleValue();
+    }
+
+    /**
+     * Returns a function of no arguments; any arguments of a varargs call are
+     * ignored.
+     * @param func the implementation of the function
+     * @return a function of no arguments
+     */
+    public static EntityFunction of0(Function<Entity, ?> func) {
+        return new EntityFunction() {
+            @Override
+            public Object apply(Entity e, Object[] args) {
+                return func.apply(e);
+            }
+
+            @Override
+            public Object apply0(Entity e) {
+                return func.apply(e);
+            }
+        };
+    }
+
+    /**
+     * Returns a function of one argument; a varargs call passes its first
+     * argument or {@code null}.
+     * @param func the implementation of the function
+     * @return a function of one argument
+     */
+    public static EntityFunction of1(BiFunction<Entity, Object, ?> func) {
+        return new EntityFunction() {
+            @Override
+            public Object apply(Entity e, Object[] args) {
+                return func.apply(e, args.length > 0 ? args[0] : null);
+            }
+
+            @Override
+            public Object apply1(Entity e, Object arg0) {
+                return func.apply(e, arg0);
+            }
+        };
+    }
+
+    /**
+     * Returns a function of two arguments; a varargs call passes its first
+     * two arguments, missing ones as {@code null}.
+     * @param func the implementation of the function
+     * @return a function of two arguments
+     */
+    public static EntityFunction of2(Binary func) {
+        return new EntityFunction() {
+            @Override
+            public Object apply(Entity e, Object[] args) {
+                return func.apply(e, args.length > 0 ? args[0] : null,
+                        args.length > 1 ? args[1] : null);
+            }
+
+            @Override
+            public Object apply2(Entity e, Object arg0, Object arg1) {
+                return func.apply(e, arg0, arg1);
+            }
+        };
+    }
+
+    /**
+     * Returns a function of one {@code long}; a varargs call must pass a
+     * {@link Number} and gets a {@link Long}.
+     * @param func the implementation of the function
+     * @return a function of one {@code long}
+     */
+    public static EntityFunction ofLong(LongOp func) {
+        return new EntityFunction() {
+            @Override
+            public Object apply(Entity e, Object[] args) {
+                return func.apply(e, ((Number) args[0]).longValue());
+            }
+
+            @Override
+            public long applyLong(Entity e, long arg) {
+                return func.apply(e, arg);
+            }
+        };
+    }
+
+    /**
+     * Returns a function of one {@code double}; a varargs call must pass a
+     * {@link Number} and gets a {@link Double}.
+     * @param func the implementation of the function
+     * @return a function of one {@code double}
+     */
+    public static EntityFunction ofDouble(DoubleOp func) {
+        return new EntityFunction() {
+            @Override
+            public Object apply(Entity e, Object[] args) {
+                return func.apply(e, ((Number) args[0]).doubleValue());
+            }
+
+            @Override
+            public double applyDouble(Entity e, double arg) {
+                return func.apply(e, arg);
+            }
+        };
+    }
+}
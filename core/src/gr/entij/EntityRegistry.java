@@ -0,0 +1,146 @@
+package gr.entij;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Assigns dense integer ids to entities and finds entities by id in O(1)
+ * time. <p>
+ * The ids of a registry are small non-negative integers: an id is the lowest
+ * unused one or one freed earlier, since the id of an entity is released
+ * when it is {@linkplain Entity#destroy() destroyed} and is then reused by
+ * the next registered entity. So ids are suitable for indexing arrays and
+ * bitsets and for referring to entities over the network or in saved games.
+ * A destroyed entity has no id. <p>
+ * An entity is registered either explicitly by {@link #register(Entity)} or,
+ * if a registry is installed by {@link Entity#setDefaultRegistry}, when it is
+ * created. An {@link EntityStore} is a registry whose ids are the handles of
+ * its entities. <p>
+ * A registry holds its entities strongly until they are destroyed.
+ * Registration and release are thread safe; lookups are not synchronized and
+ * may miss entities registered concurrently.
+ * @see Entity#getId()
+ */
+public class EntityRegistry {
+
+    Entity[] entities;
+    int top;
+    private int size;
+
+    private int[] freeIds = new int[8];
+    private int freeCount;
+
+    /**
+     * Creates an empty registry with an initial capacity of 16 entities.
+     */
+    public EntityRegistry() {
+        this(16);
+    }
+
+    /**
+     * Creates an empty registry with the given initial capacity.
+     * @param initialCapacity the number of entities the registry can hold
+     * before growing
+     * @throws IllegalArgumentException if {@code initialCapacity} is negative
+     */
+    public EntityRegistry(int initialCapacity) throws IllegalArgumentException {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException("initialCapacity must be >= 0; found: "+initialCapacity);
+        entities = new Entity[initialCapacity];
+    }
+
+    /**
+     * Registers the given entity, assigning it an id of this registry. If
+     * this registry is an {@link EntityStore}, the posit and state of the
+     * entity are moved into it.
+     * @param entity the entity to register
+     * @return the id of the entity
+     * @throws NullPointerException if {@code entity} is {@code null}
+     * @throws IllegalStateException if {@code entity} is already registered
+     * in a registry
+     */
+    public int register(Entity entity) throws NullPointerException, IllegalStateException {
+        Objects.requireNonNull(entity, "entity cannot be null");
+        return entity.attach(this);
+    }
+
+    /**
+     * Returns the number of registered entities.
+     * @return the number of registered entities
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns an upper bound of the ids in use; all the ids of this registry
+     * are lower than it. Useful for sizing arrays and bitsets indexed by id.
+     * @return an upper bound of the ids in use
+     */
+    public int idLimit() {
+        return top;
+    }
+
+    /**
+     * Returns the entity with the given id or {@code null} if the id is not
+     * in use.
+     * @param id the id of the entity
+     * @return the entity with the given id or {@code null}
+     */
+    public Entity get(int id) {
+        final Entity[] entities = this.entities;
+        return id >= 0 && id < entities.length ? entities[id] : null;
+    }
+
+    /**
+     * Calls the given action for every registered entity, in id order.
+     * @param action the action to perform
+     */
+    public void forEach(Consumer<? super Entity> action) {
+        final Entity[] entities = this.entities;
+        for (int i = 0, n = Math.min(top, entities.length); i < n; i++) {
+            if (entities[i] != null) {
+                action.accept(entities[i]);
+            }
+        }
+    }
+
+    /**
+     * Assigns an id to the given entity.
+     * @return the id of the entity
+     */
+    synchronized int allocate(Entity entity) {
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            if (top == entities.length) {
+                grow(Math.max(16, entities.length + (entities.length >> 1)));
+            }
+            id = top++;
+        }
+        entities[id] = entity;
+        size++;
+        return id;
+    }
+
+    /**
+     * Frees the given id, which may then be reused.
+     */
+    synchronized void release(int id) {
+        entities[id] = null;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+        size--;
+    }
+
+    /**
+     * Grows the storage indexed by id to the given capacity.
+     */
+    void grow(int newCapacity) {
+        entities = Arrays.copyOf(entities, newCapacity);
+    }
+}
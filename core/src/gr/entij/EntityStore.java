@@ -0,0 +1,208 @@
+package gr.entij;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.LongPredicate;
+
+/**
+ * Dense, column oriented storage for the position and the state of a large
+ * number of entities. <p>
+ * Each entity created with {@link Entity#Entity(EntityStore, String, long, long)}
+ * is assigned an integer <em>handle</em> and its position and state are kept
+ * in primitive {@code long[]} columns of this store at that handle, instead of
+ * in fields of the entity object. The entity acts as a view over its slot, so
+ * {@link Entity#getPosit()}, {@link Entity#setPosit(long)} and the rest of the
+ * {@code Entity} API work as usual. <p>
+ * The benefit is that bulk scans over all the stored entities (for example
+ * "all entities whose state has bit 3 set") run as tight loops over the
+ * columns instead of visiting every entity object. <p>
+ * A store is an {@link EntityRegistry} and the handle of a stored entity is
+ * its {@linkplain Entity#getId() id}. Handles are recycled: when a stored
+ * entity is {@linkplain Entity#destroy() destroyed} its slot is released and
+ * may be reused by a new entity. The destroyed entity keeps its last position
+ * and state. An existing entity may be moved into a store by
+ * {@link #register(Entity)}. <p>
+ * The columns are made of fixed size chunks that are never moved or copied,
+ * so {@linkplain Entity#setThreadSafe thread-safe} entities may change their
+ * position and state from several threads while other entities are
+ * registered or released. The bulk scans are not synchronized and may miss
+ * concurrent changes.
+ * @see Entity#Entity(EntityStore, String, long, long)
+ */
+public class EntityStore extends EntityRegistry {
+
+    /** Number of handles of a column chunk is {@code 1 << CHUNK_SHIFT}. */
+    static final int CHUNK_SHIFT = 8;
+    static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    /** The column chunks; only replaced by larger arrays of the same chunks. */
+    private volatile long[][] posits;
+    private volatile long[][] states;
+
+    /**
+     * Creates an empty store with an initial capacity of 16 entities.
+     */
+    public EntityStore() {
+        this(16);
+    }
+
+    /**
+     * Creates an empty store with the given initial capacity.
+     * @param initialCapacity the number of entities the store can hold before
+     * growing its columns
+     * @throws IllegalArgumentException if {@code initialCapacity} is negative
+     */
+    public EntityStore(int initialCapacity) throws IllegalArgumentException {
+        super(initialCapacity);
+        posits = new long[0][];
+        states = new long[0][];
+        addChunks(initialCapacity);
+    }
+
+    /**
+     * Returns the position at the given handle or 0 if the handle is out of
+     * the columns, e.g. a stale handle read without the lock of its entity.
+     */
+    long posit(int handle) {
+        return get(posits, handle);
+    }
+
+    long state(int handle) {
+        return get(states, handle);
+    }
+
+    void setPosit(int handle, long posit) {
+        posits[handle >>> CHUNK_SHIFT][handle & CHUNK_MASK] = posit;
+    }
+
+    void setState(int handle, long state) {
+        states[handle >>> CHUNK_SHIFT][handle & CHUNK_MASK] = state;
+    }
+
+    private static long get(long[][] column, int handle) {
+        int chunk = handle >>> CHUNK_SHIFT;
+        return handle >= 0 && chunk < column.length
+                ? column[chunk][handle & CHUNK_MASK] : 0;
+    }
+
+    /**
+     * Calls the given action for every entity whose state has all the bits of
+     * {@code mask} set.
+     * @param mask the bits that must be set
+     * @param action the action to perform
+     */
+    public void forEachWithStateBits(long mask, Consumer<? super Entity> action) {
+        forEachImpl(states, s -> (s & mask) == mask, action);
+    }
+
+    /**
+     * Returns the number of entities whose state has all the bits of
+     * {@code mask} set.
+     * @param mask the bits that must be set
+     * @return the number of matching entities
+     */
+    public int countWithStateBits(long mask) {
+        final long[][] states = this.states;
+        final Entity[] entities = this.entities;
+        int count = 0;
+        for (int c = 0, n = Math.min(top, entities.length);
+                c < states.length && c << CHUNK_SHIFT < n; c++) {
+            final long[] chunk = states[c];
+            for (int j = 0, base = c << CHUNK_SHIFT,
+                    m = Math.min(chunk.length, n - base); j < m; j++) {
+                if ((chunk[j] & mask) == mask && entities[base + j] != null) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns a new {@code EntitySet} with the entities whose state has all
+     * the bits of {@code mask} set.
+     * @param mask the bits that must be set
+     * @return the matching entities
+     */
+    public EntitySet withStateBits(long mask) {
+        EntitySet result = new EntitySet();
+        forEachWithStateBits(mask, result::add);
+        return result;
+    }
+
+    /**
+     * Calls the given action for every entity whose state matches the given
+     * predicate.
+     * @param pred the predicate on the state
+     * @param action the action to perform
+     */
+    public void forEachState(LongPredicate pred, Consumer<? super Entity> action) {
+        forEachImpl(states, pred, action);
+    }
+
+    /**
+     * Calls the given action for every entity whose position matches the given
+     * predicate.
+     * @param pred the predicate on the position
+     * @param action the action to perform
+     */
+    public void forEachPosit(LongPredicate pred, Consumer<? super Entity> action) {
+        forEachImpl(posits, pred, action);
+    }
+
+    private void forEachImpl(long[][] column, LongPredicate pred, Consumer<? super Entity> action) {
+        Objects.requireNonNull(pred, "predicate cannot be null");
+        final Entity[] entities = this.entities;
+        for (int c = 0, n = Math.min(top, entities.length);
+                c < column.length && c << CHUNK_SHIFT < n; c++) {
+            final long[] chunk = column[c];
+            for (int j = 0, base = c << CHUNK_SHIFT,
+                    m = Math.min(chunk.length, n - base); j < m; j++) {
+                Entity e = entities[base + j];
+                if (e != null && pred.test(chunk[j])) {
+                    action.accept(e);
+                }
+            }
+        }
+    }
+
+    synchronized int allocate(Entity entity, long posit, long state) {
+        int handle = allocate(entity);
+        setPosit(handle, posit);
+        setState(handle, state);
+        return handle;
+    }
+
+    @Override
+    synchronized void release(int handle) {
+        setPosit(handle, 0);
+        setState(handle, 0);
+        super.release(handle);
+    }
+
+    @Override
+    void grow(int newCapacity) {
+        addChunks(newCapacity);
+        super.grow(newCapacity);
+    }
+
+    /**
+     * Adds chunks to the columns until they hold the given number of
+     * handles. The existing chunks are kept, so concurrent writes to them
+     * are not lost.
+     */
+    private void addChunks(int capacity) {
+        int count = (capacity + CHUNK_MASK) >>> CHUNK_SHIFT;
+        long[][] p = posits, s = states;
+        if (count <= p.length) return;
+        p = Arrays.copyOf(p, count);
+        s = Arrays.copyOf(s, count);
+        for (int c = posits.length; c < count; c++) {
+            p[c] = new long[1 << CHUNK_SHIFT];
+            s[c] = new long[1 << CHUNK_SHIFT];
+        }
+        posits = p;
+        states = s;
+    }
+}
@@ -0,0 +1,459 @@
+package gr.entij;
+
+import gr.entij.event.EntityEvent;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Central, preallocated ring buffer of entity changes. <p>
+ * When a bus is installed by {@link Entity#setEventBus(EventBus)}, every
+ * entity publishes its posit, state, property and lifecycle changes to it,
+ * whether it has listeners or not. Publishing writes the change into a
+ * preallocated {@link Slot} and does not allocate. Changes held back by
+ * {@link Entity#batch batches} or an {@link EventQueue} are published, as a
+ * net change, when they are delivered to listeners. <p>
+ * Consumers, such as renderers, sound or persistence, {@link #subscribe()
+ * subscribe} and then {@link Subscription#poll poll} the bus on their own
+ * threads, processing all the available changes in one batch. A consumer
+ * only sees changes published after it subscribed. <p>
+ * The bus holds a fixed number of slots; a publisher that gets a full
+ * capacity ahead of the slowest subscription waits for it, but at most for
+ * the <em>maximum wait</em> of the bus. Then the subscriptions still a full
+ * capacity behind are marked as {@linkplain Subscription#isLagged() lagged}
+ * and the publisher goes on without them, so a stalled or abandoned
+ * consumer never stalls the simulation. A lagged subscription skips to the
+ * latest changes on its next poll and counts the changes it
+ * {@linkplain Subscription#missed() missed}. So, the capacity should be
+ * large enough to absorb the changes of a few ticks. Publishing is safe from
+ * multiple threads.
+ * @see Entity#setEventBus(EventBus)
+ */
+public final class EventBus {
+
+    /**
+     * The kind of change a {@link Slot} describes.
+     */
+    public static enum Kind {
+        /** The position of the source changed. */
+        POSIT,
+        /** The state of the source changed. */
+        STATE,
+        /** A property of the source changed. */
+        PROPERTY,
+        /** A lifecycle event, see {@link EntityEvent.Type}. */
+        LIFECYCLE
+    }
+
+    /**
+     * A change published on the bus. Slots are reused; a handler must copy
+     * anything it needs after it returns.
+     */
+    public static final class Slot {
+        Kind kind;
+        Entity source;
+        Object move;
+        long previous;
+        long next;
+        PropertyKey<?> key;
+        Object oldValue;
+        byte primitive;
+        EntityEvent.Type type;
+
+        Slot() {}
+
+        /** @return the kind of the change */
+        public Kind kind() {
+            return kind;
+        }
+
+        /** @return the entity that changed */
+        public Entity source() {
+            return source;
+        }
+
+        /** @return the move that caused the change or {@code null} */
+        public Object move() {
+            return move;
+        }
+
+        /**
+         * @return the previous posit or state; for primitive properties, the
+         * previous value (as raw bits for {@code double} properties)
+         */
+        public long previous() {
+            return previous;
+        }
+
+        /**
+         * @return the next posit or state; for primitive properties, the
+         * next value (as raw bits for {@code double} properties)
+         */
+        public long next() {
+            return next;
+        }
+
+        /** @return the key of the property that changed or {@code null} */
+        public PropertyKey<?> key() {
+            return key;
+        }
+
+        /** @return the previous value of the property that changed, boxed if primitive */
+        public Object oldValue() {
+            switch (primitive) {
+                case PRIMITIVE_LONG: return previous;
+                case PRIMITIVE_DOUBLE: return Double.longBitsToDouble(previous);
+                default: return oldValue;
+            }
+        }
+
+        /**
+         * @return {@code true} if the property is primitive; its values are
+         * then in {@link #previous()} and {@link #next()}
+         */
+        public boolean isPrimitive() {
+            return primitive != 0;
+        }
+
+        /** @return the type of a lifecycle event or {@code null} */
+        public EntityEvent.Type type() {
+            return type;
+        }
+    }
+
+    /**
+     * Processes the changes read from the bus.
+     */
+    @FunctionalInterface
+    public static interface Handler {
+        /**
+         * Handles a change.
+         * @param slot the change; valid only during this call
+         * @param sequence the sequence number of the change
+         * @param endOfBatch {@code true} if this is the last change
+         * currently available
+         */
+        void onEvent(Slot slot, long sequence, boolean endOfBatch);
+    }
+
+    /**
+     * The reading position of a consumer of the bus. A subscription must be
+     * polled by one thread at a time.
+     */
+    public final class Subscription {
+        /** Sequence of the next change to read. */
+        volatile long sequence;
+        /** Set by a publisher that stopped waiting for this subscription. */
+        volatile boolean lagged;
+        /** Number of changes skipped after lagging; written by the poller. */
+        volatile long missed;
+
+        Subscription(long sequence) {
+            this.sequence = sequence;
+        }
+
+        /**
+         * Passes all the currently available changes to the given handler.
+         * @param handler the handler of the changes
+         * @return the number of changes handled
+         */
+        public int poll(Handler handler) {
+            return poll(handler, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Passes at most {@code max} of the available changes to the given
+         * handler. If this subscription is {@linkplain #isLagged() lagged},
+         * it first skips to the latest changes. <p>
+         * A subscription marked as lagged while the handler runs stops at
+         * the next change; the slot being handled at that moment may be
+         * overwritten, if the handler keeps it longer than the maximum wait
+         * of the bus.
+         * @param handler the handler of the changes
+         * @param max the maximum number of changes to handle
+         * @return the number of changes handled
+         */
+        public int poll(Handler handler, int max) {
+            if (lagged) {
+                // rejoin at the next claimed sequence; older slots may be overwritten
+                long resume = claimed.get();
+                missed += resume - sequence;
+                sequence = resume;
+                lagged = false;
+            }
+            long first = sequence;
+            long last = first - 1;
+            long limit = Math.min(claimed.get(), first + max);
+            while (last + 1 < limit && published.get(index(last + 1)) == last + 1) {
+                last++;
+            }
+            for (long seq = first; seq <= last; seq++) {
+                if (lagged) {
+                    return (int) (seq - first);
+                }
+                handler.onEvent(slots[index(seq)], seq, seq == last);
+                sequence = seq + 1;
+            }
+            return (int) (last + 1 - first);
+        }
+
+        /**
+         * Returns whether a publisher stopped waiting for this subscription,
+         * because it was a full capacity behind for longer than the maximum
+         * wait of the bus. The next poll skips to the latest changes and
+         * clears the flag.
+         * @return {@code true} if this subscription is lagged
+         */
+        public boolean isLagged() {
+            return lagged;
+        }
+
+        /**
+         * Returns the number of changes this subscription skipped because it
+         * was lagged.
+         * @return the number of changes missed so far
+         */
+        public long missed() {
+            return missed;
+        }
+
+        /**
+         * Returns the number of changes published but not yet handled,
+         * including those a lagged subscription will skip.
+         * @return the number of changes waiting for this subscription
+         */
+        public long lag() {
+            return Math.max(0, claimed.get() - sequence);
+        }
+
+        /**
+         * Ends this subscription; publishers no longer wait for it.
+         */
+        public void close() {
+            unsubscribe(this);
+        }
+    }
+
+    static final byte PRIMITIVE_LONG = 1;
+    static final byte PRIMITIVE_DOUBLE = 2;
+    /** The maximum wait of a bus created by {@link #EventBus(int)}. */
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 10;
+
+    private final Slot[] slots;
+    private final int mask;
+    private final long maxWaitNanos;
+    /** The sequence published at each slot. */
+    private final AtomicLongArray published;
+    /** The next sequence to be claimed by a publisher. */
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile Subscription[] subscriptions = new Subscription[0];
+    /** Lower bound of the sequences of all subscriptions. */
+    private volatile long gatingCache;
+
+    /**
+     * Creates a bus with the given number of slots, whose publishers wait
+     * for a slow subscription at most {@value #DEFAULT_MAX_WAIT_MILLIS}
+     * milliseconds.
+     * @param capacity the number of slots; must be a power of two
+     * @throws IllegalArgumentException if {@code capacity} is not a positive
+     * power of two
+     */
+    public EventBus(int capacity) throws IllegalArgumentException {
+        this(capacity, DEFAULT_MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a bus with the given number of slots and maximum wait.
+     * @param capacity the number of slots; must be a power of two
+     * @param maxWait how long a publisher waits for a subscription a full
+     * capacity behind before marking it as lagged; 0 to never wait
+     * @param unit the unit of {@code maxWait}
+     * @throws IllegalArgumentException if {@code capacity} is not a positive
+     * power of two or {@code maxWait} is negative
+     * @throws NullPointerException if {@code unit} is {@code null}
+     */
+    public EventBus(int capacity, long maxWait, TimeUnit unit)
+            throws IllegalArgumentException, NullPointerException {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("capacity must be a power of two; found: "+capacity);
+        if (maxWait < 0)
+            throw new IllegalArgumentException("maxWait must be >= 0; found: "+maxWait);
+        maxWaitNanos = unit.toNanos(maxWait);
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+        mask = capacity - 1;
+        published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * Returns the number of slots of this bus.
+     * @return the number of slots of this bus
+     */
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Adds a consumer to this bus, that will read the changes published from
+     * now on.
+     * @return the subscription of the new consumer
+     */
+    public synchronized Subscription subscribe() {
+        Subscription sub = new Subscription(claimed.get());
+        Subscription[] subs = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+        subs[subs.length - 1] = sub;
+        subscriptions = subs;
+        return sub;
+    }
+
+    private synchronized void unsubscribe(Subscription sub) {
+        Subscription[] subs = subscriptions;
+        for (int i = 0; i < subs.length; i++) {
+            if (subs[i] == sub) {
+                Subscription[] result = new Subscription[subs.length - 1];
+                System.arraycopy(subs, 0, result, 0, i);
+                System.arraycopy(subs, i + 1, result, i, result.length - i);
+                subscriptions = result;
+                return;
+            }
+        }
+    }
+
+    void publishPosit(Entity source, Object move, long previous, long next) {
+        publishChange(Kind.POSIT, source, move, previous, next);
+    }
+
+    void publishState(Entity source, Object move, long previous, long next) {
+        publishChange(Kind.STATE, source, move, previous, next);
+    }
+
+    private void publishChange(Kind kind, Entity source, Object move, long previous, long next) {
+        if (subscriptions.length == 0) return;
+        long seq = claim();
+        Slot slot = slots[index(seq)];
+        slot.kind = kind;
+        slot.source = source;
+        slot.move = move;
+        slot.previous = previous;
+        slot.next = next;
+        slot.key = null;
+        slot.oldValue = null;
+        slot.primitive = 0;
+        slot.type = null;
+        published.lazySet(index(seq), seq);
+    }
+
+    void publishProperty(Entity source, Object move, PropertyKey<?> key, Object oldValue) {
+        if (subscriptions.length == 0) return;
+        long seq = claim();
+        Slot slot = slots[index(seq)];
+        slot.kind = Kind.PROPERTY;
+        slot.source = source;
+        slot.move = move;
+        slot.previous = 0;
+        slot.next = 0;
+        slot.key = key;
+        slot.oldValue = oldValue;
+        slot.primitive = 0;
+        slot.type = null;
+        published.lazySet(index(seq), seq);
+    }
+
+    void publishPrimitiveProperty(Entity source, Object move, PropertyKey<?> key,
+            boolean doubleValued, long previousBits, long nextBits) {
+        if (subscriptions.length == 0) return;
+        long seq = claim();
+        Slot slot = slots[index(seq)];
+        slot.kind = Kind.PROPERTY;
+        slot.source = source;
+        slot.move = move;
+        slot.previous = previousBits;
+        slot.next = nextBits;
+        slot.key = key;
+        slot.oldValue = null;
+        slot.primitive = doubleValued ? PRIMITIVE_DOUBLE : PRIMITIVE_LONG;
+        slot.type = null;
+        published.lazySet(index(seq), seq);
+    }
+
+    void publishLifecycle(Entity source, EntityEvent.Type type) {
+        if (subscriptions.length == 0) return;
+        long seq = claim();
+        Slot slot = slots[index(seq)];
+        slot.kind = Kind.LIFECYCLE;
+        slot.source = source;
+        slot.move = null;
+        slot.previous = 0;
+        slot.next = 0;
+        slot.key = null;
+        slot.oldValue = null;
+        slot.primitive = 0;
+        slot.type = type;
+        published.lazySet(index(seq), seq);
+    }
+
+    /**
+     * Claims the next sequence, waiting until its slot has been read by all
+     * the subscriptions, but at most for the maximum wait; then marks the
+     * subscriptions still behind as lagged.
+     */
+    private long claim() {
+        long seq = claimed.getAndIncrement();
+        long wrapPoint = seq - slots.length;
+        if (wrapPoint >= gatingCache) {
+            int spins = 0;
+            long deadline = 0;
+            long gating;
+            while (wrapPoint >= (gating = minSequence(seq))) {
+                if (maxWaitNanos == 0) {
+                    markLagged(wrapPoint);
+                } else if (++spins < 100) {
+                    Thread.yield();
+                } else {
+                    long now = System.nanoTime();
+                    if (deadline == 0) {
+                        deadline = now + maxWaitNanos;
+                    } else if (now - deadline >= 0) {
+                        markLagged(wrapPoint);
+                        continue;
+                    }
+                    LockSupport.parkNanos(1000);
+                }
+            }
+            gatingCache = gating;
+        }
+        return seq;
+    }
+
+    /**
+     * Returns the lowest sequence of the subscriptions that are not lagged.
+     */
+    private long minSequence(long upperBound) {
+        long min = upperBound;
+        for (Subscription sub : subscriptions) {
+            if (!sub.lagged) {
+                min = Math.min(min, sub.sequence);
+            }
+        }
+        return min;
+    }
+
+    private void markLagged(long wrapPoint) {
+        for (Subscription sub : subscriptions) {
+            if (sub.sequence <= wrapPoint) {
+                sub.lagged = true;
+            }
+        }
+    }
+
+    private int index(long sequence) {
+        return (int) sequence & mask;
+    }
+}
@@ -0,0 +1,151 @@
+package gr.entij;
+
+import java.util.Arrays;
+
+/**
+ * Queue that defers the delivery of entity events to an explicit
+ * {@link #flush()}, typically at the end of a tick. <p>
+ * While a queue is {@linkplain #open() open} on a thread, posit, state and
+ * property changes made on that thread to entities that have listeners for
+ * them are applied immediately, but their events are held back and the
+ * entities are appended to the queue. Repeated changes to the same entity
+ * collapse into one net change per kind, exactly as in
+ * {@link Entity#batch Entity.batch}. {@link #flush()} then notifies the
+ * listeners of every queued entity, in the order the entities were first
+ * changed. Changes made by listeners during a flush are queued again and
+ * delivered by the same flush. <p>
+ * Usage:
+ * <pre>{@code
+ * EventQueue queue = new EventQueue().open();
+ * try {
+ *     while (running) {
+ *         ... // react, setPosit, set etc.
+ *         queue.flush(); // end of tick
+ *     }
+ * } finally {
+ *     queue.close();
+ * }
+ * }</pre>
+ * A queue must be used only by the thread on which it is open.
+ * @see Entity#batch
+ */
+public final class EventQueue {
+
+    private static final ThreadLocal<EventQueue> CURRENT = new ThreadLocal<>();
+    /** Number of open queues on all threads; avoids the thread local lookup. */
+    private static volatile int openCount;
+
+    private Entity[] entities = new Entity[16];
+    private Entity[] spare;
+    private int size;
+    private boolean open;
+    private EventQueue previous;
+
+    /**
+     * Creates a closed queue.
+     */
+    public EventQueue() {
+    }
+
+    /**
+     * Returns the queue that is open on the current thread or {@code null}.
+     * @return the queue that is open on the current thread or {@code null}
+     */
+    public static EventQueue current() {
+        return openCount == 0 ? null : CURRENT.get();
+    }
+
+    /**
+     * Opens this queue on the current thread. If another queue is already
+     * open on this thread, it is suspended until this queue is closed.
+     * @return this queue
+     * @throws IllegalStateException if this queue is already open
+     */
+    public EventQueue open() throws IllegalStateException {
+        if (open)
+            throw new IllegalStateException("queue is already open");
+        open = true;
+        previous = CURRENT.get();
+        CURRENT.set(this);
+        synchronized (EventQueue.class) {
+            openCount++;
+        }
+        return this;
+    }
+
+    /**
+     * Flushes this queue and closes it, restoring the queue that was open on
+     * this thread before it, if any.
+     * @throws IllegalStateException if this queue is not the current queue
+     * of this thread
+     */
+    public void close() throws IllegalStateException {
+        if (!open || CURRENT.get() != this)
+            throw new IllegalStateException("queue is not the current queue of this thread");
+        try {
+            flush();
+        } finally {
+            detach();
+        }
+    }
+    
+    /**
+     * Closes this queue without flushing it, restoring the queue that was
+     * open on this thread before it. The queued changes may then be flushed
+     * by another thread, provided that it is ordered after this call.
+     */
+    void detach() {
+        open = false;
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+        previous = null;
+        synchronized (EventQueue.class) {
+            openCount--;
+        }
+    }
+
+    /**
+     * Returns {@code true} if this queue is open.
+     * @return {@code true} if this queue is open
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Returns the number of entities with changes waiting to be delivered.
+     * @return the number of entities with changes waiting to be delivered
+     */
+    public int pendingCount() {
+        return size;
+    }
+
+    /**
+     * Delivers the events of all the queued changes.
+     */
+    public void flush() {
+        while (size > 0) {
+            Entity[] toFire = entities;
+            int count = size;
+            entities = spare != null ? spare : new Entity[16];
+            spare = null;
+            size = 0;
+            for (int i = 0; i < count; i++) {
+                Entity e = toFire[i];
+                toFire[i] = null;
+                e.firePendingOfQueue();
+            }
+            spare = toFire;
+        }
+    }
+
+    void enqueue(Entity e) {
+        if (size == entities.length) {
+            entities = Arrays.copyOf(entities, size * 2);
+        }
+        entities[size++] = e;
+    }
+}
@@ -0,0 +1,107 @@
+package gr.entij;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Performs a move on many targets in parallel, on the common
+ * {@link ForkJoinPool}; see
+ * {@link Reaction#andThenMoveParallel(Collection, Object)}. <p>
+ * The targets are split into ranges, each performed by one worker with an
+ * {@link EventQueue} open, so the events of the targets are held back. When
+ * all the ranges are done, the queues are flushed on the calling thread, in
+ * the order of the ranges. <p>
+ * Targets whose events are already held back by a {@linkplain Entity#batch
+ * batch} or an {@link EventQueue} of the calling thread are not forked: their
+ * pending changes are not thread-safe and belong to the caller, so they react
+ * on the calling thread, before the others.
+ */
+final class FanOut extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Minimum number of targets performed by a worker. */
+    static final int MIN_RANGE = 256;
+
+    private final Entity[] targets;
+    private final Object move;
+    private final EventQueue[] queues;
+    private final int range;
+    private final int from;
+    private final int to;
+
+    private FanOut(Entity[] targets, Object move, EventQueue[] queues, int range,
+            int from, int to) {
+        this.targets = targets;
+        this.move = move;
+        this.queues = queues;
+        this.range = range;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Makes all the given targets react to the given move and returns when
+     * they are all done.
+     */
+    static void react(Collection<? extends Entity> targets, Object move) {
+        Entity[] array = targets.toArray(new Entity[targets.size()]);
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        if (array.length < 2 * MIN_RANGE || parallelism < 2) {
+            // not worth forking; same event semantics on this thread
+            EventQueue queue = new EventQueue().open();
+            try {
+                for (Entity target : array) {
+                    target.react(move);
+                }
+            } finally {
+                queue.close();
+            }
+            return;
+        }
+        int n = 0;
+        for (Entity target : array) {
+            if (target.hasPendingChanges()) {
+                target.react(move);
+            } else {
+                array[n++] = target;
+            }
+        }
+        if (n < array.length) {
+            array = Arrays.copyOf(array, n);
+        }
+        int range = Math.max(MIN_RANGE, array.length / (parallelism * 4) + 1);
+        EventQueue[] queues = new EventQueue[(array.length + range - 1) / range];
+        try {
+            ForkJoinPool.commonPool().invoke(
+                    new FanOut(array, move, queues, range, 0, queues.length));
+        } finally {
+            for (EventQueue queue : queues) {
+                if (queue != null) {
+                    queue.flush();
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from > 1) {
+            int mid = (from + to) >>> 1;
+            invokeAll(new FanOut(targets, move, queues, range, from, mid),
+                    new FanOut(targets, move, queues, range, mid, to));
+            return;
+        }
+        EventQueue queue = new EventQueue().open();
+        queues[from] = queue;
+        try {
+            for (int i = from * range, n = Math.min(targets.length, i + range); i < n; i++) {
+                targets[i].react(move);
+            }
+        } finally {
+            queue.detach();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package gr.entij;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interned handle of an entity function name, for calling the function
+ * repeatedly without looking it up by name. <p>
+ * There is exactly one {@code FunctionHandle} for each function name; it is
+ * obtained by {@link #of(String)} and may be cached in a constant. Calling
+ * through a handle ({@link Entity#call(FunctionHandle, Object...)}) resolves
+ * the function once per {@link FunctionRecord} and then reuses the result,
+ * so repeated calls do not hash the name nor walk the parent records. <p>
+ * Resolved functions are invalidated whenever a function of any record
+ * changes (see {@link #invalidateAll()}); function records are expected to
+ * be set up at startup and to change rarely.
+ * @see FunctionRecord#resolve(FunctionHandle)
+ */
+public final class FunctionHandle {
+
+    private static final ConcurrentHashMap<String, FunctionHandle> HANDLES
+            = new ConcurrentHashMap<>();
+    private static int count;
+    private static volatile int version;
+
+    private final String name;
+    private final int index;
+
+    private FunctionHandle(String name, int index) {
+        this.name = name;
+        this.index = index;
+    }
+
+    /**
+     * Returns the handle of the function with the given name, creating it if
+     * it does not exist.
+     * @param name the name of the function
+     * @return the handle of the function with the given name
+     * @throws NullPointerException if {@code name} is {@code null}
+     */
+    public static FunctionHandle of(String name) throws NullPointerException {
+        FunctionHandle handle = HANDLES.get(name);
+        if (handle == null) {
+            Objects.requireNonNull(name, "name cannot be null");
+            handle = create(name);
+        }
+        return handle;
+    }
+
+    private static synchronized FunctionHandle create(String name) {
+        return HANDLES.computeIfAbsent(name, n -> new FunctionHandle(n, count++));
+    }
+
+    /**
+     * Invalidates the functions resolved through all handles. Must be called
+     * by {@link FunctionRecord} implementations that cache resolved functions
+     * whenever a function of theirs changes.
+     */
+    public static void invalidateAll() {
+        synchronized (FunctionHandle.class) {
+            version++;
+        }
+    }
+
+    /**
+     * Returns the current resolution version; a function resolved at an
+     * older version may be stale.
+     * @return the current resolution version
+     */
+    public static int version() {
+        return version;
+    }
+
+    /**
+     * Returns the name of the function.
+     * @return the name of the function
+     */
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Returns the index of this handle, small and unique among all handles;
+     * function records may use it to index their resolved functions.
+     * @return the index of this handle
+     */
+    public int index() {
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        return "FunctionHandle["+name+"]";
+    }
+}
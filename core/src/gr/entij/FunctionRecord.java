@@ -10,6 +10,16 @@ public interface FunctionRecord {
     <T> T apply(Entity en, String func, Object... params)
             throws NoSuchElementException, ClassCastException;
     BiFunction<Entity, Object[], Object> lookUp(String func);
+    /**
+     * Returns the function of the given handle or {@code null}, like
+     * {@link #lookUp(String) lookUp(func.name())}. Implementations may cache
+     * the result until {@link FunctionHandle#version()} changes.
+     * @param func the handle of the function
+     * @return the function or {@code null} if there is no such function
+     */
+    default BiFunction<Entity, Object[], Object> resolve(FunctionHandle func) {
+        return lookUp(func.name());
+    }
     default void init(Entity e) {}
     FunctionRecord child();
     default void setFunc(String funcName, BiFunction<Entity, Object[], Object> func)
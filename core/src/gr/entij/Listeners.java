@@ -0,0 +1,366 @@
+package gr.entij;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Copy-on-write storage for listener lists. <p>
+ * A listener list is a {@code volatile Predicate<?>[]} field of its owner that
+ * is {@code null} when there are no listeners. The array is never modified
+ * after it has been published; every add or remove operation replaces the
+ * whole array with a compare-and-set through the given field updater. So,
+ * listeners may be added or removed from any thread, even while events are
+ * being fired, and firing an event only reads a snapshot of the array. <p>
+ * A listener removed while an event is being fired may still receive that
+ * event; a listener added while an event is being fired will not receive it.
+ * The most recently added listener is notified first. <p>
+ * A listener index is a {@code volatile} {@link Keyed} field holding one
+ * such list per key index (e.g. {@link PropertyKey#index()}) that has
+ * listeners, or {@code null} when it holds no listeners; it is replaced as a
+ * whole in the same way. Its size depends only on the keys that have
+ * listeners.
+ */
+final class Listeners {
+
+    private Listeners() {}
+
+    /**
+     * Returns the given updater of a listener list field, typed by
+     * its generic field type, e.g. {@code Predicate<?>[]} for a field
+     * updater created with {@code Predicate[].class}.
+     * @param <O> the type of the owner of the field
+     * @param <L> the generic type of the field
+     * @param updater the updater of the field
+     * @return the same updater
+     */
+    @SuppressWarnings("unchecked")
+    static <O, L> AtomicReferenceFieldUpdater<O, L> typed(
+            AtomicReferenceFieldUpdater<O, ?> updater) {
+        return (AtomicReferenceFieldUpdater<O, L>) updater;
+    }
+
+    /**
+     * Calls the given listener with the given event. Listeners are only
+     * fired with events of the type they were added for.
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean test(Predicate<?> listener, Object event) {
+        return ((Predicate<Object>) listener).test(event);
+    }
+
+    /**
+     * Adds the given listener at the front of the specified list.
+     * @param <O> the type of the owner of the list
+     * @param list the updater of the list field
+     * @param owner the owner of the list
+     * @param toAdd the listener to add
+     */
+    static <O> void add(AtomicReferenceFieldUpdater<O, Predicate<?>[]> list,
+            O owner, Predicate<?> toAdd) {
+        Predicate<?>[] current;
+        do {
+            current = list.get(owner);
+        } while (!list.compareAndSet(owner, current, prepend(current, toAdd)));
+    }
+
+    /**
+     * Returns a copy of the given list, which may be {@code null}, with the
+     * given listener at the front.
+     */
+    private static Predicate<?>[] prepend(Predicate<?>[] list, Predicate<?> toAdd) {
+        if (list == null) return new Predicate<?>[] {toAdd};
+        Predicate<?>[] result = new Predicate<?>[list.length + 1];
+        result[0] = toAdd;
+        System.arraycopy(list, 0, result, 1, list.length);
+        return result;
+    }
+
+    /**
+     * Removes the first listener of the specified list that was added as a
+     * {@code Consumer} and wraps the given one.
+     * @param <O> the type of the owner of the list
+     * @param list the updater of the list field
+     * @param owner the owner of the list
+     * @param toRemove the consumer whose listener is to be removed
+     * @return {@code true} if a listener was removed
+     */
+    static <O> boolean remove(AtomicReferenceFieldUpdater<O, Predicate<?>[]> list,
+            O owner, Consumer<?> toRemove) {
+        Predicate<?>[] current;
+        int index;
+        do {
+            current = list.get(owner);
+            if (current == null) return false;
+            for (index = 0; index < current.length; index++) {
+                if (current[index] instanceof Entity.RemovableListener
+                        && ((Entity.RemovableListener<?>) current[index]).action == toRemove) {
+                    break;
+                }
+            }
+            if (index == current.length) return false;
+        } while (!list.compareAndSet(owner, current, without(current, index)));
+        return true;
+    }
+
+    /**
+     * Removes the given listener instance from the specified list.
+     * @param <O> the type of the owner of the list
+     * @param list the updater of the list field
+     * @param owner the owner of the list
+     * @param toRemove the listener to be removed
+     * @return {@code true} if the listener was removed
+     */
+    static <O> boolean removeExact(AtomicReferenceFieldUpdater<O, Predicate<?>[]> list,
+            O owner, Predicate<?> toRemove) {
+        Predicate<?>[] current;
+        int index;
+        do {
+            current = list.get(owner);
+            if (current == null) return false;
+            for (index = 0; index < current.length; index++) {
+                if (current[index] == toRemove) break;
+            }
+            if (index == current.length) return false;
+        } while (!list.compareAndSet(owner, current, without(current, index)));
+        return true;
+    }
+
+    /**
+     * Notifies all the listeners of the specified list. Listeners that return
+     * {@code false} are removed. Runtime exceptions thrown by listeners are
+     * printed and do not stop the notification of the remaining listeners.
+     * @param <O> the type of the owner of the list
+     * @param list the updater of the list field
+     * @param owner the owner of the list
+     * @param event the event to be fired
+     */
+    static <O> void fire(AtomicReferenceFieldUpdater<O, Predicate<?>[]> list,
+            O owner, Object event) {
+        Predicate<?>[] snapshot = list.get(owner);
+        if (snapshot == null) return;
+        for (Predicate<?> listener : snapshot) {
+            try {
+                if (!test(listener, event)) {
+                    removeExact(list, owner, listener);
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Returns {@code true} if a listener of the given snapshot is interested
+     * in the change from {@code previous} to {@code next}, that is, it is
+     * not filtered by a {@link Transition} or its transition matches.
+     * @param snapshot the listeners or {@code null}
+     * @param previous the previous value
+     * @param next the new value
+     * @return {@code true} if the change has to be fired
+     */
+    static boolean wants(Predicate<?>[] snapshot, long previous, long next) {
+        if (snapshot == null) return false;
+        for (Predicate<?> listener : snapshot) {
+            if (!(listener instanceof Entity.TransitionListener)
+                    || ((Entity.TransitionListener<?>) listener).transition.test(previous, next)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Same as {@link #fire(AtomicReferenceFieldUpdater, Object, Object)} but
+     * skips the listeners whose {@link Transition} does not match the change
+     * from {@code previous} to {@code next}.
+     * @param <O> the type of the owner of the list
+     * @param list the updater of the list field
+     * @param owner the owner of the list
+     * @param event the event to be fired
+     * @param previous the previous value
+     * @param next the new value
+     */
+    static <O> void fire(AtomicReferenceFieldUpdater<O, Predicate<?>[]> list,
+            O owner, Object event, long previous, long next) {
+        Predicate<?>[] snapshot = list.get(owner);
+        if (snapshot == null) return;
+        for (Predicate<?> listener : snapshot) {
+            if (listener instanceof Entity.TransitionListener
+                    && !((Entity.TransitionListener<?>) listener).transition.test(previous, next)) {
+                continue;
+            }
+            try {
+                if (!test(listener, event)) {
+                    removeExact(list, owner, listener);
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Adds the given listener at the front of the list of the given key of
+     * the specified index.
+     * @param <O> the type of the owner of the index
+     * @param index the updater of the index field
+     * @param owner the owner of the index
+     * @param key the index of the key
+     * @param toAdd the listener to add
+     */
+    static <O> void addKeyed(AtomicReferenceFieldUpdater<O, Keyed> index,
+            O owner, int key, Predicate<?> toAdd) {
+        Keyed current, next;
+        do {
+            current = index.get(owner);
+            if (current == null) {
+                next = new Keyed(new int[] {key}, new Predicate<?>[][] {{toAdd}});
+                continue;
+            }
+            int[] keys = current.keys;
+            Predicate<?>[][] lists = current.lists;
+            int pos = Arrays.binarySearch(keys, key);
+            if (pos >= 0) {
+                lists = lists.clone();
+                lists[pos] = prepend(lists[pos], toAdd);
+                next = new Keyed(keys, lists);
+            } else {
+                pos = -pos - 1;
+                int n = keys.length;
+                int[] nextKeys = new int[n + 1];
+                Predicate<?>[][] nextLists = new Predicate<?>[n + 1][];
+                System.arraycopy(keys, 0, nextKeys, 0, pos);
+                System.arraycopy(lists, 0, nextLists, 0, pos);
+                System.arraycopy(keys, pos, nextKeys, pos + 1, n - pos);
+                System.arraycopy(lists, pos, nextLists, pos + 1, n - pos);
+                nextKeys[pos] = key;
+                nextLists[pos] = new Predicate<?>[] {toAdd};
+                next = new Keyed(nextKeys, nextLists);
+            }
+        } while (!index.compareAndSet(owner, current, next));
+    }
+
+    /**
+     * Removes the first listener of the list of the given key, or of any key
+     * if {@code key} is negative, that is either {@code toRemove} itself or
+     * was added as a {@code Consumer} and wraps {@code toRemove}.
+     * @param <O> the type of the owner of the index
+     * @param index the updater of the index field
+     * @param owner the owner of the index
+     * @param key the index of the key or -1
+     * @param toRemove the listener or consumer to be removed
+     * @return {@code true} if a listener was removed
+     */
+    static <O> boolean removeKeyed(AtomicReferenceFieldUpdater<O, Keyed> index,
+            O owner, int key, Object toRemove) {
+        Keyed current, next;
+        do {
+            current = index.get(owner);
+            if (current == null) return false;
+            int[] keys = current.keys;
+            Predicate<?>[][] lists = current.lists;
+            int pos, i = -1;
+            if (key >= 0) {
+                pos = Arrays.binarySearch(keys, key);
+                if (pos >= 0) {
+                    i = indexOf(lists[pos], toRemove);
+                }
+            } else {
+                for (pos = 0; pos < keys.length; pos++) {
+                    if ((i = indexOf(lists[pos], toRemove)) >= 0) break;
+                }
+            }
+            if (i < 0) return false;
+            Predicate<?>[] list = without(lists[pos], i);
+            if (list != null) {
+                Predicate<?>[][] nextLists = lists.clone();
+                nextLists[pos] = list;
+                next = new Keyed(keys, nextLists);
+            } else if (keys.length == 1) {
+                next = null;
+            } else {
+                int n = keys.length - 1;
+                int[] nextKeys = new int[n];
+                Predicate<?>[][] nextLists = new Predicate<?>[n][];
+                System.arraycopy(keys, 0, nextKeys, 0, pos);
+                System.arraycopy(lists, 0, nextLists, 0, pos);
+                System.arraycopy(keys, pos + 1, nextKeys, pos, n - pos);
+                System.arraycopy(lists, pos + 1, nextLists, pos, n - pos);
+                next = new Keyed(nextKeys, nextLists);
+            }
+        } while (!index.compareAndSet(owner, current, next));
+        return true;
+    }
+
+    /**
+     * Returns the listeners of the given key of an index snapshot or
+     * {@code null}.
+     * @param snapshot the index or {@code null}
+     * @param key the index of the key
+     * @return the listeners of the key or {@code null}
+     */
+    static Predicate<?>[] keyed(Keyed snapshot, int key) {
+        if (snapshot == null) return null;
+        int pos = Arrays.binarySearch(snapshot.keys, key);
+        return pos >= 0 ? snapshot.lists[pos] : null;
+    }
+
+    /**
+     * Notifies the listeners of the given key of the specified index, like
+     * {@link #fire(AtomicReferenceFieldUpdater, Object, Object)}.
+     * @param <O> the type of the owner of the index
+     * @param index the updater of the index field
+     * @param owner the owner of the index
+     * @param key the index of the key
+     * @param event the event to be fired
+     */
+    static <O> void fireKeyed(AtomicReferenceFieldUpdater<O, Keyed> index,
+            O owner, int key, Object event) {
+        Predicate<?>[] snapshot = keyed(index.get(owner), key);
+        if (snapshot == null) return;
+        for (Predicate<?> listener : snapshot) {
+            try {
+                if (!test(listener, event)) {
+                    removeKeyed(index, owner, key, listener);
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static int indexOf(Predicate<?>[] list, Object toRemove) {
+        if (list == null) return -1;
+        for (int i = 0; i < list.length; i++) {
+            if (list[i] == toRemove || list[i] instanceof Entity.RemovableListener
+                    && ((Entity.RemovableListener<?>) list[i]).action == toRemove) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Predicate<?>[] without(Predicate<?>[] array, int index) {
+        if (array.length == 1) return null;
+        Predicate<?>[] result = new Predicate<?>[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, result.length - index);
+        return result;
+    }
+
+    /**
+     * An immutable listener index: the key indices that have listeners,
+     * ascending, and the non-empty list of each.
+     */
+    static final class Keyed {
+        final int[] keys;
+        final Predicate<?>[][] lists;
+
+        Keyed(int[] keys, Predicate<?>[][] lists) {
+            this.keys = keys;
+            this.lists = lists;
+        }
+    }
+}
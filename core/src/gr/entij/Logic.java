@@ -24,6 +24,20 @@ public interface Logic extends Component {
      */
     Reaction reaction(Entity e, Object move);
 
+    /**
+     * Same as {@link #reaction(Entity, Object)} for a move given as a
+     * numeric code; used by {@link Entity#reactCode(long)}. <p>
+     * The default implementation boxes the code and calls
+     * {@link #reaction(Entity, Object)}; logics with numeric moves may
+     * override it to avoid boxing.
+     * @param e the entity that is about to perform the given move
+     * @param code the code of the move
+     * @return a reaction for the move or {@code null} if the move is invalid
+     */
+    default Reaction reaction(Entity e, long code) {
+        return reaction(e, Long.valueOf(code));
+    }
+
     /**
      * Adds this logic to the given entity.
      * @param target the entity to be added to
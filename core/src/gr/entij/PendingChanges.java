@@ -0,0 +1,75 @@
+package gr.entij;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The net, not yet notified, changes of an entity. <p>
+ * While an entity has pending changes, its posit, state and property changes
+ * are applied immediately but their events are held back; only the first
+ * previous value of each changed attribute is kept, so repeated changes
+ * collapse into one net change. When the changes are
+ * {@linkplain Entity#firePending fired}, each kind of listener is notified
+ * at most once.
+ * @see Entity#batch
+ * @see EventQueue
+ */
+final class PendingChanges {
+
+    /** Number of active batches of the entity. */
+    int depth;
+    /** {@code true} while the entity waits in an {@link EventQueue}. */
+    boolean queued;
+
+    boolean positChanged;
+    long previousPosit;
+    Object positMove;
+
+    boolean stateChanged;
+    long previousState;
+    Object stateMove;
+
+    /** First old value of each changed property or {@code null}. */
+    Map<String, Object> oldValues;
+    Object propertyMove;
+
+    void posit(long previous, Object move) {
+        if (!positChanged) {
+            positChanged = true;
+            previousPosit = previous;
+        }
+        positMove = move;
+    }
+
+    void state(long previous, Object move) {
+        if (!stateChanged) {
+            stateChanged = true;
+            previousState = previous;
+        }
+        stateMove = move;
+    }
+
+    void property(String name, Object oldValue, Object move) {
+        if (oldValues == null) {
+            oldValues = new HashMap<>();
+        }
+        keepFirst(name, oldValue);
+        propertyMove = move;
+    }
+
+    void properties(Map<String, Object> old, Object move) {
+        if (oldValues == null) {
+            oldValues = new HashMap<>(old);
+        } else {
+            old.forEach(this::keepFirst);
+        }
+        propertyMove = move;
+    }
+
+    private void keepFirst(String name, Object oldValue) {
+        // not putIfAbsent, which replaces a kept null
+        if (!oldValues.containsKey(name)) {
+            oldValues.put(name, oldValue);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package gr.entij;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interned, typed handle of an entity property. <p>
+ * There is exactly one {@code PropertyKey} for each property name; it is
+ * obtained by {@link #of(String)} and may be cached in a constant. Each key
+ * has a small, dense {@linkplain #index() index}. Each entity keeps the
+ * indices of its own properties in a sorted array, so accessing a property
+ * through its key (see {@link Entity#get(PropertyKey)} and
+ * {@link Entity#set(PropertyKey, Object)}) is a binary search over the few
+ * properties of the entity, without hashing. <p>
+ * The {@code String} based property methods of {@link Entity} resolve the
+ * name to its key and then behave exactly the same. <p>
+ * Keys are never released, so every distinct name passed to a
+ * {@code String} based property method stays interned for the lifetime of
+ * the application. The property arrays of an entity are sized by the
+ * properties it holds, not by the number of keys.
+ * @param <T> the type of the values of the property
+ * @see Entity#get(PropertyKey)
+ */
+public final class PropertyKey<T> {
+
+    private static final ConcurrentHashMap<String, PropertyKey<?>> KEYS
+            = new ConcurrentHashMap<>();
+    private static volatile PropertyKey<?>[] byIndex = new PropertyKey<?>[16];
+    private static int count;
+    /** The key of the {@code null} name, which {@link #KEYS} cannot hold. */
+    private static volatile PropertyKey<?> nullKey;
+
+    private final String name;
+    private final int index;
+
+    private PropertyKey(String name, int index) {
+        this.name = name;
+        this.index = index;
+    }
+
+    /**
+     * Returns the key of the property with the given name, creating it if
+     * it does not exist. As with the keys of a {@code HashMap}, {@code null}
+     * is a valid name.
+     * @param <T> the type of the values of the property
+     * @param name the name of the property; may be {@code null}
+     * @return the key of the property with the given name
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> PropertyKey<T> of(String name) {
+        PropertyKey<?> key = lookup(name);
+        if (key == null) {
+            key = create(name);
+        }
+        return (PropertyKey<T>) key;
+    }
+
+    private static synchronized PropertyKey<?> create(String name) {
+        PropertyKey<?> key = lookup(name);
+        if (key == null) {
+            key = new PropertyKey<>(name, count);
+            PropertyKey<?>[] keys = byIndex;
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+            }
+            keys[count++] = key;
+            byIndex = keys;
+            if (name == null) {
+                nullKey = key;
+            } else {
+                KEYS.put(name, key);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Returns the key of the property with the given name or {@code null}
+     * if no such key has been created.
+     * @param name the name of the property
+     * @return the existing key or {@code null}
+     */
+    static PropertyKey<?> lookup(String name) {
+        return name == null ? nullKey : KEYS.get(name);
+    }
+
+    /**
+     * Returns the key with the given index.
+     * @param index the index of the key
+     * @return the key with the given index
+     */
+    static PropertyKey<?> byIndex(int index) {
+        return byIndex[index];
+    }
+
+    /**
+     * Returns the name of the property.
+     * @return the name of the property
+     */
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Returns the index of the property, unique among all keys.
+     * @return the index of the property
+     */
+    public int index() {
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        return "PropertyKey["+name+"]";
+    }
+}
@@ -1,9 +1,10 @@
 package gr.entij;
 
 import gr.entij.util.SingleLinkedMap;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.stream.Stream;
@@ -17,6 +18,12 @@ import java.util.stream.Stream;
  *   <li>Changing the target's position</li>
  *   <li>Changing the target's properties</li>
  * </ul>
+ * A reaction may be {@linkplain #freeze() frozen}, making it immutable, so
+ * that a logic can return the same precomputed reaction for every input
+ * instead of building a new one each time:
+ * <pre>{@code
+ * static final Reaction OPEN = new Reaction().state(OPENED).freeze();
+ * }</pre>
  * @see Logic
  * @see Entity#move
  */
@@ -24,14 +31,22 @@ public class Reaction {
     
     static class AndThen {
         Entity target;
-        Stream<? extends Entity> targets;
+        Collection<? extends Entity> targets;
+        Stream<? extends Entity> targetStream;
         Object input;
+        boolean parallel;
         String funcName;
         Object[] args;
+        FunctionHandle func;
+        int arity;
+        Object arg0;
+        Object arg1;
 
-        public AndThen(Entity target, Stream<? extends Entity> targets, Object input) {
+        public AndThen(Entity target, Collection<? extends Entity> targets,
+                Stream<? extends Entity> targetStream, Object input) {
             this.target = target;
             this.targets = targets;
+            this.targetStream = targetStream;
             this.input = input;
         }
 
@@ -39,23 +54,35 @@ public class Reaction {
             this.funcName = funcName;
             this.args = params;
         }
+
+        public AndThen(FunctionHandle func, int arity, Object arg0, Object arg1) {
+            this.func = func;
+            this.arity = arity;
+            this.arg0 = arg0;
+            this.arg1 = arg1;
+        }
     }
+    
+    static final int HAS_POSIT = 1;
+    static final int HAS_STATE = 2;
+    static final int FROZEN = 4;
+    
+    /** Combination of {@link #HAS_POSIT}, {@link #HAS_STATE} and {@link #FROZEN}. */
+    int flags;
 
     /**
-     * The next position of the target or {@code null} if the position should
-     * not change.
+     * The next position of the target; valid if {@link #HAS_POSIT} is set.
      */
-    Long nextPosit;
+    long nextPosit;
     
     /**
-     * The next state of the target or {@code null} if the state should
-     * not change.
+     * The next state of the target; valid if {@link #HAS_STATE} is set.
      */
-    Long nextState;
+    long nextState;
     
     /**
-     * The next position of the target or {@code null} if none of the properties
-     * should change.
+     * The next values of the properties of the target or {@code null} if
+     * none of the properties should change.
      */
      /* A {@code null} value on an entry indicates that the
      * property should be removed.
@@ -63,9 +90,11 @@ public class Reaction {
     Map<String, Object> nextPropValues;
     
     /**
-     * Moves and calls to be performed after the input reaction is performed.
+     * Moves and calls to be performed after the input reaction is performed;
+     * the first {@link #andThenCount} elements are used.
      */
-    List<AndThen> andThen;
+    AndThen[] andThen;
+    int andThenCount;
     
     boolean consume = true;
 
@@ -75,23 +104,61 @@ public class Reaction {
     public Reaction() {
     }
     
+    /**
+     * Sets the next position the target that performs the input should take.
+     * @param posit the next position the target that performs the input
+     * should take or {@code null} if the position should not change
+     * @return this {@code Reaction}
+     * @throws IllegalStateException if this reaction is frozen
+     */
+    public Reaction posit(Long posit) throws IllegalStateException {
+        if (posit == null) {
+            checkMutable();
+            flags &= ~HAS_POSIT;
+            return this;
+        }
+        return posit(posit.longValue());
+    }
+    
     /**
      * Sets the next position the target that performs the input should take.
      * @param posit the next position the target that performs the input should take
      * @return this {@code Reaction}
+     * @throws IllegalStateException if this reaction is frozen
      */
-    public Reaction posit(Long posit) {
+    public Reaction posit(long posit) throws IllegalStateException {
+        checkMutable();
         nextPosit = posit;
+        flags |= HAS_POSIT;
         return this;
     }
     
+    /**
+     * Sets the next state the target that performs the input should take.
+     * @param state the next state the target that performs the input should
+     * take or {@code null} if the state should not change
+     * @return this {@code Reaction}
+     * @throws IllegalStateException if this reaction is frozen
+     */
+    public Reaction state(Long state) throws IllegalStateException {
+        if (state == null) {
+            checkMutable();
+            flags &= ~HAS_STATE;
+            return this;
+        }
+        return state(state.longValue());
+    }
+    
     /**
      * Sets the next state the target that performs the input should take.
      * @param state the next state the target that performs the input should take
      * @return this {@code Reaction}
+     * @throws IllegalStateException if this reaction is frozen
      */
-    public Reaction state(Long state) {
+    public Reaction state(long state) throws IllegalStateException {
+        checkMutable();
         nextState = state;
+        flags |= HAS_STATE;
         return this;
     }
     
@@ -102,12 +169,62 @@ public class Reaction {
      * @param funcName the name of the function to be called
      * @param params the parameters of the call
      * @return  this {@code Reaction}
+     * @throws IllegalStateException if this reaction is frozen
      */
-    public Reaction andThenCall(String funcName, Object... params) {
-        if (andThen == null) {
-            andThen = new LinkedList<>();
-        }
-        andThen.add(new AndThen(funcName, params));
+    public Reaction andThenCall(String funcName, Object... params) throws IllegalStateException {
+        addAndThen(new AndThen(funcName, params));
+        return this;
+    }
+    
+    /**
+     * Appends a call of the given function without arguments to the actions
+     * to be performed after this reaction has been processed. Unlike
+     * {@link #andThenCall(String, Object...)}, no argument array is kept and
+     * the call is made through {@link Entity#call(FunctionHandle)}.
+     * @param func the handle of the function to be called
+     * @return this {@code Reaction}
+     * @throws IllegalStateException if this reaction is frozen
+     * @throws NullPointerException if {@code func} is {@code null}
+     */
+    public Reaction andThenCall(FunctionHandle func)
+            throws IllegalStateException, NullPointerException {
+        Objects.requireNonNull(func, "func cannot be null");
+        addAndThen(new AndThen(func, 0, null, null));
+        return this;
+    }
+    
+    /**
+     * Appends a call of the given function with one argument to the actions
+     * to be performed after this reaction has been processed; see
+     * {@link #andThenCall(FunctionHandle)}.
+     * @param func the handle of the function to be called
+     * @param arg0 the argument of the call
+     * @return this {@code Reaction}
+     * @throws IllegalStateException if this reaction is frozen
+     * @throws NullPointerException if {@code func} is {@code null}
+     */
+    public Reaction andThenCall(FunctionHandle func, Object arg0)
+            throws IllegalStateException, NullPointerException {
+        Objects.requireNonNull(func, "func cannot be null");
+        addAndThen(new AndThen(func, 1, arg0, null));
+        return this;
+    }
+    
+    /**
+     * Appends a call of the given function with two arguments to the actions
+     * to be performed after this reaction has been processed; see
+     * {@link #andThenCall(FunctionHandle)}.
+     * @param func the handle of the function to be called
+     * @param arg0 the first argument of the call
+     * @param arg1 the second argument of the call
+     * @return this {@code Reaction}
+     * @throws IllegalStateException if this reaction is frozen
+     * @throws NullPointerException if {@code func} is {@code null}
+     */
+    public Reaction andThenCall(FunctionHandle func, Object arg0, Object arg1)
+            throws IllegalStateException, NullPointerException {
+        Objects.requireNonNull(func, "func cannot be null");
+        addAndThen(new AndThen(func, 2, arg0, arg1));
         return this;
     }
     
@@ -118,49 +235,98 @@ public class Reaction {
      * @param target the Entity to perform the input
      * @param move the input to performed
      * @return this {@code Reaction}
+     * @throws IllegalStateException if this reaction is frozen
      */
-    public Reaction andThenMove(Entity target, Object move) {
+    public Reaction andThenMove(Entity target, Object move) throws IllegalStateException {
         Objects.requireNonNull(target, "target can not be null");
         Objects.requireNonNull(move, "move can not be null");
-        andThenImpl(target, null, move);
+        addAndThen(new AndThen(target, null, null, move));
         return this;
     }
     
     /**
      * Appends the given input to the actions that are to be performed after this
  reaction has been processed. These actions will be performed in the
-     * order they where submitted.
+     * order they where submitted. <p>
+     * Since a stream can only be consumed once, a reaction with stream
+     * targets can only be performed once and cannot be frozen; prefer
+     * {@link #andThenMove(Collection, Object)}.
      * @param targets the Entities to perform the input
      * @param move the input to performed
      * @return this {@code Reaction}
+     * @throws IllegalStateException if this reaction is frozen
      */
-    public Reaction andThenMove(Stream<? extends Entity> targets, Object move) {
+    public Reaction andThenMove(Stream<? extends Entity> targets, Object move)
+            throws IllegalStateException {
         Objects.requireNonNull(targets, "targets can not be null");
         Objects.requireNonNull(move, "move can not be null");
-        andThenImpl(null, targets, move);
+        addAndThen(new AndThen(null, null, targets, move));
         return this;
     }
     
     /**
      * Appends the given input to the actions that are to be performed after this
  reaction has been processed. These actions moves will be performed in the
-     * order they where submitted.
+     * order they where submitted. <p>
+     * The targets are those contained in the collection at the time the
+     * reaction is performed.
      * @param targets the Entities to perform the input
      * @param move the input to performed
      * @return this {@code Reaction}
+     * @throws IllegalStateException if this reaction is frozen
      */
-    public Reaction andThenMove(Collection<? extends Entity> targets, Object move) {
+    public Reaction andThenMove(Collection<? extends Entity> targets, Object move)
+            throws IllegalStateException {
         Objects.requireNonNull(targets, "targets can not be null");
         Objects.requireNonNull(move, "move can not be null");
-        andThenImpl(null, targets.stream(), move);
+        addAndThen(new AndThen(null, targets, null, move));
         return this;
     }
     
-    private void andThenImpl(Entity target, Stream<? extends Entity> targets, Object move) {
+    /**
+     * Same as {@link #andThenMove(Collection, Object)} but the targets
+     * perform the input in parallel, on the common
+     * {@link java.util.concurrent.ForkJoinPool}; the reaction completes when
+     * all of them are done. Small collections are performed on the calling
+     * thread. <p>
+     * While the targets react, each worker thread changes only the targets
+     * it was given (their logics, posit, state and properties) and publishes
+     * to the {@link EventBus}, which is thread-safe. The events of the
+     * targets are held back, as if by an {@link EventQueue}, and are
+     * delivered to their listeners on the calling thread after all the
+     * targets are done. So, listeners, such as {@link Terrain} indexes, are
+     * never called concurrently. <p>
+     * Therefore, the targets must be distinct, and their logics must be safe
+     * to call from several threads and must not change entities other than
+     * their target, unless these are {@linkplain Entity#setThreadSafe
+     * thread-safe}. Follow-up moves of the targets are performed
+     * recursively, on the worker, even if a {@link Cascade} is running.
+     * Targets whose events are already held back by a batch or an
+     * {@code EventQueue} of the calling thread react on the calling thread
+     * instead, and their events stay held back.
+     * @param targets the Entities to perform the input
+     * @param move the input to performed
+     * @return this {@code Reaction}
+     * @throws IllegalStateException if this reaction is frozen
+     */
+    public Reaction andThenMoveParallel(Collection<? extends Entity> targets, Object move)
+            throws IllegalStateException {
+        Objects.requireNonNull(targets, "targets can not be null");
+        Objects.requireNonNull(move, "move can not be null");
+        AndThen toAdd = new AndThen(null, targets, null, move);
+        toAdd.parallel = true;
+        addAndThen(toAdd);
+        return this;
+    }
+    
+    private void addAndThen(AndThen toAdd) {
+        checkMutable();
         if (andThen == null) {
-            andThen = new LinkedList<>();
+            andThen = new AndThen[2];
+        } else if (andThenCount == andThen.length) {
+            andThen = Arrays.copyOf(andThen, andThenCount * 2);
         }
-        andThen.add(new AndThen(target, targets, move));
+        andThen[andThenCount++] = toAdd;
     }
     
     /**
@@ -168,8 +334,10 @@ public class Reaction {
  query the remaining logics for reactions.
      * @param consume whether to query other logics
      * @return  this {@code Reaction}
+     * @throws IllegalStateException if this reaction is frozen
      */
-    public Reaction consume(boolean consume) {
+    public Reaction consume(boolean consume) throws IllegalStateException {
+        checkMutable();
         this.consume = consume;
         return this;
     }
@@ -180,8 +348,10 @@ public class Reaction {
      * @param props the values that the given properties of the target that
  performs the input should take
      * @return this {@code Reaction}
+     * @throws IllegalStateException if this reaction is frozen
      */
-    public Reaction putAll(Map<String, Object> props) {
+    public Reaction putAll(Map<String, Object> props) throws IllegalStateException {
+        checkMutable();
         nextPropValues = props;
         return this;
     }
@@ -192,8 +362,10 @@ public class Reaction {
      * @param name the name of the property that should change value
      * @param val the value the specified property should take
      * @return this {@code Reaction}
+     * @throws IllegalStateException if this reaction is frozen
      */
-    public Reaction set(String name, Object val) {
+    public Reaction set(String name, Object val) throws IllegalStateException {
+        checkMutable();
         if (nextPropValues == null) {
             nextPropValues = new SingleLinkedMap<>(name, val);
         } else {
@@ -201,4 +373,96 @@ public class Reaction {
         }
         return this;
     }
+    
+    /**
+     * Makes this reaction immutable; any later attempt to modify it throws
+     * an {@link IllegalStateException}. A frozen reaction may be returned by
+     * logics any number of times and performed by several entities, even
+     * concurrently. <p>
+     * The property values are copied, so later changes to a map given to
+     * {@link #putAll} do not affect this reaction. The arguments of
+     * {@linkplain #andThenCall calls} and the collections of
+     * {@linkplain #andThenMove(Collection, Object) move targets} are not
+     * copied.
+     * @return this {@code Reaction}
+     * @throws IllegalStateException if this reaction has a
+     * {@linkplain #andThenMove(Stream, Object) stream of targets}
+     */
+    public Reaction freeze() throws IllegalStateException {
+        if (isFrozen()) return this;
+        for (int i = 0; i < andThenCount; i++) {
+            if (andThen[i].targetStream != null)
+                throw new IllegalStateException("a reaction with stream targets cannot be frozen");
+        }
+        if (nextPropValues != null) {
+            nextPropValues = Collections.unmodifiableMap(new LinkedHashMap<>(nextPropValues));
+        }
+        if (andThen != null && andThen.length != andThenCount) {
+            andThen = Arrays.copyOf(andThen, andThenCount);
+        }
+        flags |= FROZEN;
+        return this;
+    }
+    
+    /**
+     * Returns {@code true} if this reaction is frozen.
+     * @return {@code true} if this reaction is frozen
+     * @see #freeze()
+     */
+    public boolean isFrozen() {
+        return (flags & FROZEN) != 0;
+    }
+    
+    /**
+     * Returns {@code true} if this reaction sets the position of its target.
+     * @return {@code true} if this reaction sets the position of its target
+     * @see #posit(long)
+     */
+    public boolean changesPosit() {
+        return (flags & HAS_POSIT) != 0;
+    }
+    
+    /**
+     * Returns the position this reaction sets; meaningful only if
+     * {@link #changesPosit()} returns {@code true}.
+     * @return the position this reaction sets
+     */
+    public long nextPosit() {
+        return nextPosit;
+    }
+    
+    /**
+     * Returns {@code true} if this reaction sets the state of its target.
+     * @return {@code true} if this reaction sets the state of its target
+     * @see #state(long)
+     */
+    public boolean changesState() {
+        return (flags & HAS_STATE) != 0;
+    }
+    
+    /**
+     * Returns the state this reaction sets; meaningful only if
+     * {@link #changesState()} returns {@code true}.
+     * @return the state this reaction sets
+     */
+    public long nextState() {
+        return nextState;
+    }
+    
+    /**
+     * Returns the properties this reaction puts, as an unmodifiable map; a
+     * {@code null} value sets the property to {@code null}, it does not
+     * remove it.
+     * @return the properties this reaction puts
+     * @see #set(String, Object)
+     */
+    public Map<String, Object> nextProperties() {
+        return nextPropValues == null ? Collections.emptyMap()
+                : Collections.unmodifiableMap(nextPropValues);
+    }
+    
+    private void checkMutable() throws IllegalStateException {
+        if ((flags & FROZEN) != 0)
+            throw new IllegalStateException("reaction is frozen");
+    }
 }
@@ -0,0 +1,23 @@
+package gr.entij;
+
+/**
+ * Receives every reaction performed by any entity, before the reaction is
+ * applied; see {@link Entity#setReactionRecorder}. <p>
+ * A recorder is called on the thread that performs the reaction, so it
+ * must be thread safe and fast, e.g. buffer the reaction and write it later,
+ * as {@link gr.entij.snapshot.ReactionJournal ReactionJournal} does. An
+ * exception thrown by a recorder propagates from {@link Entity#react} and
+ * the reaction is not applied, so recorders should not throw.
+ */
+@FunctionalInterface
+public interface ReactionRecorder {
+
+    /**
+     * Records that the given entity performs the given reaction to the given
+     * input.
+     * @param target the entity that reacts
+     * @param input the input the entity reacts to
+     * @param reaction the reaction about to be applied
+     */
+    void record(Entity target, Object input, Reaction reaction);
+}
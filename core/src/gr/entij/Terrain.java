@@ -2,6 +2,7 @@ package gr.entij;
 
 import gr.entij.event.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.function.Consumer;
 import static gr.entij.event.EntityEvent.Type;
 import java.util.function.Predicate;
@@ -12,6 +13,11 @@ import java.util.function.Predicate;
  * monitoring additions and removals of entities by adding appropriate listeners.
  * <p> Note: when an entity is destroyed, it is removed from all {@code Terrains}
  * that it was added.
+ * <p> A terrain in {@linkplain #setThreadSafe thread-safe} mode keeps its
+ * indexes consistent while thread-safe entities in it are changed and added
+ * or removed by several threads. The sets returned by its queries are live
+ * views of the indexes and should only be iterated while no such changes
+ * happen, e.g. between ticks.
  */
 public class Terrain extends Entity {
     private static final EntitySet EMPTY_SET = new EntitySet().readOnly();
@@ -23,31 +29,51 @@ public class Terrain extends Entity {
     //  - disabling an index to save resources
     //  - or using binary indices instead of hashing
     
-    // TODO take care of possible concurrency issues
-    
     private final EntityMultiMap<Long> entitiesByPosit = new EntityMultiMap<>();
     private final EntityMultiMap<Long> entitiesByState = new EntityMultiMap<>();
     private final EntityMultiMap<String> entitiesByName = new EntityMultiMap<>();
     
-    private Node<Predicate<? super EntityEvent>> addRemoveListeners;
+    private volatile Predicate<?>[] addRemoveListeners;
+    private static final AtomicReferenceFieldUpdater<Terrain, Predicate<?>[]> ADD_REMOVE_LISTENERS
+            = Listeners.typed(AtomicReferenceFieldUpdater.newUpdater(Terrain.class, Predicate[].class, "addRemoveListeners"));
     
     private final Consumer<PositEvent> terrainPositListener = (PositEvent e) -> {
-        if (e.previousPosit != e.nextPosit) {
-            entitiesByPosit.removeFromKey(e.previousPosit, e.source);
+        if (isThreadSafe()) {
+            // events of concurrent changes may arrive in any order; index
+            // the current posit, which the event of the next change removes
+            synchronized (entitiesByName) {
+                entitiesByPosit.removeFromKey(e.getPreviousPosit(), e.getSource());
+                if (entitiesByName.containedInKey(e.getSource().getName(), e.getSource())) {
+                    entitiesByPosit.addToKey(e.getSource().getPosit(), e.getSource());
+                }
+            }
+            return;
+        }
+        if (e.getPreviousPosit() != e.getNextPosit()) {
+            entitiesByPosit.removeFromKey(e.getPreviousPosit(), e.getSource());
         }
-        entitiesByPosit.addToKey(e.nextPosit, e.source);
+        entitiesByPosit.addToKey(e.getNextPosit(), e.getSource());
     };
     
     private final Consumer<StateEvent> terrainStateListener = (StateEvent e) -> {
-        if (e.previousState != e.nextState) {
-            entitiesByState.removeFromKey(e.previousState, e.source);
+        if (isThreadSafe()) {
+            synchronized (entitiesByName) {
+                entitiesByState.removeFromKey(e.getPreviousState(), e.getSource());
+                if (entitiesByName.containedInKey(e.getSource().getName(), e.getSource())) {
+                    entitiesByState.addToKey(e.getSource().getState(), e.getSource());
+                }
+            }
+            return;
         }
-        entitiesByState.addToKey(e.nextState, e.source);
+        if (e.getPreviousState() != e.getNextState()) {
+            entitiesByState.removeFromKey(e.getPreviousState(), e.getSource());
+        }
+        entitiesByState.addToKey(e.getNextState(), e.getSource());
     };
     
     private final Predicate<EntityEvent> entityListener = (EntityEvent e) -> {
         if (e.type == EntityEvent.Type.DESTROYED) {
-            removeImpl(e.source, true);
+            removeImpl(e.getSource(), true);
             return false;
         }
         return true;
@@ -82,13 +108,76 @@ public class Terrain extends Entity {
      * @see #addAddRemoveListener(java.util.function.Consumer) 
      */
     public void add(Entity toAdd) {
-        toAdd.addPositListener(terrainPositListener);
-        toAdd.addStateListener(terrainStateListener);
-        toAdd.addEntityListenerRemovable(entityListener);
+        if (isThreadSafe()) {
+            synchronized (entitiesByName) {
+                addImpl(toAdd);
+            }
+        } else {
+            addImpl(toAdd);
+        }
+        onAddRemove(toAdd, EntityEvent.Type.ADDED);
+    }
+    
+    private void addImpl(Entity toAdd) {
+        attach(toAdd);
         entitiesByName.addToKey(toAdd.getName(), toAdd);
         entitiesByPosit.addToKey(toAdd.getPosit(), toAdd);
         entitiesByState.addToKey(toAdd.getState(), toAdd);
-        onAddRemove(toAdd, EntityEvent.Type.ADDED);
+    }
+    
+    private void attach(Entity toAdd) {
+        toAdd.addPositListener(terrainPositListener);
+        toAdd.addStateListener(terrainStateListener);
+        toAdd.addEntityListenerRemovable(entityListener);
+    }
+    
+    /**
+     * Adds the given entities, already grouped by posit and by state. <br>
+     * Same as calling {@link #add} for each entity, but each group is added
+     * to the posit and state indexes at once instead of one entity at a time,
+     * which makes restoring large terrains (e.g. from a
+     * {@link gr.entij.snapshot.Checkpoint Checkpoint}) much faster. <p>
+     * The groups must partition {@code toAdd} by {@link #getPosit()} and
+     * {@link #getState()} respectively, and the entities must not be in this
+     * terrain already; otherwise the indexes of this terrain become
+     * inconsistent. Generates an {@link EntityEvent} of type
+     * {@link Type#ADDED ADDED} for each entity.
+     * @param toAdd the entities to be added
+     * @param byPosit the entities to be added, grouped by posit
+     * @param byState the entities to be added, grouped by state
+     * @throws NullPointerException if any argument is {@code null}
+     * @see #add(Entity)
+     */
+    public void addGrouped(Collection<? extends Entity> toAdd,
+            Map<Long, ? extends Collection<? extends Entity>> byPosit,
+            Map<Long, ? extends Collection<? extends Entity>> byState)
+            throws NullPointerException {
+        Objects.requireNonNull(toAdd, "toAdd cannot be null");
+        Objects.requireNonNull(byPosit, "byPosit cannot be null");
+        Objects.requireNonNull(byState, "byState cannot be null");
+        if (isThreadSafe()) {
+            synchronized (entitiesByName) {
+                addGroupedImpl(toAdd, byPosit, byState);
+            }
+        } else {
+            addGroupedImpl(toAdd, byPosit, byState);
+        }
+        if (eventBus != null || addRemoveListeners != null) {
+            for (Entity ent : toAdd) {
+                onAddRemove(ent, EntityEvent.Type.ADDED);
+            }
+        }
+    }
+    
+    private void addGroupedImpl(Collection<? extends Entity> toAdd,
+            Map<Long, ? extends Collection<? extends Entity>> byPosit,
+            Map<Long, ? extends Collection<? extends Entity>> byState) {
+        for (Entity ent : toAdd) {
+            attach(ent);
+            entitiesByName.addToKey(ent.getName(), ent);
+        }
+        byPosit.forEach(entitiesByPosit::add);
+        byState.forEach(entitiesByState::add);
     }
     
     /**
@@ -102,12 +191,22 @@ public class Terrain extends Entity {
     }
     
     private void removeImpl(Entity toRemove, boolean ofDestroy) {
+        if (isThreadSafe()) {
+            synchronized (entitiesByName) {
+                unindex(toRemove);
+            }
+        } else {
+            unindex(toRemove);
+        }
+        onAddRemove(toRemove, ofDestroy ? EntityEvent.Type.DESTROY_REMOVED : EntityEvent.Type.REMOVED);
+    }
+    
+    private void unindex(Entity toRemove) {
         toRemove.removePositListener(terrainPositListener);
         toRemove.removeStateListener(terrainStateListener);
         entitiesByName.removeFromKey(toRemove.getName(), toRemove);
         entitiesByPosit.removeFromKey(toRemove.getPosit(), toRemove);
         entitiesByState.removeFromKey(toRemove.getState(), toRemove);
-        onAddRemove(toRemove, ofDestroy ? EntityEvent.Type.DESTROY_REMOVED : EntityEvent.Type.REMOVED);
     }
     
     /**
@@ -167,7 +266,7 @@ public class Terrain extends Entity {
     
     /**
      * Adds the given listener for entity additions and removals. <br>
-     * NOTE: the source (see {@link Event#source}) of the events that will be
+     * NOTE: the source (see {@link Event#getSource()}) of the events that will be
      * handled by these listeners will be the entity that actually got added or
      * removed and not this terrain. <p>
      * NOTE: if an entity is removed due to destruction (see {@link Entity#destroy})
@@ -181,14 +280,13 @@ public class Terrain extends Entity {
      */
     public void addAddRemoveListener(Consumer<? super EntityEvent> toAdd) {
         Objects.requireNonNull(toAdd, "listener cannot be null");
-        addRemoveListeners = new Node<>(new RemovableListener<>(toAdd), addRemoveListeners);
+        Listeners.add(ADD_REMOVE_LISTENERS, this, new RemovableListener<>(toAdd));
     }
     
     /**
      * Same as {@link #addAddRemoveListener(java.util.function.Consumer)} but the
      * added listener will be retained as long as it returns {@code true}.
-     * The listener will be removed the first time it returns {@code false}
-     * and the remove operation will take O(1) time.
+     * The listener will be removed the first time it returns {@code false}.
      * <p> NOTE: the listener will not be removed it throw an exception.
      * @param toAdd
      * @see #add(gr.entij.Entity)
@@ -197,8 +295,7 @@ public class Terrain extends Entity {
      */
     public void addAddRemoveListenerRemovable(Predicate<? super EntityEvent> toAdd) {
         Objects.requireNonNull(toAdd, "listener cannot be null");
-//        addRemoveListeners.add(toAdd);
-        addRemoveListeners = new Node<>(toAdd, addRemoveListeners);
+        Listeners.add(ADD_REMOVE_LISTENERS, this, toAdd);
     }
     
     /**
@@ -206,10 +303,16 @@ public class Terrain extends Entity {
      * @param toRemove the listener to remove
      */
     public void removeAddRemoveListener(Consumer<? super EntityEvent> toRemove) {
-        addRemoveListeners = removeListener(addRemoveListeners, toRemove);
+        Listeners.remove(ADD_REMOVE_LISTENERS, this, toRemove);
     }
     
     private void onAddRemove(Entity ent, EntityEvent.Type type) {
-        addRemoveListeners = fireEvent(addRemoveListeners, new EntityEvent(ent, type));
+        EventBus bus = eventBus;
+        if (bus != null) {
+            bus.publishLifecycle(ent, type);
+        }
+        if (addRemoveListeners != null) {
+            Listeners.fire(ADD_REMOVE_LISTENERS, this, new EntityEvent(ent, type));
+        }
     }
 }
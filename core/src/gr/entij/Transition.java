@@ -0,0 +1,117 @@
+package gr.entij;
+
+/**
+ * Declarative filter of posit or state changes, for registering listeners
+ * that are notified only of the changes they are interested in. <p>
+ * Unlike a check made inside a listener, a transition is evaluated by the
+ * entity before it notifies the listener; if no listener of a change is
+ * interested in it, no event is even created. For example, the following
+ * listener is only called when the state of {@code door} becomes
+ * {@code OPEN}:
+ * <pre>{@code
+ * door.addStateListener(Transition.entering(OPEN), e -> playSound());
+ * }</pre>
+ * Transitions are immutable and may be shared between listeners.
+ * @see Entity#addPositListener(Transition, java.util.function.Consumer)
+ * @see Entity#addStateListener(Transition, java.util.function.Consumer)
+ */
+public final class Transition {
+
+    private static final int CHANGED = 0;
+    private static final int ENTERING = 1;
+    private static final int LEAVING = 2;
+    private static final int BETWEEN = 3;
+    private static final int ENTERING_BITS = 4;
+
+    private static final Transition CHANGED_TRANSITION = new Transition(CHANGED, 0, 0);
+
+    private final int type;
+    private final long from;
+    private final long to;
+
+    private Transition(int type, long from, long to) {
+        this.type = type;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Returns a transition that matches any change where the new value
+     * differs from the previous one.
+     * @return a transition that matches actual changes
+     */
+    public static Transition changed() {
+        return CHANGED_TRANSITION;
+    }
+
+    /**
+     * Returns a transition that matches the changes to the given value from
+     * a different one.
+     * @param value the value entered
+     * @return a transition that matches the changes to {@code value}
+     */
+    public static Transition entering(long value) {
+        return new Transition(ENTERING, 0, value);
+    }
+
+    /**
+     * Returns a transition that matches the changes from the given value to
+     * a different one.
+     * @param value the value left
+     * @return a transition that matches the changes from {@code value}
+     */
+    public static Transition leaving(long value) {
+        return new Transition(LEAVING, value, 0);
+    }
+
+    /**
+     * Returns a transition that matches the changes from exactly {@code from}
+     * to exactly {@code to}.
+     * @param from the previous value
+     * @param to the new value
+     * @return a transition that matches the changes from {@code from} to
+     * {@code to}
+     */
+    public static Transition between(long from, long to) {
+        return new Transition(BETWEEN, from, to);
+    }
+
+    /**
+     * Returns a transition that matches the changes after which all the bits
+     * of {@code mask} are set, while they were not all set before. Useful for
+     * states used as bit flags.
+     * @param mask the bits that become set
+     * @return a transition that matches the changes setting {@code mask}
+     */
+    public static Transition enteringBits(long mask) {
+        return new Transition(ENTERING_BITS, 0, mask);
+    }
+
+    /**
+     * Returns {@code true} if the change from {@code previous} to
+     * {@code next} matches this transition.
+     * @param previous the previous value
+     * @param next the new value
+     * @return {@code true} if the change matches this transition
+     */
+    public boolean test(long previous, long next) {
+        switch (type) {
+            case CHANGED: return previous != next;
+            case ENTERING: return next == to && previous != to;
+            case LEAVING: return previous == from && next != from;
+            case BETWEEN: return previous == from && next == to;
+            default: return (next & to) == to && (previous & to) != to;
+        }
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+            case CHANGED: return "changed";
+            case ENTERING: return "entering "+to;
+            case LEAVING: return "leaving "+from;
+            case BETWEEN: return from+" -> "+to;
+            default: return "entering bits 0x"+Long.toHexString(to);
+        }
+    }
+}
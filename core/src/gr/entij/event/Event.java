@@ -3,22 +3,36 @@ package gr.entij.event;
 import gr.entij.Entity;
 
 /**
- * Base class for all events generated by, or related to, entities.
+ * Base class for all events generated by, or related to, entities. <p>
+ * When {@linkplain Entity#setEventReuse event reuse} is enabled, some events
+ * are taken from an {@link EventPool} and are valid only for the duration of
+ * the listener call. Listeners that keep a reference to an event after they
+ * return (for example, to process it in another thread) must keep the event
+ * returned by {@link #retain()} instead. <p>
+ * The contents of an event may be read through its public fields or its
+ * getters. Listeners must not modify the fields, which are not final only so
+ * that an {@link EventPool} can reinitialize its pooled events.
  */
 public class Event {
     
     /**
      * The entity for which the event was generated.
+     * @see #getSource()
      */
-    public final Entity source;
+    public Entity source;
     
     /**
      * The move that caused the action which generated the event.
      * {@code null} if the event was not generated directly by a call to
-     * {@link Entity#move}.
-     * @see Entity#move
+     * {@link Entity#react}.
+     * @see #getMove()
      */
-    public final Object move;
+    public Object move;
+    
+    /**
+     * {@code true} while this event is owned by an {@link EventPool}.
+     */
+    boolean pooled;
     
     public Event(Entity source) {
         this(source, null);
@@ -29,6 +43,36 @@ public class Event {
         this.move = move;
     }
 
+    /**
+     * Returns the entity for which the event was generated.
+     * @return the source of the event
+     */
+    public Entity getSource() {
+        return source;
+    }
+
+    /**
+     * Returns the move that caused the action which generated the event;
+     * {@code null} if the event was not generated directly by a call to
+     * {@link Entity#react}.
+     * @return the move or {@code null}
+     * @see Entity#react
+     */
+    public Object getMove() {
+        return move;
+    }
+
+    /**
+     * Returns an event with the same contents as this one, that remains valid
+     * after the current listener call returns. If this event is not pooled,
+     * this event itself is returned.
+     * @return an event that may be kept by the caller
+     * @see Entity#setEventReuse(boolean)
+     */
+    public Event retain() {
+        return pooled ? new Event(source, move) : this;
+    }
+
     @Override
     public String toString() {
         return super.toString()+" source: ["+source+"]";
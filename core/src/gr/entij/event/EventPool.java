@@ -0,0 +1,168 @@
+package gr.entij.event;
+
+import gr.entij.Entity;
+import gr.entij.PropertyKey;
+import java.util.Arrays;
+
+/**
+ * Per thread pool of mutable events, used by entities to dispatch events
+ * without allocating when {@linkplain Entity#setEventReuse event reuse} is
+ * enabled. <p>
+ * Events are handed out as a stack: a listener that changes another entity
+ * while it handles an event receives a different event instance for the
+ * nested dispatch, so the event of the outer dispatch stays intact. <p>
+ * An event obtained by {@code acquire} must be given back with the matching
+ * {@code release} call on the same thread, once its dispatch is complete.
+ * @see Event#retain()
+ */
+public final class EventPool {
+
+    private static final ThreadLocal<EventPool> POOLS
+            = ThreadLocal.withInitial(EventPool::new);
+
+    private PositEvent[] positEvents = new PositEvent[4];
+    private int positDepth;
+    private StateEvent[] stateEvents = new StateEvent[4];
+    private int stateDepth;
+    private PrimitivePropertyEvent[] propertyEvents = new PrimitivePropertyEvent[4];
+    private int propertyDepth;
+
+    private EventPool() {}
+
+    /**
+     * Returns the pool of the current thread.
+     * @return the pool of the current thread
+     */
+    public static EventPool current() {
+        return POOLS.get();
+    }
+
+    /**
+     * Returns a pooled {@code PositEvent} initialized with the given values.
+     * @param source the source of the event
+     * @param move the move that caused the event or {@code null}
+     * @param previousPosit the previous position of the source
+     * @param nextPosit the next position of the source
+     * @return a pooled {@code PositEvent}
+     */
+    public PositEvent acquirePosit(Entity source, Object move,
+            long previousPosit, long nextPosit) {
+        if (positDepth == positEvents.length) {
+            positEvents = Arrays.copyOf(positEvents, positDepth * 2);
+        }
+        PositEvent e = positEvents[positDepth];
+        if (e == null) {
+            e = positEvents[positDepth] = new PositEvent(null, 0, 0);
+            e.pooled = true;
+        }
+        positDepth++;
+        e.source = source;
+        e.move = move;
+        e.previousPosit = previousPosit;
+        e.nextPosit = nextPosit;
+        return e;
+    }
+
+    /**
+     * Gives back the last {@code PositEvent} acquired by this pool.
+     * @param e the event to give back
+     * @throws IllegalStateException if {@code e} is not the last acquired
+     * {@code PositEvent}
+     */
+    public void release(PositEvent e) throws IllegalStateException {
+        if (positDepth == 0 || positEvents[positDepth-1] != e)
+            throw new IllegalStateException("event released out of order");
+        positDepth--;
+        e.source = null;
+        e.move = null;
+    }
+
+    /**
+     * Returns a pooled {@code StateEvent} initialized with the given values.
+     * @param source the source of the event
+     * @param move the move that caused the event or {@code null}
+     * @param previousState the previous state of the source
+     * @param nextState the next state of the source
+     * @return a pooled {@code StateEvent}
+     */
+    public StateEvent acquireState(Entity source, Object move,
+            long previousState, long nextState) {
+        if (stateDepth == stateEvents.length) {
+            stateEvents = Arrays.copyOf(stateEvents, stateDepth * 2);
+        }
+        StateEvent e = stateEvents[stateDepth];
+        if (e == null) {
+            e = stateEvents[stateDepth] = new StateEvent(null, 0, 0);
+            e.pooled = true;
+        }
+        stateDepth++;
+        e.source = source;
+        e.move = move;
+        e.previousState = previousState;
+        e.nextState = nextState;
+        return e;
+    }
+
+    /**
+     * Gives back the last {@code StateEvent} acquired by this pool.
+     * @param e the event to give back
+     * @throws IllegalStateException if {@code e} is not the last acquired
+     * {@code StateEvent}
+     */
+    public void release(StateEvent e) throws IllegalStateException {
+        if (stateDepth == 0 || stateEvents[stateDepth-1] != e)
+            throw new IllegalStateException("event released out of order");
+        stateDepth--;
+        e.source = null;
+        e.move = null;
+    }
+
+    /**
+     * Returns a pooled {@code PrimitivePropertyEvent} initialized with the
+     * given values.
+     * @param source the source of the event
+     * @param move the move that caused the event or {@code null}
+     * @param key the key of the property that changed
+     * @param doubleValued whether the values are {@code double} bits
+     * @param hadPrevious whether the property was present before the change
+     * @param previousBits the previous value ({@code double} values as raw bits)
+     * @param nextBits the next value ({@code double} values as raw bits)
+     * @return a pooled {@code PrimitivePropertyEvent}
+     */
+    public PrimitivePropertyEvent acquirePrimitiveProperty(Entity source, Object move,
+            PropertyKey<?> key, boolean doubleValued, boolean hadPrevious,
+            long previousBits, long nextBits) {
+        if (propertyDepth == propertyEvents.length) {
+            propertyEvents = Arrays.copyOf(propertyEvents, propertyDepth * 2);
+        }
+        PrimitivePropertyEvent e = propertyEvents[propertyDepth];
+        if (e == null) {
+            e = propertyEvents[propertyDepth]
+                    = new PrimitivePropertyEvent(null, null, null, false, false, 0, 0);
+            e.pooled = true;
+        }
+        propertyDepth++;
+        e.source = source;
+        e.move = move;
+        e.key = key;
+        e.doubleValued = doubleValued;
+        e.hadPrevious = hadPrevious;
+        e.previousBits = previousBits;
+        e.nextBits = nextBits;
+        return e;
+    }
+
+    /**
+     * Gives back the last {@code PrimitivePropertyEvent} acquired by this pool.
+     * @param e the event to give back
+     * @throws IllegalStateException if {@code e} is not the last acquired
+     * {@code PrimitivePropertyEvent}
+     */
+    public void release(PrimitivePropertyEvent e) throws IllegalStateException {
+        if (propertyDepth == 0 || propertyEvents[propertyDepth-1] != e)
+            throw new IllegalStateException("event released out of order");
+        propertyDepth--;
+        e.source = null;
+        e.move = null;
+    }
+}
@@ -13,13 +13,13 @@ public class PositEvent extends Event {
      * The previous position of the source.
      * May be equal to the next position.
      */
-    public final long previousPosit;
+    public long previousPosit;
 
     /**
      * The next (current) position of the source.
      * May be equal to the previous position.
      */
-    public final long nextPosit;
+    public long nextPosit;
     
     public PositEvent(Entity source, Object move,
             long previousPosit, long nextPosit) {
@@ -35,6 +35,29 @@ public class PositEvent extends Event {
         this.nextPosit = nextPosit;
     }
 
+    /**
+     * Returns the previous position of the source.
+     * May be equal to the next position.
+     * @return the previous position
+     */
+    public long getPreviousPosit() {
+        return previousPosit;
+    }
+
+    /**
+     * Returns the next (current) position of the source.
+     * May be equal to the previous position.
+     * @return the next position
+     */
+    public long getNextPosit() {
+        return nextPosit;
+    }
+
+    @Override
+    public PositEvent retain() {
+        return pooled ? new PositEvent(source, move, previousPosit, nextPosit) : this;
+    }
+
     @Override
     public String toString() {
         return super.toString()+", move: \""+move+"\", previousPosit: "
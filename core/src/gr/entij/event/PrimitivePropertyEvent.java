@@ -0,0 +1,161 @@
+package gr.entij.event;
+
+import gr.entij.Entity;
+import gr.entij.PropertyKey;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A {@code PrimitivePropertyEvent} is generated when a primitive property of
+ * an entity is set by {@link Entity#setLong(PropertyKey, long) Entity.setLong}
+ * or {@link Entity#setDouble(PropertyKey, double) Entity.setDouble} and the
+ * property was either absent or held a primitive of the same kind. <p>
+ * The previous and next values are kept unboxed and are read through
+ * {@link #previousLong()}, {@link #nextLong()}, {@link #previousDouble()} and
+ * {@link #nextDouble()}. The inherited {@link #oldValues} map is a view that
+ * boxes the previous value only when it is accessed, so listeners written for
+ * plain {@link PropertyEvent PropertyEvents} keep working.
+ * @see Entity#setLong(PropertyKey, long)
+ * @see Entity#setDouble(PropertyKey, double)
+ */
+public class PrimitivePropertyEvent extends PropertyEvent {
+
+    PropertyKey<?> key;
+    boolean doubleValued;
+    boolean hadPrevious;
+    long previousBits;
+    long nextBits;
+
+    public PrimitivePropertyEvent(Entity source, Object move, PropertyKey<?> key,
+            boolean doubleValued, boolean hadPrevious, long previousBits, long nextBits) {
+        this(source, move, new OldValues(), key, doubleValued, hadPrevious,
+                previousBits, nextBits);
+    }
+
+    private PrimitivePropertyEvent(Entity source, Object move, OldValues oldValues,
+            PropertyKey<?> key, boolean doubleValued, boolean hadPrevious,
+            long previousBits, long nextBits) {
+        super(source, move, oldValues);
+        oldValues.event = this;
+        this.key = key;
+        this.doubleValued = doubleValued;
+        this.hadPrevious = hadPrevious;
+        this.previousBits = previousBits;
+        this.nextBits = nextBits;
+    }
+
+    /**
+     * Returns the key of the property that changed.
+     * @return the key of the property
+     */
+    public PropertyKey<?> getKey() {
+        return key;
+    }
+
+    /**
+     * Returns whether the values are {@code double} or {@code long}.
+     * @return {@code true} if the values are {@code double}; {@code false} if
+     * they are {@code long}
+     */
+    public boolean isDoubleValued() {
+        return doubleValued;
+    }
+
+    /**
+     * Returns whether the property was present before the change.
+     * @return {@code true} if the property was present before the change
+     */
+    public boolean hadPrevious() {
+        return hadPrevious;
+    }
+
+    /**
+     * Returns the previous value of a {@code long} property, 0 if the property
+     * was absent.
+     * @return the previous value
+     */
+    public long previousLong() {
+        return doubleValued ? (long) Double.longBitsToDouble(previousBits) : previousBits;
+    }
+
+    /**
+     * Returns the next (current) value of a {@code long} property.
+     * @return the next value
+     */
+    public long nextLong() {
+        return doubleValued ? (long) Double.longBitsToDouble(nextBits) : nextBits;
+    }
+
+    /**
+     * Returns the previous value of a {@code double} property, 0 if the
+     * property was absent.
+     * @return the previous value
+     */
+    public double previousDouble() {
+        return doubleValued ? Double.longBitsToDouble(previousBits) : previousBits;
+    }
+
+    /**
+     * Returns the next (current) value of a {@code double} property.
+     * @return the next value
+     */
+    public double nextDouble() {
+        return doubleValued ? Double.longBitsToDouble(nextBits) : nextBits;
+    }
+
+    private Object boxedPrevious() {
+        if (!hadPrevious) return null;
+        return doubleValued
+                ? (Object) Double.longBitsToDouble(previousBits)
+                : (Object) previousBits;
+    }
+
+    @Override
+    public PrimitivePropertyEvent retain() {
+        return pooled
+                ? new PrimitivePropertyEvent(source, move, key, doubleValued,
+                        hadPrevious, previousBits, nextBits)
+                : this;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString()+", key: "+key.name()+", next: "
+                +(doubleValued ? (Object) nextDouble() : (Object) nextLong());
+    }
+
+    /** Single entry view of the previous value. */
+    private static final class OldValues extends AbstractMap<String, Object> {
+        PrimitivePropertyEvent event;
+
+        @Override public int size() {
+            return 1;
+        }
+
+        @Override public boolean containsKey(Object name) {
+            return event.key.name().equals(name);
+        }
+
+        @Override public Object get(Object name) {
+            return event.key.name().equals(name) ? event.boxedPrevious() : null;
+        }
+
+        @Override public Set<Entry<String, Object>> entrySet() {
+            return Collections.singletonMap(event.key.name(), event.boxedPrevious()).entrySet();
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof Map)) return false;
+            Map<?, ?> other = (Map<?, ?>) o;
+            return other.size() == 1 && other.containsKey(event.key.name())
+                    && Objects.equals(other.get(event.key.name()), event.boxedPrevious());
+        }
+
+        @Override public int hashCode() {
+            return event.key.name().hashCode() ^ Objects.hashCode(event.boxedPrevious());
+        }
+    }
+}
@@ -35,6 +35,11 @@ public class PropertyEvent extends Event {
         this.oldValues = oldValues;
     }
 
+    @Override
+    public PropertyEvent retain() {
+        return pooled ? new PropertyEvent(source, move, oldValues) : this;
+    }
+
     @Override
     public String toString() {
         return super.toString()+ ", oldValues: "+oldValues;
@@ -14,13 +14,13 @@ public class StateEvent extends Event {
      * The previous state of the source.
      * May be equal to the next state.
      */
-    public final long previousState;
+    public long previousState;
     
     /**
      * The next (current) state of the source.
      * May be equal to the previous state.
      */
-    public final long nextState;
+    public long nextState;
     
     public StateEvent(Entity source, Object move, long previousState, long nextState) {
         super(source, move);
@@ -34,6 +34,29 @@ public class StateEvent extends Event {
         this.nextState = nextState;
     }
 
+    /**
+     * Returns the previous state of the source.
+     * May be equal to the next state.
+     * @return the previous state
+     */
+    public long getPreviousState() {
+        return previousState;
+    }
+
+    /**
+     * Returns the next (current) state of the source.
+     * May be equal to the previous state.
+     * @return the next state
+     */
+    public long getNextState() {
+        return nextState;
+    }
+
+    @Override
+    public StateEvent retain() {
+        return pooled ? new StateEvent(source, move, previousState, nextState) : this;
+    }
+
     @Override
     public String toString() {
         return super.toString()+", previousState: "+previousState+", nextState: "+nextState;
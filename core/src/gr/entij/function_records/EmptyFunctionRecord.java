@@ -0,0 +1,36 @@
+package gr.entij.function_records;
+
+import gr.entij.Entity;
+import gr.entij.FunctionRecord;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+
+/**
+ * Unmodifiable function record without functions, shared by all the entities
+ * that have no functions of their own; its {@linkplain #child() children}
+ * are modifiable {@link HashFunctionRecord}s.
+ */
+public final class EmptyFunctionRecord implements FunctionRecord {
+
+    /** The only instance. */
+    public static final EmptyFunctionRecord INSTANCE = new EmptyFunctionRecord();
+
+    private EmptyFunctionRecord() {
+    }
+
+    @Override
+    public <T> T apply(Entity en, String func, Object... params)
+            throws NoSuchElementException {
+        throw new NoSuchElementException("Not found function named: "+func);
+    }
+
+    @Override
+    public BiFunction<Entity, Object[], Object> lookUp(String func) {
+        return null;
+    }
+
+    @Override
+    public FunctionRecord child() {
+        return new HashFunctionRecord();
+    }
+}
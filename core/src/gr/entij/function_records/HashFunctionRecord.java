@@ -1,7 +1,9 @@
 package gr.entij.function_records;
 
 import gr.entij.Entity;
+import gr.entij.FunctionHandle;
 import gr.entij.FunctionRecord;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -12,6 +14,8 @@ public class HashFunctionRecord implements FunctionRecord {
     
     private final FunctionRecord parent;
     private Map<String, BiFunction<Entity, Object[], Object>> funcs;
+    /** Functions resolved by handle index or {@code null}. */
+    private volatile Resolved resolved;
 
     public HashFunctionRecord() {
         this(null);
@@ -38,6 +42,30 @@ public class HashFunctionRecord implements FunctionRecord {
         return f != null || parent == null ? f : parent.lookUp(func);
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public BiFunction<Entity, Object[], Object> resolve(FunctionHandle func) {
+        int index = func.index();
+        int version = FunctionHandle.version();
+        Resolved r = resolved;
+        boolean valid = r != null && r.version == version;
+        if (valid && index < r.funcs.length) {
+            BiFunction<?, ?, ?> f = r.funcs[index];
+            if (f != null) return (BiFunction<Entity, Object[], Object>) f;
+        }
+        BiFunction<Entity, Object[], Object> f = lookUp(func.name());
+        if (f != null) {
+            // copy on write; a concurrent miss may drop this entry, which
+            // is then only resolved again
+            BiFunction<?, ?, ?>[] funcs = valid
+                    ? Arrays.copyOf(r.funcs, Math.max(index + 1, r.funcs.length))
+                    : new BiFunction<?, ?, ?>[Math.max(index + 1, 4)];
+            funcs[index] = f;
+            resolved = new Resolved(version, funcs);
+        }
+        return f;
+    }
+
     @Override
     public FunctionRecord child() {
         return new HashFunctionRecord(this);
@@ -46,6 +74,12 @@ public class HashFunctionRecord implements FunctionRecord {
     @Override
     public void init(Entity e) {}
 
+    /**
+     * Sets the function with the given name in this record. <p>
+     * Any call bumps the global {@linkplain FunctionHandle#version() version}
+     * of function handles, so it invalidates the resolved functions of every
+     * function record, not just of this one.
+     */
     @Override
     public void setFunc(String funcName, BiFunction<Entity, Object[], Object> func)
             throws UnsupportedOperationException, NullPointerException {
@@ -54,6 +88,20 @@ public class HashFunctionRecord implements FunctionRecord {
             funcs = new HashMap<>();
         }
         funcs.put(funcName, func);
+        FunctionHandle.invalidateAll();
     }
     
+    /**
+     * The functions resolved at a {@link FunctionHandle#version()}, by
+     * handle index; never modified once published.
+     */
+    private static final class Resolved {
+        final int version;
+        final BiFunction<?, ?, ?>[] funcs;
+
+        Resolved(int version, BiFunction<?, ?, ?>[] funcs) {
+            this.version = version;
+            this.funcs = funcs;
+        }
+    }
 }
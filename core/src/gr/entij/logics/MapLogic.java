@@ -1,10 +1,66 @@
 package gr.entij.logics;
 
 import gr.entij.*;
+import gr.entij.util.LongObjectMap;
 import java.util.*;
 import java.util.function.*;
 
+/**
+ * Logic that maps moves to reactions. <p>
+ * A move is looked up, in order:
+ * <ol>
+ *   <li>if it is a {@code Long} or an {@code Integer}, by code, among the
+ *       codes mapped by {@link #mapCode mapCode},</li>
+ *   <li>by value, among the moves mapped by {@link #map map},</li>
+ *   <li>by class, among the classes mapped by {@link #mapClass mapClass};
+ *       the most specific mapped class or interface of the move applies,
+ *       see below,</li>
+ *   <li>by the {@link #match match} chain.</li>
+ * </ol>
+ * The most specific mapping of a class is found by walking up its
+ * superclasses, starting from the class itself; at each class, the class
+ * and then the interfaces it implements (and their superinterfaces) are
+ * checked. The result is cached per class, so after the first move of a
+ * class, finding its mapping takes O(1) time regardless of the depth of the
+ * hierarchy or the number of mapped classes. <p>
+ * Codes are kept in a primitive {@link LongObjectMap}; moves performed by
+ * {@link Entity#reactCode(long)} are looked up among them without boxing.
+ */
 public class MapLogic implements Logic {
+    
+    /**
+     * Function that returns the reaction to a move given as a code.
+     */
+    @FunctionalInterface
+    public static interface CodeFunction {
+        /**
+         * Returns the reaction of the given entity to the given code.
+         * @param e the entity that is about to perform the move
+         * @param code the code of the move
+         * @return a reaction for the move or {@code null} if it is invalid
+         */
+        Reaction apply(Entity e, long code);
+    }
+    
+    static final class CodeEntry {
+        final Predicate<? super Entity> matcher;
+        final CodeFunction logic;
+        CodeEntry next;
+
+        CodeEntry(Predicate<? super Entity> matcher, CodeFunction logic) {
+            this.matcher = matcher;
+            this.logic = logic;
+        }
+
+        Reaction applyMatching(Entity e, long code) {
+            for (CodeEntry current = this; current != null; current = current.next) {
+                if (current.matcher == null || current.matcher.test(e)) {
+                    return current.logic.apply(e, code);
+                }
+            }
+            return null;
+        }
+    }
     static final class Entry {
         BiPredicate<Entity, Object> matcher;
         BiFunction<Entity,  Object, Reaction> logic;
@@ -34,19 +90,36 @@ public class MapLogic implements Logic {
         }
     }
 
+    /** Marks the classes with no mapping in {@link #dispatch}. */
+    private static final Entry NONE = new Entry(null, null);
+
+    private final LongObjectMap<CodeEntry> codes = new LongObjectMap<>();
     private final Map<Object, Entry> map = new HashMap<>(5);
+    private final Map<Class<?>, Entry> classes = new HashMap<>(5);
+    /** Cache of the most specific class mapping of each class; replaced on change. */
+    private volatile ClassValue<Entry> dispatch = newDispatch();
     private Entry head;
     private Entry tail;
 
     @Override
     public Reaction reaction(Entity e, Object move) {
-        Entry mapping = map.get(move); // search for the exact (or equal) move
-        if (mapping != null) {
-            return mapping.applyMatching(e, move);
+        if (!codes.isEmpty() && (move instanceof Long || move instanceof Integer)) {
+            CodeEntry mapping = codes.get(((Number) move).longValue());
+            if (mapping != null) {
+                return mapping.applyMatching(e, ((Number) move).longValue());
+            }
         }
-        mapping = map.get(move.getClass()); // search for the move's class
-        if (mapping != null) {
-            return mapping.applyMatching(e, move);
+        if (!map.isEmpty()) {
+            Entry mapping = map.get(move); // search for the exact (or equal) move
+            if (mapping != null) {
+                return mapping.applyMatching(e, move);
+            }
+        }
+        if (!classes.isEmpty()) {
+            Entry mapping = dispatch.get(move.getClass()); // search for the move's class
+            if (mapping != NONE) {
+                return mapping.applyMatching(e, move);
+            }
         }
 
         if (head != null) {
@@ -55,6 +128,62 @@ public class MapLogic implements Logic {
         return null;
     }
 
+    /**
+     * Looks the given code up among the mapped codes, without boxing it; if
+     * it is not mapped, looks it up as a {@code Long} move.
+     * @param e the entity that is about to perform the move
+     * @param code the code of the move
+     * @return a reaction for the move or {@code null} if it is invalid
+     */
+    @Override
+    public Reaction reaction(Entity e, long code) {
+        CodeEntry mapping = codes.get(code);
+        if (mapping != null) {
+            return mapping.applyMatching(e, code);
+        }
+        return reaction(e, Long.valueOf(code));
+    }
+
+    /**
+     * Maps the given code to the given function, which is applied if
+     * {@code matcher} accepts the entity. Several functions may be mapped to
+     * the same code; the first whose matcher accepts the entity applies. <p>
+     * The code matches moves performed by {@link Entity#reactCode(long)} and
+     * {@code Long} or {@code Integer} moves of equal value.
+     * @param code the code of the move
+     * @param matcher tests the entity or {@code null} to accept all
+     * @param logic the function that returns the reaction
+     * @return this logic
+     * @throws NullPointerException if {@code logic} is {@code null}
+     */
+    public MapLogic mapCode(long code, Predicate<? super Entity> matcher, CodeFunction logic)
+            throws NullPointerException {
+        Objects.requireNonNull(logic, "logic cannot be null");
+        CodeEntry entry = new CodeEntry(matcher, logic);
+        CodeEntry mapping = codes.get(code);
+        if (mapping == null) {
+            codes.put(code, entry);
+        } else {
+            while (mapping.next != null) {
+                mapping = mapping.next;
+            }
+            mapping.next = entry;
+        }
+        return this;
+    }
+
+    /**
+     * Same as {@link #mapCode(long, Predicate, CodeFunction)
+     * mapCode(code, null, logic)}.
+     * @param code the code of the move
+     * @param logic the function that returns the reaction
+     * @return this logic
+     * @throws NullPointerException if {@code logic} is {@code null}
+     */
+    public MapLogic mapCode(long code, CodeFunction logic) throws NullPointerException {
+        return mapCode(code, null, logic);
+    }
+
     public MapLogic map(Object move, BiPredicate<Entity, Object> matcher,
             BiFunction<Entity, Object, Reaction> logic) {
         Objects.requireNonNull(move, "move cannot be null");
@@ -82,11 +211,12 @@ public class MapLogic implements Logic {
         
         Entry entry = new Entry((BiPredicate<Entity, Object>)matcher,
                 (BiFunction<Entity, Object, Reaction>)logic);
-        Entry mapping = map.get(clazz);
+        Entry mapping = classes.get(clazz);
         if (mapping != null) {
             mapping.findTail().next = entry;
         } else {
-            map.put(clazz, entry);
+            classes.put(clazz, entry);
+            dispatch = newDispatch();
         }
         return this;
     }
@@ -95,6 +225,31 @@ public class MapLogic implements Logic {
         return mapClass(clazz, null, logic);
     }
     
+    private ClassValue<Entry> newDispatch() {
+        return new ClassValue<Entry>() {
+            @Override
+            protected Entry computeValue(Class<?> type) {
+                Entry found = findMostSpecific(type);
+                return found == null ? NONE : found;
+            }
+        };
+    }
+    
+    private Entry findMostSpecific(Class<?> type) {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            Entry found = classes.get(c);
+            if (found != null) return found;
+            Deque<Class<?>> interfaces = new ArrayDeque<>(Arrays.asList(c.getInterfaces()));
+            while (!interfaces.isEmpty()) {
+                Class<?> i = interfaces.poll();
+                found = classes.get(i);
+                if (found != null) return found;
+                interfaces.addAll(Arrays.asList(i.getInterfaces()));
+            }
+        }
+        return null;
+    }
+    
     public MapLogic match(BiPredicate<Entity, Object> matcher,
             BiFunction<Entity, Object, Reaction> logic) {
         Objects.requireNonNull(logic, "logic cannot be null");
@@ -0,0 +1,346 @@
+package gr.entij.snapshot;
+
+import gr.entij.Entity;
+import gr.entij.Terrain;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Checkpoint files of terrains, laid out for fast restores through
+ * {@linkplain java.nio.MappedByteBuffer memory mapping}. <p>
+ * Unlike a {@linkplain SnapshotWriter snapshot}, which is a stream of
+ * entities, a checkpoint stores the posits and the states of the entities
+ * as two fixed width columns, followed by the posit and state indexes of the
+ * terrain: the distinct values and, for each value, the entities that have
+ * it. {@link #restore} maps these sections and hands the prebuilt groups to
+ * {@link Terrain#addGrouped}, so the indexes are loaded one group at a time
+ * instead of replaying an {@link Terrain#add add} per entity. The names and
+ * the properties of the entities follow, encoded as in snapshots. <p>
+ * Checkpoints do not hold the {@linkplain Entity#getChildren() children}
+ * lists of the entities. The layout, in big-endian order, is:
+ * <pre>
+ * header        64 bytes: magic, version, entity count, posit and state
+ *               group counts, terrain posit and state, offsets of the names
+ *               and properties sections and the file length
+ * posits        long[count], by entity number
+ * states        long[count]
+ * posit keys    long[positGroups], ascending
+ * state keys    long[stateGroups], ascending
+ * posit sizes   int[positGroups], number of entities of each posit
+ * state sizes   int[stateGroups]
+ * posit groups  int[count], the entity numbers of each posit, in key order
+ * state groups  int[count]
+ * names         the terrain name, then the entity names
+ * properties    the terrain properties, then those of each entity
+ * </pre>
+ * @see Terrain#addGrouped
+ */
+public final class Checkpoint {
+
+    /** The first bytes of a checkpoint: "ENTC". */
+    static final int MAGIC = 0x454E5443;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+
+    private Checkpoint() {
+    }
+
+    /**
+     * Writes a checkpoint of the given terrain, with the built-in codecs
+     * only, replacing the given file.
+     * @param terrain the terrain to write
+     * @param file the checkpoint file
+     * @throws IOException if an I/O error occurs or a property value has no
+     * codec
+     */
+    public static void write(Terrain terrain, Path file) throws IOException {
+        write(terrain, file, new ValueCodecs());
+    }
+
+    /**
+     * Writes a checkpoint of the given terrain, replacing the given file. The
+     * terrain and its entities must not change while written. <p>
+     * The checkpoint is written to a sibling file with the {@code .tmp}
+     * suffix, forced to the storage device and then atomically moved over
+     * the given file, so a crash leaves either the previous or the new
+     * checkpoint.
+     * @param terrain the terrain to write
+     * @param file the checkpoint file
+     * @param codecs the codecs of the property values
+     * @throws IOException if an I/O error occurs or a property value has no
+     * codec
+     */
+    public static void write(Terrain terrain, Path file, ValueCodecs codecs)
+            throws IOException {
+        Entity[] entities = terrain.getAll().toArray(new Entity[terrain.getEntityCount()]);
+        int count = entities.length;
+        long[] posits = new long[count];
+        long[] states = new long[count];
+        for (int i = 0; i < count; i++) {
+            posits[i] = entities[i].getPosit();
+            states[i] = entities[i].getState();
+        }
+        Groups byPosit = new Groups(posits);
+        Groups byState = new Groups(states);
+
+        Path temp = file.resolveSibling(file.getFileName()+".tmp");
+        boolean done = false;
+        try {
+            try (FileChannel channel = FileChannel.open(temp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.allocate(SnapshotWriter.BUFFER_SIZE);
+                channel.position(HEADER_SIZE);
+                writeLongs(channel, buffer, posits, count);
+                writeLongs(channel, buffer, states, count);
+                writeLongs(channel, buffer, byPosit.keys, byPosit.count);
+                writeLongs(channel, buffer, byState.keys, byState.count);
+                writeInts(channel, buffer, byPosit.sizes, byPosit.count);
+                writeInts(channel, buffer, byState.sizes, byState.count);
+                writeInts(channel, buffer, byPosit.members, count);
+                writeInts(channel, buffer, byState.members, count);
+
+                SnapshotWriter out = new SnapshotWriter(channel, codecs);
+                long namesOffset = channel.position();
+                out.writeString(terrain.getName());
+                for (Entity e : entities) {
+                    out.writeString(e.getName());
+                }
+                out.flush();
+                long propsOffset = channel.position();
+                out.writeProperties(terrain);
+                for (Entity e : entities) {
+                    out.writeProperties(e);
+                }
+                out.flush();
+                long end = channel.position();
+
+                buffer.clear();
+                buffer.putInt(MAGIC).putInt(VERSION).putInt(count)
+                        .putInt(byPosit.count).putInt(byState.count).putInt(0)
+                        .putLong(terrain.getPosit()).putLong(terrain.getState())
+                        .putLong(namesOffset).putLong(propsOffset).putLong(end);
+                buffer.flip();
+                long position = 0;
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+            done = true;
+        } finally {
+            if (!done) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * Restores a terrain from a checkpoint written with the built-in codecs
+     * only.
+     * @param file the checkpoint file
+     * @return the restored terrain
+     * @throws IOException if an I/O error occurs or the file is not a valid
+     * checkpoint
+     */
+    public static Terrain restore(Path file) throws IOException {
+        return restore(file, new ValueCodecs());
+    }
+
+    /**
+     * Restores a terrain from a checkpoint.
+     * @param file the checkpoint file
+     * @param codecs the codecs of the property values, registered with the
+     * same ids as those used to write the checkpoint
+     * @return the restored terrain
+     * @throws StreamCorruptedException if the file is not a valid checkpoint
+     * @throws IOException if an I/O error occurs
+     */
+    public static Terrain restore(Path file, ValueCodecs codecs) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0)
+                    throw new EOFException("checkpoint ended unexpectedly");
+            }
+            header.flip();
+            if (header.getInt() != MAGIC)
+                throw new StreamCorruptedException("not an entity checkpoint");
+            int version = header.getInt();
+            if (version != VERSION)
+                throw new StreamCorruptedException("unsupported checkpoint version: "+version);
+            int count = header.getInt();
+            int positGroups = header.getInt();
+            int stateGroups = header.getInt();
+            header.getInt();
+            long terrainPosit = header.getLong();
+            long terrainState = header.getLong();
+            long namesOffset = header.getLong();
+            long propsOffset = header.getLong();
+            long end = header.getLong();
+            long intsOffset = HEADER_SIZE + 8L * (2L * count + positGroups + stateGroups);
+            if (count < 0 || positGroups < 0 || stateGroups < 0
+                    || intsOffset + 4L * (2L * count + positGroups + stateGroups) != namesOffset
+                    || propsOffset < namesOffset || end < propsOffset || end > channel.size())
+                throw new StreamCorruptedException("invalid checkpoint header");
+
+            LongBuffer longs = channel.map(FileChannel.MapMode.READ_ONLY,
+                    HEADER_SIZE, intsOffset - HEADER_SIZE).asLongBuffer();
+            IntBuffer ints = channel.map(FileChannel.MapMode.READ_ONLY,
+                    intsOffset, namesOffset - intsOffset).asIntBuffer();
+            SnapshotReader names = new SnapshotReader(channel.map(FileChannel.MapMode.READ_ONLY,
+                    namesOffset, propsOffset - namesOffset), codecs);
+            SnapshotReader props = new SnapshotReader(channel.map(FileChannel.MapMode.READ_ONLY,
+                    propsOffset, end - propsOffset), codecs);
+
+            Terrain terrain = new Terrain(names.readString());
+            terrain.setPosit(terrainPosit);
+            terrain.setState(terrainState);
+            props.readProperties(terrain);
+            Entity[] entities = new Entity[count];
+            for (int i = 0; i < count; i++) {
+                Entity e = new Entity(names.readString(), longs.get(i), longs.get(count + i));
+                props.readProperties(e);
+                entities[i] = e;
+            }
+
+            int keysAt = 2 * count;
+            Map<Long, List<Entity>> byPosit = groups(entities, longs, keysAt, positGroups,
+                    ints, 0, positGroups + stateGroups);
+            Map<Long, List<Entity>> byState = groups(entities, longs, keysAt + positGroups,
+                    stateGroups, ints, positGroups, positGroups + stateGroups + count);
+            terrain.addGrouped(Arrays.asList(entities), byPosit, byState);
+            return terrain;
+        }
+    }
+
+    /**
+     * Returns the groups of an index section as views over the entities.
+     */
+    private static Map<Long, List<Entity>> groups(Entity[] entities, LongBuffer longs,
+            int keysAt, int groupCount, IntBuffer ints, int sizesAt, int membersAt)
+            throws StreamCorruptedException {
+        Map<Long, List<Entity>> result = new HashMap<>(groupCount * 4 / 3 + 1);
+        int from = membersAt;
+        for (int g = 0; g < groupCount; g++) {
+            int size = ints.get(sizesAt + g);
+            if (size <= 0 || from + size > membersAt + entities.length)
+                throw new StreamCorruptedException("invalid index group size: "+size);
+            for (int i = from; i < from + size; i++) {
+                int member = ints.get(i);
+                if (member < 0 || member >= entities.length)
+                    throw new StreamCorruptedException("invalid index group member: "+member);
+            }
+            result.put(longs.get(keysAt + g), new Group(entities, ints, from, size));
+            from += size;
+        }
+        return result;
+    }
+
+    /**
+     * The entities of a group of an index section.
+     */
+    private static final class Group extends AbstractList<Entity> {
+        private final Entity[] entities;
+        private final IntBuffer members;
+        private final int from;
+        private final int size;
+
+        Group(Entity[] entities, IntBuffer members, int from, int size) {
+            this.entities = entities;
+            this.members = members;
+            this.from = from;
+            this.size = size;
+        }
+
+        @Override
+        public Entity get(int index) {
+            if (index < 0 || index >= size)
+                throw new IndexOutOfBoundsException("index: "+index+", size: "+size);
+            return entities[members.get(from + index)];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * An index section being written: the distinct values of a column and
+     * the entity numbers of each value.
+     */
+    private static final class Groups {
+        final long[] keys;
+        final int[] sizes;
+        final int[] members;
+        final int count;
+
+        Groups(long[] column) {
+            long[] sorted = column.clone();
+            Arrays.sort(sorted);
+            int n = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (i == 0 || sorted[i] != sorted[i - 1]) {
+                    sorted[n++] = sorted[i];
+                }
+            }
+            keys = sorted;
+            count = n;
+            sizes = new int[n];
+            for (long value : column) {
+                sizes[Arrays.binarySearch(keys, 0, n, value)]++;
+            }
+            int[] next = new int[n];
+            for (int g = 1; g < n; g++) {
+                next[g] = next[g - 1] + sizes[g - 1];
+            }
+            members = new int[column.length];
+            for (int i = 0; i < column.length; i++) {
+                members[next[Arrays.binarySearch(keys, 0, n, column[i])]++] = i;
+            }
+        }
+    }
+
+    private static void writeLongs(FileChannel channel, ByteBuffer buffer, long[] values,
+            int length) throws IOException {
+        for (int i = 0; i < length; ) {
+            buffer.clear();
+            int n = Math.min(length - i, buffer.capacity() / 8);
+            buffer.asLongBuffer().put(values, i, n);
+            buffer.limit(n * 8);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            i += n;
+        }
+    }
+
+    private static void writeInts(FileChannel channel, ByteBuffer buffer, int[] values,
+            int length) throws IOException {
+        for (int i = 0; i < length; ) {
+            buffer.clear();
+            int n = Math.min(length - i, buffer.capacity() / 4);
+            buffer.asIntBuffer().put(values, i, n);
+            buffer.limit(n * 4);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            i += n;
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package gr.entij.snapshot;
+
+import gr.entij.Entity;
+import gr.entij.Reaction;
+import gr.entij.ReactionRecorder;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the reactions performed by entities, for rebuilding
+ * their state after a crash by {@linkplain #replay replaying} the journal on
+ * top of the last snapshot or checkpoint. <p>
+ * Once {@linkplain Entity#setReactionRecorder installed}, the journal
+ * records, for every reaction, the id and name of the entity, the input, if
+ * it has a codec, and the effects of the reaction on the entity: the posit,
+ * the state and the properties it sets. Replays apply the effects
+ * only. Follow-up moves are recorded as the reactions of their targets; the
+ * effects of function calls are not recorded. <p>
+ * Records are appended to an in-memory batch and written to the file
+ * channel by a <em>group commit</em>: when the batch holds
+ * {@linkplain #batchRecords(int) enough records}, when it is
+ * {@linkplain #maxDelay(long) old enough}, on {@link #commit()} and on
+ * {@link #close()}. The {@link Sync} policy decides whether a commit also
+ * forces the data to the storage device. So, recording a reaction costs no
+ * system call; the reactions of the last uncommitted batch may be lost on a
+ * crash. <p>
+ * Each record is prefixed by its length and checksum, so a replay stops
+ * cleanly at a record torn by a crash. Property and input values are
+ * encoded by {@link ValueCodecs} as in snapshots. <p>
+ * Recording never makes {@link Entity#react} fail: the first error, i.e. a
+ * property value without codec, a failed commit or a reaction recorded after
+ * {@link #close()}, stops the journal, since
+ * the records after it could not be replayed consistently. The error is
+ * then thrown by {@link #commit()} and {@link #close()} and returned by
+ * {@link #failure()}. Usage:
+ * <pre>{@code
+ * ReactionJournal journal = new ReactionJournal(FileChannel.open(path, CREATE, WRITE, APPEND))
+ *         .sync(ReactionJournal.Sync.DATA).maxDelay(10);
+ * Entity.setReactionRecorder(journal);
+ * }</pre>
+ * The journal is thread safe; it should be configured before it is
+ * installed.
+ * @see Entity#setReactionRecorder
+ */
+public final class ReactionJournal implements ReactionRecorder, Closeable {
+
+    /**
+     * What a commit does after writing the batch to the channel.
+     */
+    public static enum Sync {
+        /** Nothing; the operating system writes the data when it sees fit. */
+        NONE,
+        /** Forces the content of the file to the storage device. */
+        DATA,
+        /** Forces the content and the metadata of the file to the storage device. */
+        ALL
+    }
+
+    /**
+     * Finds the entity of a journal record during a replay.
+     */
+    @FunctionalInterface
+    public static interface EntityResolver {
+        /**
+         * Returns the entity of a record or {@code null} to skip the record.
+         * @param id the {@linkplain Entity#getId() id} the entity had when
+         * the record was written; -1 if it had none
+         * @param name the name of the entity
+         * @return the entity or {@code null}
+         */
+        Entity resolve(int id, String name);
+    }
+
+    static final int RECORD_HEADER_SIZE = 8;
+    private static final int HAS_POSIT = 1;
+    private static final int HAS_STATE = 2;
+    private static final int HAS_INPUT = 4;
+
+    private final FileChannel channel;
+    private final ValueCodecs codecs;
+    private Sync sync = Sync.NONE;
+    private int batchRecords = 256;
+    private ScheduledExecutorService timer;
+
+    // guarded by this
+    private ByteBuffer active = ByteBuffer.allocate(SnapshotWriter.BUFFER_SIZE);
+    private ByteBuffer standby = ByteBuffer.allocate(SnapshotWriter.BUFFER_SIZE);
+    private int activeRecords;
+    private final SnapshotWriter encoder;
+    private final CRC32 crc = new CRC32();
+    private boolean closed;
+    /** The error that stopped the journal or {@code null}. */
+    private volatile IOException failure;
+
+    /** Held while a batch is written; orders the commits. */
+    private final Object commitLock = new Object();
+
+    /**
+     * Creates a journal that appends to the given channel, with the built-in
+     * codecs only.
+     * @param channel the channel of the journal file, positioned at its end
+     * @throws NullPointerException if {@code channel} is {@code null}
+     */
+    public ReactionJournal(FileChannel channel) throws NullPointerException {
+        this(channel, new ValueCodecs());
+    }
+
+    /**
+     * Creates a journal that appends to the given channel.
+     * @param channel the channel of the journal file, positioned at its end
+     * @param codecs the codecs of the inputs and the property values
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public ReactionJournal(FileChannel channel, ValueCodecs codecs)
+            throws NullPointerException {
+        this.channel = Objects.requireNonNull(channel, "channel cannot be null");
+        this.codecs = Objects.requireNonNull(codecs, "codecs cannot be null");
+        encoder = new SnapshotWriter(new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int n = src.remaining();
+                ensureActive(n);
+                active.put(src);
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        }, codecs);
+    }
+
+    /**
+     * Sets what a commit does after writing the batch. {@link Sync#NONE} by
+     * default.
+     * @param sync the sync policy
+     * @return this journal
+     * @throws NullPointerException if {@code sync} is {@code null}
+     */
+    public ReactionJournal sync(Sync sync) throws NullPointerException {
+        this.sync = Objects.requireNonNull(sync, "sync cannot be null");
+        return this;
+    }
+
+    /**
+     * Sets the number of records that triggers a commit. 256 by default.
+     * @param batchRecords the number of records of a full batch
+     * @return this journal
+     * @throws IllegalArgumentException if {@code batchRecords} is less than 1
+     */
+    public ReactionJournal batchRecords(int batchRecords) throws IllegalArgumentException {
+        if (batchRecords < 1)
+            throw new IllegalArgumentException("batchRecords must be >= 1; found: "+batchRecords);
+        this.batchRecords = batchRecords;
+        return this;
+    }
+
+    /**
+     * Sets the maximum time a record waits in the batch; a daemon thread
+     * commits the batch this often. 0, the default, commits only full
+     * batches, on {@link #commit()} and on {@link #close()}.
+     * @param millis the maximum delay of a record in milliseconds
+     * @return this journal
+     * @throws IllegalArgumentException if {@code millis} is negative
+     * @throws IllegalStateException if the delay has already been set
+     */
+    public ReactionJournal maxDelay(long millis)
+            throws IllegalArgumentException, IllegalStateException {
+        if (millis < 0)
+            throw new IllegalArgumentException("millis must be >= 0; found: "+millis);
+        if (timer != null)
+            throw new IllegalStateException("maxDelay has already been set");
+        if (millis > 0) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "reaction-journal");
+                t.setDaemon(true);
+                return t;
+            });
+            timer.scheduleWithFixedDelay(() -> {
+                try {
+                    commit();
+                } catch (IOException ex) {
+                    // kept in failure
+                }
+            }, millis, millis, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * Appends a record of the given reaction to the batch; commits the batch
+     * if it is full. Does nothing if the journal has been stopped by an
+     * error; see {@link #failure()}. A record after the journal is closed is
+     * dropped and stops the journal.
+     */
+    @Override
+    public void record(Entity target, Object input, Reaction reaction) {
+        boolean full;
+        synchronized (this) {
+            if (failure != null) return;
+            if (closed) {
+                failure = new IOException("reaction recorded after the journal was closed");
+                return;
+            }
+            int start = active.position();
+            try {
+                ensureActive(RECORD_HEADER_SIZE);
+                active.position(start + RECORD_HEADER_SIZE);
+                encode(target, input, reaction);
+            } catch (IOException ex) {
+                encoder.discard();
+                active.position(start);
+                failure = ex;
+                return;
+            }
+            int end = active.position();
+            crc.reset();
+            crc.update(active.array(), start + RECORD_HEADER_SIZE, end - start - RECORD_HEADER_SIZE);
+            active.putInt(start, end - start - RECORD_HEADER_SIZE);
+            active.putInt(start + 4, (int) crc.getValue());
+            full = ++activeRecords >= batchRecords;
+        }
+        if (full) {
+            try {
+                commit();
+            } catch (IOException ex) {
+                // kept in failure
+            }
+        }
+    }
+
+    /**
+     * Returns the error that stopped this journal: a value without codec, a
+     * failed commit or a reaction recorded after {@link #close()}.
+     * @return the error or {@code null} if the journal works
+     */
+    public IOException failure() {
+        return failure;
+    }
+
+    private void encode(Entity target, Object input, Reaction reaction) throws IOException {
+        SnapshotWriter out = encoder;
+        out.writeVarInt(target.getId() + 1);
+        out.writeString(target.getName());
+        // inputs are informative only; those without codec are left out
+        boolean hasInput = input == null || input instanceof Long || input instanceof Double
+                || codecs.forType(input.getClass()) != null;
+        out.writeByte((reaction.changesPosit() ? HAS_POSIT : 0)
+                | (reaction.changesState() ? HAS_STATE : 0)
+                | (hasInput ? HAS_INPUT : 0));
+        if (hasInput) {
+            out.writeValue(input, "input");
+        }
+        if (reaction.changesPosit()) {
+            out.writeLong(reaction.nextPosit());
+        }
+        if (reaction.changesState()) {
+            out.writeLong(reaction.nextState());
+        }
+        Map<String, Object> props = reaction.nextProperties();
+        out.writeVarInt(props.size());
+        for (Map.Entry<String, Object> prop : props.entrySet()) {
+            out.writeString(prop.getKey());
+            out.writeValue(prop.getValue(), "property "+prop.getKey());
+        }
+        out.flush();
+    }
+
+    private void ensureActive(int n) {
+        if (active.remaining() < n) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(active.capacity() * 2,
+                    active.position() + n));
+            active.flip();
+            bigger.put(active);
+            active = bigger;
+        }
+    }
+
+    /**
+     * Writes the records of the batch to the channel and syncs them according
+     * to the {@linkplain #sync(Sync) sync policy}. Commits are performed one
+     * at a time; records appended meanwhile go to the next batch. A failed
+     * commit stops the journal and drops the records of the next batch,
+     * since records may have been lost.
+     * @throws IOException if an I/O error occurs or the journal has been
+     * stopped by an error
+     */
+    public void commit() throws IOException {
+        synchronized (commitLock) {
+            ByteBuffer batch;
+            synchronized (this) {
+                if (activeRecords == 0) {
+                    if (failure != null) throw failure;
+                    return;
+                }
+                batch = active;
+                active = standby;
+                standby = null;
+                activeRecords = 0;
+            }
+            try {
+                batch.flip();
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+                if (sync != Sync.NONE) {
+                    channel.force(sync == Sync.ALL);
+                }
+            } catch (IOException ex) {
+                synchronized (this) {
+                    // records after a torn write could not be replayed
+                    failure = ex;
+                    active.clear();
+                    activeRecords = 0;
+                }
+                throw ex;
+            } finally {
+                batch.clear();
+                synchronized (this) {
+                    standby = batch;
+                }
+            }
+            // the records before an encoding error are written, then it is reported
+            if (failure != null) throw failure;
+        }
+    }
+
+    /**
+     * Commits the batch, stops the commit thread and closes the channel.
+     * Reactions recorded afterwards are dropped; see {@link #failure()}.
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        if (timer != null) {
+            timer.shutdown();
+        }
+        try {
+            commit();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Replays the records of a journal, with the built-in codecs only; see
+     * {@link #replay(FileChannel, ValueCodecs, EntityResolver)}.
+     * @param channel the channel of the journal file
+     * @param resolver finds the entity of each record
+     * @return the number of records applied
+     * @throws IOException if an I/O error occurs or a record is invalid
+     */
+    public static int replay(FileChannel channel, EntityResolver resolver) throws IOException {
+        return replay(channel, new ValueCodecs(), resolver);
+    }
+
+    /**
+     * Replays the records of a journal from the current position of the
+     * given channel: applies the effects of each reaction to the entity
+     * returned by the resolver, by {@link Entity#setPosit},
+     * {@link Entity#setState} and {@link Entity#putAll}. The logics of the
+     * entities are not involved. Stops at the end of the channel or at a
+     * record torn by a crash, whose checksum does not match.
+     * @param channel the channel of the journal file
+     * @param codecs the codecs of the inputs and the property values,
+     * registered with the same ids as those used by the journal
+     * @param resolver finds the entity of each record
+     * @return the number of records applied
+     * @throws IOException if an I/O error occurs or a record is invalid
+     */
+    public static int replay(FileChannel channel, ValueCodecs codecs, EntityResolver resolver)
+            throws IOException {
+        Objects.requireNonNull(resolver, "resolver cannot be null");
+        SnapshotReader in = new SnapshotReader(channel, codecs);
+        CRC32 crc = new CRC32();
+        byte[] payload = new byte[256];
+        int applied = 0;
+        while (true) {
+            int length;
+            int checksum;
+            try {
+                length = in.readInt();
+                checksum = in.readInt();
+                if (length < 0 || length > channel.size()) break;
+                if (length > payload.length) {
+                    payload = new byte[Math.max(length, payload.length * 2)];
+                }
+                in.readBytes(payload, 0, length);
+            } catch (EOFException ex) {
+                break;
+            }
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != checksum) break;
+
+            SnapshotReader record = new SnapshotReader(ByteBuffer.wrap(payload, 0, length), codecs);
+            int id = record.readVarInt() - 1;
+            String name = record.readString();
+            int flags = record.readByte();
+            if ((flags & HAS_INPUT) != 0) {
+                record.readValue(record.readVarInt(), "input");
+            }
+            long posit = (flags & HAS_POSIT) != 0 ? record.readLong() : 0;
+            long state = (flags & HAS_STATE) != 0 ? record.readLong() : 0;
+            int propCount = record.readVarInt();
+            Map<String, Object> props = propCount == 0 ? null : new HashMap<>(propCount * 2);
+            for (int i = 0; i < propCount; i++) {
+                String prop = record.readString();
+                props.put(prop, record.readValue(record.readVarInt(), "property "+prop));
+            }
+
+            Entity target = resolver.resolve(id, name);
+            if (target == null) continue;
+            if ((flags & HAS_POSIT) != 0) {
+                target.setPosit(posit);
+            }
+            if ((flags & HAS_STATE) != 0) {
+                target.setState(state);
+            }
+            if (props != null) {
+                target.putAll(props);
+            }
+            applied++;
+        }
+        return applied;
+    }
+}
@@ -0,0 +1,320 @@
+package gr.entij.snapshot;
+
+import gr.entij.Entity;
+import gr.entij.PropertyKey;
+import gr.entij.Terrain;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Reads binary snapshots written by a {@link SnapshotWriter} from a channel.
+ * <p>
+ * The snapshot is decoded from a fixed size buffer, refilled from the
+ * channel as needed, and each entity is created and added to the new terrain
+ * as soon as it is read. The reader must use codecs registered with the same
+ * ids as those of the writer. <p>
+ * A reader is not thread safe; {@linkplain #close() closing} it closes the
+ * channel.
+ * @see SnapshotWriter
+ */
+public final class SnapshotReader implements Closeable {
+
+    /** The channel to refill the buffer from or {@code null} if none. */
+    private final ReadableByteChannel channel;
+    private final ValueCodecs codecs;
+    private final ByteBuffer buffer;
+
+    /** The property keys of the snapshot, by number. */
+    private PropertyKey<Object>[] keys;
+    private int keyCount;
+
+    /**
+     * Creates a reader with the built-in codecs only.
+     * @param channel the channel to read from
+     * @throws NullPointerException if {@code channel} is {@code null}
+     */
+    public SnapshotReader(ReadableByteChannel channel) throws NullPointerException {
+        this(channel, new ValueCodecs());
+    }
+
+    /**
+     * Creates a reader with the given codecs.
+     * @param channel the channel to read from
+     * @param codecs the codecs of the property values
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    @SuppressWarnings("unchecked")
+    public SnapshotReader(ReadableByteChannel channel, ValueCodecs codecs)
+            throws NullPointerException {
+        this.channel = Objects.requireNonNull(channel, "channel cannot be null");
+        this.codecs = Objects.requireNonNull(codecs, "codecs cannot be null");
+        keys = (PropertyKey<Object>[]) new PropertyKey<?>[16];
+        buffer = ByteBuffer.allocate(SnapshotWriter.BUFFER_SIZE);
+        buffer.flip();
+    }
+
+    /**
+     * Creates a reader of the remaining bytes of the given buffer, e.g. a
+     * section of a mapped file.
+     */
+    @SuppressWarnings("unchecked")
+    SnapshotReader(ByteBuffer buffer, ValueCodecs codecs) {
+        this.channel = null;
+        this.codecs = codecs;
+        this.buffer = buffer;
+        keys = (PropertyKey<Object>[]) new PropertyKey<?>[16];
+    }
+
+    /**
+     * Reads a snapshot and returns a new terrain with the entities of the
+     * snapshot.
+     * @return the terrain read
+     * @throws StreamCorruptedException if the data is not a valid snapshot or
+     * a property value has an unknown codec id
+     * @throws EOFException if the channel ends before the snapshot
+     * @throws IOException if an I/O error occurs
+     */
+    public Terrain readTerrain() throws IOException {
+        if (readInt() != SnapshotWriter.MAGIC)
+            throw new StreamCorruptedException("not an entity snapshot");
+        int version = readVarInt();
+        if (version != SnapshotWriter.VERSION)
+            throw new StreamCorruptedException("unsupported snapshot version: "+version);
+        int count = readVarInt();
+        boolean hasChildren = readByte() != 0;
+
+        Terrain terrain = new Terrain(readString());
+        terrain.setPosit(readLong());
+        terrain.setState(readLong());
+        readProperties(terrain);
+        // children are resolved once all the entities exist
+        Entity[] entities = hasChildren ? new Entity[count] : null;
+        int[][] childRefs = hasChildren ? new int[count + 1][] : null;
+        if (hasChildren) {
+            childRefs[0] = readChildRefs();
+        }
+        for (int i = 0; i < count; i++) {
+            String name = readString();
+            long posit = readLong();
+            long state = readLong();
+            Entity e = new Entity(name, posit, state);
+            readProperties(e);
+            if (hasChildren) {
+                entities[i] = e;
+                childRefs[i + 1] = readChildRefs();
+            }
+            terrain.add(e);
+        }
+        if (hasChildren) {
+            for (int i = 0; i <= count; i++) {
+                int[] refs = childRefs[i];
+                if (refs == null) continue;
+                List<Entity> children = new ArrayList<>(refs.length);
+                for (int ref : refs) {
+                    if (ref > count)
+                        throw new StreamCorruptedException("invalid child reference: "+ref);
+                    children.add(ref == 0 ? terrain : entities[ref - 1]);
+                }
+                (i == 0 ? terrain : entities[i - 1]).setChildren(children);
+            }
+        }
+        return terrain;
+    }
+
+    /**
+     * Reads properties written by {@link SnapshotWriter#writeProperties}
+     * into the given entity.
+     */
+    void readProperties(Entity e) throws IOException {
+        for (int ref = readVarInt(); ref != 0; ref = readVarInt()) {
+            PropertyKey<Object> key;
+            if (ref == 1) {
+                key = PropertyKey.of(readString());
+                if (keyCount == keys.length) {
+                    keys = Arrays.copyOf(keys, keyCount * 2);
+                }
+                keys[keyCount++] = key;
+            } else if (ref - 2 < keyCount) {
+                key = keys[ref - 2];
+            } else {
+                throw new StreamCorruptedException("invalid property reference: "+ref);
+            }
+
+            int id = readVarInt();
+            switch (id) {
+                case ValueCodecs.NULL:
+                    e.set(key, null);
+                    break;
+                case ValueCodecs.LONG:
+                    e.setLong(key, readLong());
+                    break;
+                case ValueCodecs.DOUBLE:
+                    e.setDouble(key, readDouble());
+                    break;
+                default:
+                    e.set(key, readValue(id, "property "+key.name()));
+            }
+        }
+    }
+
+    /**
+     * Reads a value written by {@link SnapshotWriter#writeValue}, after its
+     * codec id.
+     * @param id the codec id of the value
+     * @param what the name of the value, for error messages
+     */
+    Object readValue(int id, String what) throws IOException {
+        switch (id) {
+            case ValueCodecs.NULL: return null;
+            case ValueCodecs.LONG: return readLong();
+            case ValueCodecs.DOUBLE: return readDouble();
+            default:
+                ValueCodecs.Entry entry = codecs.forId(id);
+                if (entry == null)
+                    throw new StreamCorruptedException("unknown codec id "+id+" of "+what);
+                return entry.codec.decode(this);
+        }
+    }
+
+    private int[] readChildRefs() throws IOException {
+        int size = readVarInt();
+        if (size == 0) return null;
+        int[] refs = new int[size - 1];
+        for (int i = 0; i < refs.length; i++) {
+            refs[i] = readVarInt();
+        }
+        return refs;
+    }
+
+    /**
+     * Reads a byte.
+     * @return the byte read, as an unsigned value
+     * @throws IOException if an I/O error occurs
+     */
+    public int readByte() throws IOException {
+        require(1);
+        return buffer.get() & 0xFF;
+    }
+
+    /**
+     * Reads an {@code int} written by {@link SnapshotWriter#writeInt}.
+     * @return the value read
+     * @throws IOException if an I/O error occurs
+     */
+    public int readInt() throws IOException {
+        require(4);
+        return buffer.getInt();
+    }
+
+    /**
+     * Reads an {@code int} written by {@link SnapshotWriter#writeVarInt}.
+     * @return the value read
+     * @throws IOException if an I/O error occurs
+     */
+    public int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new StreamCorruptedException("malformed variable length int");
+    }
+
+    /**
+     * Reads a {@code long} written by {@link SnapshotWriter#writeLong}.
+     * @return the value read
+     * @throws IOException if an I/O error occurs
+     */
+    public long readLong() throws IOException {
+        require(8);
+        return buffer.getLong();
+    }
+
+    /**
+     * Reads a {@code double} written by {@link SnapshotWriter#writeDouble}.
+     * @return the value read
+     * @throws IOException if an I/O error occurs
+     */
+    public double readDouble() throws IOException {
+        require(8);
+        return buffer.getDouble();
+    }
+
+    /**
+     * Reads a string written by {@link SnapshotWriter#writeString}.
+     * @return the string read or {@code null}
+     * @throws IOException if an I/O error occurs
+     */
+    public String readString() throws IOException {
+        int length = readVarInt() - 1;
+        if (length < 0) return null;
+        if (buffer.hasArray() && length <= buffer.capacity()) {
+            require(length);
+            String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+        byte[] bytes = new byte[length];
+        readBytes(bytes, 0, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads bytes written by {@link SnapshotWriter#writeBytes}.
+     * @param bytes the array to read the bytes into
+     * @param offset the index of the first byte read
+     * @param length the number of bytes to read
+     * @throws IOException if an I/O error occurs
+     */
+    public void readBytes(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                require(1);
+            }
+            int n = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Closes the channel.
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Makes sure the buffer holds at least {@code n} unread bytes.
+     */
+    private void require(int n) throws IOException {
+        if (buffer.remaining() >= n) return;
+        if (channel == null)
+            throw new EOFException("snapshot ended unexpectedly");
+        buffer.compact();
+        try {
+            while (buffer.position() < n) {
+                if (channel.read(buffer) < 0)
+                    throw new EOFException("snapshot ended unexpectedly");
+            }
+        } finally {
+            buffer.flip();
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package gr.entij.snapshot;
+
+import gr.entij.Entity;
+import gr.entij.PropertyKey;
+import gr.entij.Terrain;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Writes binary snapshots of terrains to a channel. <p>
+ * A snapshot holds the name, posit, state and properties of a terrain and
+ * of all its entities, and the {@linkplain Entity#getChildren() children}
+ * lists of them as references to other entities of the snapshot. Entities
+ * are encoded one after the other into a fixed size buffer, which is written
+ * to the channel whenever it fills, so the memory used does not depend on
+ * the size of the terrain. Property names are written once per snapshot and
+ * then referred to by number; property values are encoded by the
+ * {@link ValueCodecs} of the writer. <p>
+ * The terrain and its entities must not change while written. A writer is
+ * not thread safe; {@linkplain #close() closing} it flushes it and closes
+ * the channel. Usage:
+ * <pre>{@code
+ * try (SnapshotWriter out = new SnapshotWriter(FileChannel.open(path, CREATE, WRITE, TRUNCATE_EXISTING))) {
+ *     out.writeTerrain(terrain);
+ * }
+ * }</pre>
+ * @see SnapshotReader
+ */
+public final class SnapshotWriter implements Closeable {
+
+    /** The first bytes of a snapshot: "ENTJ". */
+    static final int MAGIC = 0x454E544A;
+    static final int VERSION = 1;
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final WritableByteChannel channel;
+    private final ValueCodecs codecs;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /** Snapshot number + 1 of each written property key, by key index. */
+    private int[] keyNumbers = new int[16];
+    private int keyCount;
+
+    /**
+     * Creates a writer with the built-in codecs only.
+     * @param channel the channel to write to
+     * @throws NullPointerException if {@code channel} is {@code null}
+     */
+    public SnapshotWriter(WritableByteChannel channel) throws NullPointerException {
+        this(channel, new ValueCodecs());
+    }
+
+    /**
+     * Creates a writer with the given codecs.
+     * @param channel the channel to write to
+     * @param codecs the codecs of the property values
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public SnapshotWriter(WritableByteChannel channel, ValueCodecs codecs)
+            throws NullPointerException {
+        this.channel = Objects.requireNonNull(channel, "channel cannot be null");
+        this.codecs = Objects.requireNonNull(codecs, "codecs cannot be null");
+    }
+
+    /**
+     * Writes a snapshot of the given terrain and all its entities.
+     * @param terrain the terrain to write
+     * @throws NotSerializableException if a property value has no codec or a
+     * children list holds an entity that is not in the terrain
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeTerrain(Terrain terrain) throws IOException {
+        // references to children need the numbers of the entities
+        Map<Entity, Integer> numbers = null;
+        if (terrain.getChildren() != null) {
+            numbers = new IdentityHashMap<>();
+        } else {
+            for (Entity e : terrain.getAll()) {
+                if (e.getChildren() != null) {
+                    numbers = new IdentityHashMap<>();
+                    break;
+                }
+            }
+        }
+        if (numbers != null) {
+            int n = 0;
+            for (Entity e : terrain.getAll()) {
+                numbers.put(e, n++);
+            }
+        }
+
+        writeInt(MAGIC);
+        writeVarInt(VERSION);
+        writeVarInt(terrain.getEntityCount());
+        writeByte(numbers != null ? 1 : 0);
+        writeEntity(terrain, terrain, numbers);
+        for (Entity e : terrain.getAll()) {
+            writeEntity(e, terrain, numbers);
+        }
+        flush();
+    }
+
+    private void writeEntity(Entity e, Terrain terrain, Map<Entity, Integer> numbers)
+            throws IOException {
+        writeString(e.getName());
+        writeLong(e.getPosit());
+        writeLong(e.getState());
+        writeProperties(e);
+
+        if (numbers != null) {
+            List<Entity> children = e.getChildren();
+            if (children == null) {
+                writeVarInt(0);
+            } else {
+                writeVarInt(children.size() + 1);
+                for (Entity child : children) {
+                    // 0 refers to the terrain, n + 1 to the entity n
+                    Integer number = child == terrain ? Integer.valueOf(-1) : numbers.get(child);
+                    if (number == null)
+                        throw new NotSerializableException("child "+child+" of "+e
+                                +" is not in the terrain");
+                    writeVarInt(number + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the properties of the given entity, ended by a 0.
+     */
+    void writeProperties(Entity e) throws IOException {
+        IOException[] failure = {null};
+        e.forEachProperty((key, value) -> {
+            if (failure[0] == null) {
+                try {
+                    writeProperty(key, value);
+                } catch (IOException ex) {
+                    failure[0] = ex;
+                }
+            }
+        });
+        if (failure[0] != null) throw failure[0];
+        writeVarInt(0);
+    }
+
+    private void writeProperty(PropertyKey<?> key, Object value) throws IOException {
+        // 0 ends the properties, 1 introduces a new key, n + 2 refers to key n
+        int index = key.index();
+        if (index >= keyNumbers.length) {
+            keyNumbers = Arrays.copyOf(keyNumbers, Math.max(index + 1, keyNumbers.length * 2));
+        }
+        int number = keyNumbers[index];
+        if (number == 0) {
+            writeVarInt(1);
+            writeString(key.name());
+            keyNumbers[index] = ++keyCount;
+        } else {
+            writeVarInt(number + 1);
+        }
+        writeValue(value, "property "+key.name());
+    }
+
+    /**
+     * Writes the codec id and the encoding of the given value.
+     * @param what the name of the value, for error messages
+     */
+    void writeValue(Object value, String what) throws IOException {
+        if (value == null) {
+            writeVarInt(ValueCodecs.NULL);
+        } else if (value instanceof Long) {
+            writeVarInt(ValueCodecs.LONG);
+            writeLong((Long) value);
+        } else if (value instanceof Double) {
+            writeVarInt(ValueCodecs.DOUBLE);
+            writeDouble((Double) value);
+        } else {
+            ValueCodecs.Entry entry = codecs.forType(value.getClass());
+            if (entry == null)
+                throw new NotSerializableException("no codec for "+what
+                        +" of type "+value.getClass().getName());
+            writeVarInt(entry.id);
+            entry.codec.encode(value, this);
+        }
+    }
+
+    /**
+     * Writes a byte.
+     * @param value the byte to write, in its low 8 bits
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeByte(int value) throws IOException {
+        ensure(1);
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Writes an {@code int} in 4 bytes.
+     * @param value the value to write
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeInt(int value) throws IOException {
+        ensure(4);
+        buffer.putInt(value);
+    }
+
+    /**
+     * Writes a non-negative {@code int} in 1 to 5 bytes; small values take
+     * fewer bytes.
+     * @param value the value to write
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeVarInt(int value) throws IOException {
+        ensure(5);
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Writes a {@code long} in 8 bytes.
+     * @param value the value to write
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeLong(long value) throws IOException {
+        ensure(8);
+        buffer.putLong(value);
+    }
+
+    /**
+     * Writes a {@code double} in 8 bytes.
+     * @param value the value to write
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeDouble(double value) throws IOException {
+        ensure(8);
+        buffer.putDouble(value);
+    }
+
+    /**
+     * Writes a string, which may be {@code null}, in UTF-8.
+     * @param value the string to write or {@code null}
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeString(String value) throws IOException {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length + 1);
+        writeBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Writes the given bytes, without their length.
+     * @param bytes the array of the bytes
+     * @param offset the index of the first byte to write
+     * @param length the number of bytes to write
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int n = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the channel.
+     * @throws IOException if an I/O error occurs
+     */
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Flushes this writer and closes the channel.
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Drops the buffered bytes without writing them.
+     */
+    void discard() {
+        buffer.clear();
+    }
+
+    private void ensure(int n) throws IOException {
+        if (buffer.remaining() < n) {
+            flush();
+        }
+    }
+}
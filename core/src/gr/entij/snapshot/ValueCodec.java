@@ -0,0 +1,39 @@
+package gr.entij.snapshot;
+
+import java.io.IOException;
+
+/**
+ * Encodes and decodes the property values of a type in snapshots. <p>
+ * A codec is registered with a {@link ValueCodecs} under a numeric id, which
+ * is written before each value it encodes; the same id must be used with the
+ * same codec when the snapshot is read. {@code encode} and {@code decode}
+ * must write and read exactly the same bytes, using the primitive methods of
+ * {@link SnapshotWriter} and {@link SnapshotReader}.
+ * @param <T> the type of the values
+ * @see ValueCodecs#register(int, ValueCodec)
+ */
+public interface ValueCodec<T> {
+
+    /**
+     * Returns the type of the values; the codec is also used for its
+     * subtypes that have no codec of their own.
+     * @return the type of the values
+     */
+    Class<T> type();
+
+    /**
+     * Writes the given value.
+     * @param value the value to write; never {@code null}
+     * @param out the writer to write the value to
+     * @throws IOException if an I/O error occurs
+     */
+    void encode(T value, SnapshotWriter out) throws IOException;
+
+    /**
+     * Reads a value written by {@link #encode}.
+     * @param in the reader to read the value from
+     * @return the value read
+     * @throws IOException if an I/O error occurs
+     */
+    T decode(SnapshotReader in) throws IOException;
+}
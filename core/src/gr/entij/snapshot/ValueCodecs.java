@@ -0,0 +1,149 @@
+package gr.entij.snapshot;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The {@linkplain ValueCodec value codecs} used by a snapshot, by id and by
+ * type. <p>
+ * {@code null}, {@link Long} and {@link Double} values are always written
+ * as such (the latter two unboxed, and restored with
+ * {@link gr.entij.Entity#setLong setLong} and
+ * {@link gr.entij.Entity#setDouble setDouble}). A new instance also has
+ * codecs for {@link Integer}, {@link Boolean} and {@link String}; the values
+ * of any other type need a codec registered with an id of at least
+ * {@link #FIRST_CUSTOM_ID}. <p>
+ * Codecs should be registered before the instance is used by a writer or a
+ * reader; the instance is not thread safe.
+ */
+public final class ValueCodecs {
+
+    /** The smallest id of the codecs registered by applications. */
+    public static final int FIRST_CUSTOM_ID = 16;
+
+    // ids of the values handled by the writer and the reader themselves
+    static final int NULL = 0;
+    static final int LONG = 1;
+    static final int DOUBLE = 2;
+
+    private static final int INTEGER = 3;
+    private static final int BOOLEAN = 4;
+    private static final int STRING = 5;
+
+    private static final Entry NONE = new Entry(-1, null);
+
+    static final class Entry {
+        final int id;
+        final ValueCodec<Object> codec;
+
+        Entry(int id, ValueCodec<Object> codec) {
+            this.id = id;
+            this.codec = codec;
+        }
+    }
+
+    private Entry[] byId = new Entry[FIRST_CUSTOM_ID * 2];
+    private final Map<Class<?>, Entry> byType = new HashMap<>();
+    /** The codecs of the types looked up so far; NONE if they have none. */
+    private final Map<Class<?>, Entry> resolved = new HashMap<>();
+
+    /**
+     * Creates an instance with the built-in codecs only.
+     */
+    public ValueCodecs() {
+        put(INTEGER, new ValueCodec<Integer>() {
+            @Override public Class<Integer> type() { return Integer.class; }
+            @Override public void encode(Integer value, SnapshotWriter out) throws IOException {
+                out.writeInt(value);
+            }
+            @Override public Integer decode(SnapshotReader in) throws IOException {
+                return in.readInt();
+            }
+        });
+        put(BOOLEAN, new ValueCodec<Boolean>() {
+            @Override public Class<Boolean> type() { return Boolean.class; }
+            @Override public void encode(Boolean value, SnapshotWriter out) throws IOException {
+                out.writeByte(value ? 1 : 0);
+            }
+            @Override public Boolean decode(SnapshotReader in) throws IOException {
+                return in.readByte() != 0;
+            }
+        });
+        put(STRING, new ValueCodec<String>() {
+            @Override public Class<String> type() { return String.class; }
+            @Override public void encode(String value, SnapshotWriter out) throws IOException {
+                out.writeString(value);
+            }
+            @Override public String decode(SnapshotReader in) throws IOException {
+                return in.readString();
+            }
+        });
+    }
+
+    /**
+     * Registers the given codec with the given id.
+     * @param <T> the type of the values of the codec
+     * @param id the id written before each value of the codec
+     * @param codec the codec
+     * @return this instance
+     * @throws IllegalArgumentException if {@code id} is less than
+     * {@link #FIRST_CUSTOM_ID} or already registered
+     * @throws NullPointerException if {@code codec} is {@code null}
+     */
+    public <T> ValueCodecs register(int id, ValueCodec<T> codec)
+            throws IllegalArgumentException, NullPointerException {
+        Objects.requireNonNull(codec, "codec cannot be null");
+        if (id < FIRST_CUSTOM_ID)
+            throw new IllegalArgumentException("id must be >= "+FIRST_CUSTOM_ID+"; found: "+id);
+        if (id < byId.length && byId[id] != null)
+            throw new IllegalArgumentException("id already registered: "+id);
+        put(id, codec);
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void put(int id, ValueCodec<?> codec) {
+        if (id >= byId.length) {
+            byId = Arrays.copyOf(byId, Math.max(id + 1, byId.length * 2));
+        }
+        Entry entry = new Entry(id, (ValueCodec<Object>) codec);
+        byId[id] = entry;
+        byType.put(codec.type(), entry);
+        resolved.clear();
+    }
+
+    /**
+     * Returns the codec of the given id or {@code null}.
+     */
+    Entry forId(int id) {
+        return id >= 0 && id < byId.length ? byId[id] : null;
+    }
+
+    /**
+     * Returns the codec of the given type, or of its closest supertype, or
+     * {@code null}.
+     */
+    Entry forType(Class<?> type) {
+        Entry entry = resolved.get(type);
+        if (entry == null) {
+            entry = NONE;
+            for (Class<?> c = type; c != null && entry == NONE; c = c.getSuperclass()) {
+                entry = byType.getOrDefault(c, NONE);
+            }
+            for (Class<?> c = type; c != null && entry == NONE; c = c.getSuperclass()) {
+                for (Class<?> i : c.getInterfaces()) {
+                    Entry e = byType.get(i);
+                    if (e != null) {
+                        entry = e;
+                        break;
+                    }
+                }
+            }
+            resolved.put(type, entry);
+        }
+        return entry == NONE ? null : entry;
+    }
+}
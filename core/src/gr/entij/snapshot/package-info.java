@@ -0,0 +1,6 @@
+/**
+ * Binary snapshots of terrains and their entities, written and read in a
+ * streaming fashion through NIO channels, and journals of the reactions
+ * performed since the last snapshot.
+ */
+package gr.entij.snapshot;
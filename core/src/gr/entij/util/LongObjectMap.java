@@ -0,0 +1,145 @@
+package gr.entij.util;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Map from primitive {@code long} keys to objects, using open addressing
+ * with linear probing. <p>
+ * Unlike a {@code HashMap<Long, V>}, looking up a key does not box it and
+ * touches only two arrays, so it suits hot paths keyed by numeric codes.
+ * Values cannot be {@code null}; {@link #get(long)} returns {@code null} for
+ * absent keys. Entries cannot be removed. <p>
+ * This implementation is not thread safe.
+ * @param <V> the type of the values
+ */
+public class LongObjectMap<V> {
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+
+    /**
+     * Creates an empty map.
+     */
+    public LongObjectMap() {
+        keys = new long[8];
+        values = new Object[8];
+        mask = 7;
+    }
+
+    /**
+     * Returns the value of the given key or {@code null} if the key is absent.
+     * @param key the key
+     * @return the value of the given key or {@code null}
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        final long[] keys = this.keys;
+        final Object[] values = this.values;
+        for (int i = index(key, mask); ; i = (i + 1) & mask) {
+            Object value = values[i];
+            if (value == null || keys[i] == key) return (V) value;
+        }
+    }
+
+    /**
+     * Returns {@code true} if the given key is present.
+     * @param key the key
+     * @return {@code true} if the given key is present
+     */
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Associates the given value with the given key.
+     * @param key the key
+     * @param value the value; cannot be {@code null}
+     * @return the previous value of the key or {@code null}
+     * @throws NullPointerException if {@code value} is {@code null}
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) throws NullPointerException {
+        if (value == null)
+            throw new NullPointerException("value cannot be null");
+        int i = slot(key);
+        Object old = values[i];
+        keys[i] = key;
+        values[i] = value;
+        if (old == null && ++size > (mask + 1) / 2) {
+            rehash();
+        }
+        return (V) old;
+    }
+
+    /**
+     * Returns the value of the given key, first associating it with the
+     * value supplied by {@code factory} if the key is absent.
+     * @param key the key
+     * @param factory supplies the value of an absent key; cannot supply
+     * {@code null}
+     * @return the value of the given key
+     */
+    public V computeIfAbsent(long key, Supplier<? extends V> factory) {
+        V value = get(key);
+        if (value == null) {
+            value = factory.get();
+            put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the number of keys of this map.
+     * @return the number of keys of this map
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns {@code true} if this map has no keys.
+     * @return {@code true} if this map has no keys
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all the keys of this map.
+     */
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    private int slot(long key) {
+        int i = index(key, mask);
+        while (values[i] != null && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new Object[oldValues.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int j = slot(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    private static int index(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,112 @@
+package gr.entij;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AsyncBackendTest {
+
+    public AsyncBackendTest() {
+    }
+
+    @After
+    public void tearDown() {
+        Entity.setAsyncBackend(AsyncBackend.pooled());
+    }
+
+    /**
+     * Makes the given entities count their inputs asynchronously and checks
+     * that no entity reacts to two inputs at once.
+     */
+    private static void countInputs(int entities, int inputs, long sleepMillis)
+            throws Exception {
+        List<Entity> all = new ArrayList<>();
+        AtomicInteger overlaps = new AtomicInteger();
+        for (int i = 0; i < entities; i++) {
+            Entity e = new Entity("e"+i);
+            AtomicInteger running = new AtomicInteger();
+            e.addLogic((self, input) -> {
+                if (running.incrementAndGet() != 1) {
+                    overlaps.incrementAndGet();
+                }
+                if (sleepMillis > 0) {
+                    try {
+                        Thread.sleep(sleepMillis);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                Reaction reaction = new Reaction().posit(self.getPosit() + 1);
+                running.decrementAndGet();
+                return reaction;
+            });
+            all.add(e);
+        }
+        List<Future<Reaction>> futures = new ArrayList<>();
+        for (int n = 0; n < inputs; n++) {
+            for (Entity e : all) {
+                futures.add(e.asyncReact(n));
+            }
+        }
+        for (Future<Reaction> f : futures) {
+            f.get();
+        }
+        assertEquals(0, overlaps.get());
+        for (Entity e : all) {
+            assertEquals(inputs, e.getPosit());
+        }
+    }
+
+    /**
+     * Test of a custom backend and of replacing the backend.
+     */
+    @Test
+    public void testCustomBackend() throws Exception {
+        System.out.println("customBackend");
+        AtomicInteger executors = new AtomicInteger();
+        AsyncBackend fixed = () -> {
+            executors.incrementAndGet();
+            return Executors.newFixedThreadPool(3, r -> {
+                Thread t = new Thread(r, "fixed-backend");
+                t.setDaemon(true);
+                return t;
+            });
+        };
+        Entity.setAsyncBackend(fixed);
+        assertSame(fixed, Entity.getAsyncBackend());
+        Entity e = new Entity("e");
+        assertEquals("fixed-backend", e.asyncExecute(en -> Thread.currentThread().getName()).get());
+        countInputs(200, 20, 0);
+        assertEquals(1, executors.get());
+
+        Entity.setAsyncBackend(AsyncBackend.pooled(2));
+        assertTrue(e.asyncExecute(en -> Thread.currentThread().getName()).get()
+                .startsWith("entij-async-"));
+    }
+
+    /**
+     * Test of the virtual thread backend with blocking logics, where the JDK
+     * supports it.
+     */
+    @Test
+    public void testVirtualThreads() throws Exception {
+        System.out.println("virtualThreads");
+        if (!AsyncBackend.virtualThreadsSupported()) {
+            try {
+                AsyncBackend.virtualThreads();
+                fail();
+            } catch (UnsupportedOperationException ex) {
+            }
+            Assume.assumeTrue("no virtual threads", false);
+        }
+        Entity.setAsyncBackend(AsyncBackend.virtualThreads());
+        // more blocked entities than platform threads
+        countInputs(1000, 3, 5);
+    }
+}
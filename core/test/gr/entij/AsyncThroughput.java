@@ -0,0 +1,74 @@
+package gr.entij;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Reports the throughput of {@link Entity#asyncReact} with each available
+ * {@link AsyncBackend}, for logics that compute and for logics that block.
+ * <p>
+ * Not a unit test; run it with e.g.
+ * {@code java -cp build/core/src:build/core/test gr.entij.AsyncThroughput [entities] [inputs]}.
+ */
+public class AsyncThroughput {
+
+    public static void main(String[] args) throws Exception {
+        int entities = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int inputs = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        List<String> names = new ArrayList<>();
+        List<AsyncBackend> backends = new ArrayList<>();
+        names.add("pooled");
+        backends.add(AsyncBackend.pooled());
+        if (AsyncBackend.virtualThreadsSupported()) {
+            names.add("virtual threads");
+            backends.add(AsyncBackend.virtualThreads());
+        } else {
+            System.out.println("virtual threads: not supported by this JDK");
+        }
+
+        for (int b = 0; b < backends.size(); b++) {
+            Entity.setAsyncBackend(backends.get(b));
+            // warm up, then measure
+            run(entities, inputs / 10 + 1, 0);
+            double computing = run(entities, inputs, 0);
+            double blocking = run(entities / 10 + 1, 10, 1);
+            System.out.printf("%s: %.0f reactions/s computing, %.0f reactions/s blocking 1 ms%n",
+                    names.get(b), computing, blocking);
+        }
+        Entity.asyncShutdownLater();
+    }
+
+    /**
+     * Returns the reactions per second of the given number of entities, each
+     * reacting to the given number of inputs.
+     */
+    private static double run(int entities, int inputs, long sleepMillis) throws Exception {
+        Entity[] all = new Entity[entities];
+        for (int i = 0; i < entities; i++) {
+            all[i] = new Entity("e"+i);
+            all[i].addLogic((self, input) -> {
+                if (sleepMillis > 0) {
+                    try {
+                        Thread.sleep(sleepMillis);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return new Reaction().posit(self.getPosit() + ((Integer) input & 1));
+            });
+        }
+        List<Future<Reaction>> futures = new ArrayList<>(entities * inputs);
+        long start = System.nanoTime();
+        for (int n = 0; n < inputs; n++) {
+            for (Entity e : all) {
+                futures.add(e.asyncReact(n));
+            }
+        }
+        for (Future<Reaction> f : futures) {
+            f.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        return (double) entities * inputs / elapsed * 1e9;
+    }
+}
@@ -0,0 +1,116 @@
+package gr.entij;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CascadeTest {
+
+    public CascadeTest() {
+    }
+
+    /**
+     * Creates a binary tree of the given depth, whose entities record their
+     * name when pushed and push their children.
+     */
+    private static Entity tree(String name, int depth, List<String> order) {
+        Entity e = new Entity(name);
+        List<Entity> children = new ArrayList<>();
+        if (depth > 0) {
+            children.add(tree(name+"0", depth - 1, order));
+            children.add(tree(name+"1", depth - 1, order));
+        }
+        Reaction reaction = new Reaction().andThenMove(children, "push").freeze();
+        e.addLogic((ent, move) -> {
+            order.add(name);
+            return reaction;
+        });
+        return e;
+    }
+
+    /**
+     * Test of the breadth and depth first orders.
+     */
+    @Test
+    public void testOrder() {
+        System.out.println("order");
+        List<String> order = new ArrayList<>();
+        Entity root = tree("r", 2, order);
+        new Cascade(Cascade.Order.BREADTH_FIRST).run(root, "push");
+        assertEquals(Arrays.asList("r", "r0", "r1", "r00", "r01", "r10", "r11"), order);
+
+        order.clear();
+        Cascade dfs = new Cascade(Cascade.Order.DEPTH_FIRST);
+        dfs.run(root, "push");
+        assertEquals(Arrays.asList("r", "r0", "r00", "r01", "r1", "r10", "r11"), order);
+        assertEquals(7, dfs.performedCount());
+
+        order.clear();
+        root.react("push");
+        assertEquals(Arrays.asList("r", "r0", "r00", "r01", "r1", "r10", "r11"), order);
+
+        order.clear();
+        Cascade limited = new Cascade(Cascade.Order.BREADTH_FIRST).maxDepth(1);
+        limited.run(root, "push");
+        assertEquals(Arrays.asList("r", "r0", "r1"), order);
+        assertEquals(4, limited.droppedCount());
+    }
+
+    /**
+     * Test of a long chain and of a cycle.
+     */
+    @Test
+    public void testChain() {
+        System.out.println("chain");
+        final int length = 200000;
+        Entity[] chain = new Entity[length];
+        for (int i = length - 1; i >= 0; i--) {
+            Entity next = i + 1 < length ? chain[i + 1] : null;
+            chain[i] = new Entity();
+            chain[i].addLogic((e, move) -> {
+                Reaction r = new Reaction().posit(e.getPosit() + 1);
+                return next == null ? r : r.andThenMove(next, move);
+            });
+        }
+        Cascade cascade = new Cascade(Cascade.Order.DEPTH_FIRST);
+        cascade.run(chain[0], "push");
+        assertEquals(length, cascade.performedCount());
+        assertEquals(1, chain[length - 1].getPosit());
+
+        Entity a = new Entity("a");
+        Entity b = new Entity("b");
+        a.addLogic((e, move) -> new Reaction().state(e.getState() + 1).andThenMove(b, move));
+        b.addLogic((e, move) -> new Reaction().state(e.getState() + 1).andThenMove(a, move));
+        Cascade cycle = new Cascade(Cascade.Order.BREADTH_FIRST).maxVisitsPerEntity(3);
+        cycle.run(a, "push");
+        assertEquals(3, a.getState());
+        assertEquals(3, b.getState());
+        assertEquals(1, cycle.droppedCount());
+    }
+
+    /**
+     * Test of batching the moves of the same entity.
+     */
+    @Test
+    public void testBatchPerEntity() {
+        System.out.println("batchPerEntity");
+        Entity target = new Entity("target");
+        target.addLogic((e, move) -> new Reaction().posit(e.getPosit() + 1));
+        List<Long> seen = new ArrayList<>();
+        target.addPositListener(e -> seen.add(e.getNextPosit()));
+        Entity source = new Entity("source");
+        source.addLogic((e, move) -> new Reaction()
+                .andThenMove(target, "push").andThenMove(target, "push").andThenMove(target, "push"));
+
+        new Cascade(Cascade.Order.BREADTH_FIRST).batchPerEntity(true).run(source, "go");
+        assertEquals(Arrays.asList(3L), seen);
+        seen.clear();
+        new Cascade(Cascade.Order.DEPTH_FIRST).batchPerEntity(true).run(source, "go");
+        assertEquals(Arrays.asList(6L), seen);
+        seen.clear();
+        new Cascade(Cascade.Order.BREADTH_FIRST).run(source, "go");
+        assertEquals(Arrays.asList(7L, 8L, 9L), seen);
+    }
+}
@@ -0,0 +1,49 @@
+package gr.entij;
+
+/**
+ * Reports the average heap bytes retained by a plain {@link Entity}, i.e. an
+ * entity with a name but without properties, listeners or functions. <p>
+ * Not a unit test; run it with a fixed heap for stable figures, e.g.
+ * {@code java -Xms1g -Xmx1g -cp build/core/src:build/core/test gr.entij.EntityFootprint [count]}.
+ */
+public class EntityFootprint {
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = "e"+i;
+        }
+        // warm up the class and its static state
+        new Entity("warmup").destroy();
+
+        long before = usedHeap();
+        Entity[] entities = new Entity[count];
+        long arrayBytes = usedHeap() - before;
+        for (int i = 0; i < count; i++) {
+            entities[i] = new Entity(names[i]);
+        }
+        long after = usedHeap();
+        double perEntity = (double) (after - before - arrayBytes) / count;
+        System.out.printf("%d entities: %.1f bytes per entity%n", count, perEntity);
+        // keep the entities reachable until measured
+        if (entities[count - 1].getName() == null) {
+            System.out.println();
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
@@ -0,0 +1,87 @@
+package gr.entij;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class EntityRegistryTest {
+
+    public EntityRegistryTest() {
+    }
+
+    @After
+    public void tearDown() {
+        Entity.setDefaultRegistry(null);
+    }
+
+    /**
+     * Test of id assignment, lookup and recycling.
+     */
+    @Test
+    public void testRegister() {
+        System.out.println("register");
+        EntityRegistry registry = new EntityRegistry(1);
+        Entity e1 = new Entity("e1");
+        Entity e2 = new Entity("e2");
+        assertEquals(-1, e1.getId());
+        assertEquals(0, registry.register(e1));
+        assertEquals(1, registry.register(e2));
+        assertSame(e2, registry.get(1));
+        assertSame(registry, e1.getRegistry());
+        assertEquals(2, registry.size());
+        assertEquals(2, registry.idLimit());
+        try {
+            registry.register(e1);
+            fail();
+        } catch (IllegalStateException ex) {
+        }
+        Entity safe = new Entity("safe");
+        safe.setThreadSafe(true);
+        registry.register(safe);
+        try {
+            new EntityStore().register(safe);
+            fail();
+        } catch (IllegalStateException ex) {
+        }
+        safe.destroy();
+
+        e1.destroy();
+        assertEquals(-1, e1.getId());
+        assertNull(e1.getRegistry());
+        assertNull(registry.get(0));
+        assertEquals(1, registry.size());
+        Entity e3 = new Entity("e3");
+        assertEquals(0, registry.register(e3));
+        assertSame(e3, registry.get(0));
+    }
+
+    /**
+     * Test of the default registry and of moving an entity into a store.
+     */
+    @Test
+    public void testDefaultRegistry() {
+        System.out.println("defaultRegistry");
+        EntityRegistry registry = new EntityRegistry();
+        Entity.setDefaultRegistry(registry);
+        Entity e1 = new Entity("e1", 3, 4);
+        Terrain terrain = new Terrain();
+        assertSame(e1, registry.get(e1.getId()));
+        assertSame(terrain, registry.get(terrain.getId()));
+
+        EntityStore store = new EntityStore();
+        Entity e2 = new Entity(store, "e2", 1, 2);
+        assertSame(store, e2.getRegistry());
+        assertEquals(e2.getStoreHandle(), e2.getId());
+        Entity.setDefaultRegistry(null);
+
+        Entity e3 = new Entity("e3", 5, 6);
+        store.register(e3);
+        assertSame(store, e3.getStore());
+        assertEquals(5, e3.getPosit());
+        e3.setState(7);
+        assertEquals(1, store.countWithStateBits(0b111));
+        e3.destroy();
+        assertEquals(7, e3.getState());
+        assertEquals(1, store.size());
+    }
+}
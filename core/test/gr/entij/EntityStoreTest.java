@@ -0,0 +1,115 @@
+package gr.entij;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class EntityStoreTest {
+
+    public EntityStoreTest() {
+    }
+
+    /**
+     * Test of posit and state access through an entity held by a store.
+     */
+    @Test
+    public void testEntityView() {
+        System.out.println("entityView");
+        EntityStore store = new EntityStore(1);
+        Entity e1 = new Entity(store, "e1", 5, 7);
+        Entity e2 = new Entity(store, "e2", 6, 8);
+        assertEquals(2, store.size());
+        assertEquals(5, e1.getPosit());
+        assertEquals(8, e2.getState());
+        assertSame(e2, store.get(e2.getStoreHandle()));
+
+        List<Long> seen = new ArrayList<>();
+        e1.addPositListener(e -> seen.add(e.getPreviousPosit()));
+        e1.setPosit(10);
+        e1.setState(11);
+        assertEquals(10, e1.getPosit());
+        assertEquals(11, e1.getState());
+        assertEquals(5L, (long) seen.get(0));
+    }
+
+    /**
+     * Test of forEachWithStateBits and countWithStateBits methods, of class EntityStore.
+     */
+    @Test
+    public void testStateBits() {
+        System.out.println("stateBits");
+        EntityStore store = new EntityStore();
+        for (int i = 0; i < 100; i++) {
+            new Entity(store, null, i, i);
+        }
+        assertEquals(50, store.countWithStateBits(0b1));
+        assertEquals(25, store.countWithStateBits(0b11));
+        EntitySet result = store.withStateBits(0b1000);
+        assertEquals(48, result.size());
+        assertTrue(result.stream().allMatch(e -> (e.getState() & 0b1000) != 0));
+
+        List<Entity> atLeast90 = new ArrayList<>();
+        store.forEachPosit(p -> p >= 90, atLeast90::add);
+        assertEquals(10, atLeast90.size());
+    }
+
+    /**
+     * Test of handle recycling after destroy.
+     */
+    @Test
+    public void testDestroy() {
+        System.out.println("destroy");
+        EntityStore store = new EntityStore();
+        Entity e1 = new Entity(store, "e1", 3, 4);
+        int handle = e1.getStoreHandle();
+        e1.destroy();
+        assertEquals(0, store.size());
+        assertNull(e1.getStore());
+        assertEquals(-1, e1.getStoreHandle());
+        assertEquals(3, e1.getPosit());
+        assertEquals(4, e1.getState());
+
+        Entity e2 = new Entity(store, "e2", 1, 2);
+        assertEquals(handle, e2.getStoreHandle());
+        assertEquals(0, store.countWithStateBits(4));
+    }
+
+    /**
+     * Test that changes of thread-safe entities are not lost while the store
+     * grows.
+     */
+    @Test
+    public void testConcurrentGrowth() throws InterruptedException {
+        System.out.println("concurrentGrowth");
+        EntityStore store = new EntityStore(1);
+        List<Entity> workers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Entity e = new Entity(store, "w"+i, 0, 0);
+            e.setThreadSafe(true);
+            workers.add(e);
+        }
+        List<Thread> threads = new ArrayList<>();
+        for (Entity e : workers) {
+            threads.add(new Thread(() -> {
+                for (int i = 1; i <= 100000; i++) {
+                    e.setPosit(i);
+                    e.setState(i);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (int i = 0; i < 20000; i++) {
+            new Entity(store, "e"+i, i, i);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (Entity e : workers) {
+            assertEquals(100000, e.getPosit());
+            assertEquals(100000, e.getState());
+        }
+        assertEquals(20004, store.size());
+        assertEquals(4, store.countWithStateBits(100000));
+    }
+}
@@ -0,0 +1,620 @@
+package gr.entij;
+
+import gr.entij.event.PositEvent;
+import gr.entij.event.PrimitivePropertyEvent;
+import gr.entij.event.PropertyEvent;
+import gr.entij.event.StateEvent;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class EntityTest {
+
+    public EntityTest() {
+    }
+
+    @After
+    public void tearDown() {
+        Entity.setEventReuse(false);
+    }
+
+    /**
+     * Test of setEventReuse method, of class Entity.
+     */
+    @Test
+    public void testEventReuse() {
+        System.out.println("eventReuse");
+        Entity.setEventReuse(true);
+        Entity e1 = new Entity("e1");
+        Entity e2 = new Entity("e2");
+        List<PositEvent> seen = new ArrayList<>();
+        List<PositEvent> retained = new ArrayList<>();
+        e2.addPositListener(seen::add);
+        e1.addPositListener(e -> {
+            seen.add(e);
+            retained.add(e.retain());
+            // nested dispatch must not clobber the outer event
+            e2.setPosit(100);
+            assertSame(e1, e.getSource());
+            assertEquals(e1.getPosit(), e.getNextPosit());
+        });
+        e1.setPosit(3);
+        e1.setPosit(4);
+
+        assertSame(seen.get(0), seen.get(2));
+        assertNotSame(retained.get(0), retained.get(1));
+        assertEquals(3, retained.get(0).getNextPosit());
+        assertEquals(4, retained.get(1).getNextPosit());
+        assertSame(e1, retained.get(1).getSource());
+    }
+
+    /**
+     * Test of retain method for events that are not pooled.
+     */
+    @Test
+    public void testRetainWithoutReuse() {
+        System.out.println("retainWithoutReuse");
+        Entity e1 = new Entity("e1");
+        List<StateEvent> seen = new ArrayList<>();
+        e1.addStateListener(e -> seen.add(e.retain()));
+        e1.setState(5);
+        e1.setState(6);
+        assertNotSame(seen.get(0), seen.get(1));
+        assertEquals(5, seen.get(0).getNextState());
+        assertEquals(5, seen.get(1).getPreviousState());
+        // the public fields of the events are still readable
+        assertSame(e1, seen.get(1).source);
+        assertEquals(6, seen.get(1).nextState);
+    }
+
+    /**
+     * Test of listener removal while an event is being fired.
+     */
+    @Test
+    public void testRemoveDuringDispatch() {
+        System.out.println("removeDuringDispatch");
+        Entity e1 = new Entity("e1");
+        List<String> calls = new ArrayList<>();
+        Consumer<StateEvent> second = e -> calls.add("second");
+        e1.addStateListener(second);
+        e1.addStateListenerRemovable(e -> {
+            calls.add("once");
+            return false;
+        });
+        e1.addStateListener(e -> {
+            calls.add("first");
+            e1.removeStateListener(second);
+        });
+        e1.setState(1);
+        e1.setState(2);
+        assertEquals(Arrays.asList("first", "once", "second", "first"), calls);
+    }
+
+    /**
+     * Test of listener registration from other threads during dispatch.
+     */
+    @Test
+    public void testConcurrentAdd() throws InterruptedException {
+        System.out.println("concurrentAdd");
+        Entity e1 = new Entity("e1");
+        AtomicInteger count = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 500; j++) {
+                    e1.addPositListener(e -> count.incrementAndGet());
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < 200; i++) {
+            e1.setPosit(i);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        count.set(0);
+        e1.setPosit(-1);
+        assertEquals(2000, count.get());
+    }
+
+    /**
+     * Test of property access by name and by key, of class Entity.
+     */
+    @Test
+    public void testThreadSafe() throws InterruptedException {
+        System.out.println("threadSafe");
+        Terrain terrain = new Terrain();
+        terrain.setThreadSafe(true);
+        Entity[] entities = new Entity[8];
+        for (int i = 0; i < entities.length; i++) {
+            entities[i] = new Entity("e"+i);
+            entities[i].setThreadSafe(true);
+            terrain.add(entities[i]);
+        }
+        PropertyKey<Long> x = PropertyKey.of("test.threadSafeX");
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int offset = i;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 2000; j++) {
+                    Entity e = entities[(j + offset) % entities.length];
+                    e.setPosit(j % 10);
+                    e.setState(offset);
+                    e.setLong(x, e.getLong(x) + 1);
+                    e.set("test.threadSafeName", "t"+offset);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        int atSum = 0;
+        for (int p = 0; p < 10; p++) {
+            atSum += terrain.at(p).size();
+        }
+        assertEquals(entities.length, atSum);
+        for (Entity e : entities) {
+            assertTrue(terrain.at(e.getPosit()).contains(e));
+            assertTrue(terrain.inState(e.getState()).contains(e));
+            assertTrue(e.getLong(x) > 0);
+        }
+        
+        terrain.remove(entities[0]);
+        assertFalse(terrain.at(entities[0].getPosit()).contains(entities[0]));
+        entities[0].setPosit(3);
+        assertFalse(terrain.at(3).contains(entities[0]));
+    }
+    
+    @Test
+    public void testFilteredListeners() {
+        System.out.println("filteredListeners");
+        Entity e1 = new Entity("e1");
+        List<String> seen = new ArrayList<>();
+        e1.addPositListener(Transition.changed(), e -> seen.add("posit "+e.getNextPosit()));
+        e1.addStateListener(Transition.entering(2), e -> seen.add("entering 2"));
+        e1.addStateListener(Transition.leaving(2), e -> seen.add("leaving 2"));
+        Consumer<PropertyEvent> onHealth = e -> seen.add("health");
+        e1.addPropertyListener(PropertyKey.of("test.health"), onHealth);
+        e1.setPosit(0);
+        e1.setPosit(1);
+        e1.setState(2);
+        e1.setState(2);
+        e1.setState(3);
+        e1.set("test.mana", 1);
+        e1.setLong("test.health", 1);
+        e1.putAll(Collections.singletonMap("test.health", 2));
+        assertEquals(Arrays.asList("posit 1", "entering 2", "leaving 2", "health", "health"), seen);
+        
+        seen.clear();
+        e1.removePropertyListener(onHealth);
+        e1.setLong("test.health", 3);
+        e1.batch(e -> {
+            e.setState(2);
+            e.setState(3);
+        });
+        assertTrue(seen.isEmpty());
+        assertTrue(Transition.enteringBits(0b11).test(0b01, 0b111));
+        assertFalse(Transition.enteringBits(0b11).test(0b11, 0b111));
+        assertTrue(Transition.between(1, 2).test(1, 2));
+    }
+    
+    @Test
+    public void testKeyedPropertyListeners() {
+        System.out.println("keyedPropertyListeners");
+        Entity e1 = new Entity("e1");
+        AtomicInteger others = new AtomicInteger();
+        for (int i = 0; i < 50; i++) {
+            e1.addPropertyListener("test.other"+i, e -> others.incrementAndGet());
+        }
+        List<Object> hp = new ArrayList<>();
+        Consumer<PropertyEvent> onHp = e -> hp.add(e.oldValues.get("test.hp"));
+        e1.addPropertyListener("test.hp", onHp);
+        e1.set("test.hp", 10);
+        e1.setLong("test.hp", 9);
+        e1.batch(e -> {
+            e.set("test.hp", 8);
+            e.set("test.other3", 1);
+        });
+        assertEquals(Arrays.<Object>asList(null, 10, 9L), hp);
+        assertEquals(1, others.get());
+        
+        e1.removePropertyListener(PropertyKey.of("test.hp"), onHp);
+        e1.set("test.hp", 7);
+        assertEquals(3, hp.size());
+
+        // removing the only listener of a key keeps those of the other keys
+        AtomicInteger tenth = new AtomicInteger();
+        Consumer<PropertyEvent> onTenth = e -> tenth.incrementAndGet();
+        e1.addPropertyListener("test.other10", onTenth);
+        e1.set("test.other10", 1);
+        e1.removePropertyListener(onTenth);
+        e1.set("test.other10", 2);
+        e1.set("test.other49", 2);
+        assertEquals(1, tenth.get());
+        assertEquals(4, others.get());
+    }
+    
+    @Test
+    public void testFrozenReaction() {
+        System.out.println("frozenReaction");
+        Entity e2 = new Entity("e2");
+        List<Entity> followers = new ArrayList<>(Arrays.asList(e2));
+        Reaction step = new Reaction().posit(1).set("test.moved", true)
+                .andThenMove(followers, "follow").freeze();
+        e2.addLogic((e, move) -> new Reaction().state(e.getState() + 1));
+        Entity e1 = new Entity("e1");
+        e1.addLogic((e, move) -> step);
+        assertSame(step, e1.react("go"));
+        assertSame(step, e1.react("go"));
+        assertEquals(1, e1.getPosit());
+        assertEquals(Boolean.TRUE, e1.get("test.moved"));
+        assertEquals(2, e2.getState());
+        
+        assertTrue(step.isFrozen());
+        try {
+            step.state(3);
+            fail();
+        } catch (IllegalStateException ex) {
+        }
+        try {
+            new Reaction().andThenMove(followers.stream(), "follow").freeze();
+            fail();
+        } catch (IllegalStateException ex) {
+        }
+    }
+    
+    @Test
+    public void testParallelFanOut() {
+        System.out.println("parallelFanOut");
+        Terrain terrain = new Terrain();
+        List<Entity> targets = new ArrayList<>();
+        Logic step = (e, move) -> new Reaction().posit(e.getPosit() + 1).set("test.stepped", true);
+        Thread caller = Thread.currentThread();
+        AtomicInteger notified = new AtomicInteger();
+        AtomicInteger elsewhere = new AtomicInteger();
+        for (int i = 0; i < 20000; i++) {
+            Entity e = new Entity("e"+i);
+            e.addLogic(step);
+            e.addPositListener(ev -> {
+                notified.incrementAndGet();
+                if (Thread.currentThread() != caller) elsewhere.incrementAndGet();
+            });
+            terrain.add(e);
+            targets.add(e);
+        }
+        Entity broadcaster = new Entity("broadcaster");
+        broadcaster.addLogic((e, move) -> new Reaction().andThenMoveParallel(targets, move));
+        broadcaster.react("step");
+        assertEquals(20000, terrain.at(1).size());
+        assertEquals(20000, notified.get());
+        assertEquals(0, elsewhere.get());
+        assertTrue(targets.stream().allMatch(e -> Boolean.TRUE.equals(e.get("test.stepped"))));
+
+        // a target held back by the queue of the caller reacts on the caller
+        EventQueue queue = new EventQueue().open();
+        try {
+            targets.get(0).setPosit(10);
+            broadcaster.react("step");
+            assertEquals(11, targets.get(0).getPosit());
+            assertEquals(39999, notified.get());
+        } finally {
+            queue.close();
+        }
+        assertEquals(40000, notified.get());
+        assertEquals(0, elsewhere.get());
+    }
+    
+    @Test
+    public void testProperties() {
+        System.out.println("properties");
+        PropertyKey<Integer> hp = PropertyKey.of("test.hp");
+        assertSame(hp, PropertyKey.of("test.hp"));
+        Entity e1 = new Entity("e1");
+        assertFalse(e1.has("test.hp"));
+        assertNull(e1.get("test.never-used"));
+
+        e1.set(hp, 10);
+        assertEquals(10, (int) e1.get(hp));
+        assertEquals(10, (int) e1.<Integer>get("test.hp"));
+        e1.set("test.name", null);
+        assertTrue(e1.has("test.name"));
+        assertNull(e1.get("test.name"));
+
+        List<Map<String, Object>> events = new ArrayList<>();
+        e1.addPropertyListener(e -> events.add(e.oldValues));
+        e1.remove(hp);
+        assertFalse(e1.has(hp));
+        assertEquals(Collections.singletonMap("test.hp", 10), events.get(0));
+
+        Map<String, Object> props = new HashMap<>();
+        props.put("test.a", 1);
+        props.put("test.b", 2);
+        e1.setAll(props);
+        assertFalse(e1.has("test.name"));
+        Map<String, Object> expectedOld = new HashMap<>();
+        expectedOld.put("test.name", null);
+        expectedOld.put("test.a", null);
+        expectedOld.put("test.b", null);
+        assertEquals(expectedOld, events.get(1));
+
+        Map<String, Object> all = new HashMap<>();
+        e1.forEachProperty((key, val) -> all.put(key.name(), val));
+        assertEquals(props, all);
+    }
+
+    /**
+     * Test of an entity with many properties, set out of key order, and of
+     * the {@code null} property name.
+     */
+    @Test
+    public void testManyProperties() {
+        System.out.println("manyProperties");
+        final int n = 300;
+        for (int i = 0; i < n; i++) {
+            PropertyKey.of("test.many"+i);
+        }
+        Entity e1 = new Entity("e1");
+        for (int i = n - 1; i >= 0; i -= 2) {
+            e1.set("test.many"+i, i);
+        }
+        for (int i = 0; i < n; i += 2) {
+            e1.setLong("test.many"+i, i);
+        }
+        for (int i = 0; i < n; i++) {
+            assertEquals(i, e1.getLong("test.many"+i));
+        }
+        PropertyKey<Long> last = PropertyKey.of("test.many"+(n - 1));
+        assertEquals(n - 1, (int) e1.<Integer>get(last.name()));
+
+        List<PropertyEvent> events = new ArrayList<>();
+        e1.addPropertyListener(e -> events.add(e.retain()));
+        e1.setLong(last, 7);
+        e1.setLong(last, 8);
+        assertEquals(8, e1.getLong(last));
+        assertEquals(n - 1, events.get(0).oldValues.get(last.name()));
+        assertEquals(7, ((PrimitivePropertyEvent) events.get(1)).previousLong());
+        e1.remove(last);
+        assertFalse(e1.has(last));
+        assertEquals(8L, events.get(2).oldValues.get(last.name()));
+
+        int[] count = {0};
+        e1.forEachProperty((key, val) -> count[0]++);
+        assertEquals(n - 1, count[0]);
+
+        e1.set((String) null, "x");
+        assertTrue(e1.has((String) null));
+        assertEquals("x", e1.get((String) null));
+        assertSame(PropertyKey.of(null), PropertyKey.of(null));
+    }
+
+    /**
+     * Test of setLong, getLong, setDouble and getDouble methods, of class Entity.
+     */
+    @Test
+    public void testPrimitiveProperties() {
+        System.out.println("primitiveProperties");
+        PropertyKey<Long> hp = PropertyKey.of("test.hp2");
+        PropertyKey<Double> speed = PropertyKey.of("test.speed");
+        Entity e1 = new Entity("e1");
+        assertEquals(0, e1.getLong(hp));
+
+        List<PropertyEvent> events = new ArrayList<>();
+        e1.addPropertyListener(e -> events.add(e.retain()));
+        e1.setLong(hp, 100);
+        e1.setLong(hp, 90);
+        e1.setDouble(speed, 2.5);
+        assertEquals(90, e1.getLong(hp));
+        assertEquals(90L, (long) e1.get(hp));
+        assertEquals(2.5, e1.getDouble("test.speed"), 0);
+        assertEquals(2, e1.getLong(speed));
+
+        PrimitivePropertyEvent first = (PrimitivePropertyEvent) events.get(0);
+        assertFalse(first.hadPrevious());
+        assertEquals(100, first.nextLong());
+        assertEquals(Collections.singletonMap("test.hp2", null), first.oldValues);
+        PrimitivePropertyEvent second = (PrimitivePropertyEvent) events.get(1);
+        assertEquals(100, second.previousLong());
+        assertEquals(100L, second.oldValues.get("test.hp2"));
+        assertEquals(2.5, ((PrimitivePropertyEvent) events.get(2)).nextDouble(), 0);
+
+        // switching kind produces a regular event with the boxed old value
+        e1.set("test.hp2", "full");
+        assertFalse(events.get(3) instanceof PrimitivePropertyEvent);
+        assertEquals(90L, events.get(3).oldValues.get("test.hp2"));
+        e1.setLong(hp, 5);
+        assertEquals("full", events.get(4).oldValues.get("test.hp2"));
+    }
+
+    /**
+     * Test that setting a primitive property allocates nothing, even for a
+     * key interned late.
+     */
+    @Test
+    public void testPrimitiveAllocation() {
+        System.out.println("primitiveAllocation");
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean()
+                instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads
+                = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported()
+                && threads.isThreadAllocatedMemoryEnabled());
+        for (int i = 0; i < 300; i++) {
+            PropertyKey.of("test.lateKey"+i);
+        }
+        PropertyKey<Long> late = PropertyKey.of("test.lateKey299");
+        PropertyKey<Double> speed = PropertyKey.of("test.lateSpeed");
+        Entity e1 = new Entity("e1");
+        e1.setLong(late, 0);
+        e1.setDouble(speed, 0);
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < 100000; i++) {
+            e1.setLong(late, i);
+            e1.setDouble(speed, i);
+        }
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+        assertEquals(99999, e1.getLong(late));
+        // a boxed value per call would be several megabytes
+        assertTrue("allocated "+allocated, allocated < 64 * 1024);
+    }
+
+    /**
+     * Test of batch method, of class Entity.
+     */
+    @Test
+    public void testBatch() {
+        System.out.println("batch");
+        Terrain terrain = new Terrain();
+        Entity e1 = new Entity("e1", 1, 1);
+        terrain.add(e1);
+        List<Object> events = new ArrayList<>();
+        e1.addPositListener(events::add);
+        e1.addStateListener(events::add);
+        e1.addPropertyListener(e -> events.add(e.oldValues));
+        e1.set("test.batch", "a");
+
+        e1.batch(e -> {
+            e.setPosit(2);
+            e.setPosit(3);
+            e.setState(5);
+            e.set("test.batch", "b");
+            e.batch(inner -> inner.set("test.batch", "c"));
+            e.setLong("test.batchLong", 4);
+            // absent before the batch: its old value stays null
+            e.setLong("test.batchLong", 6);
+            assertEquals(1, events.size());
+        });
+        assertEquals(4, events.size());
+        PositEvent pe = (PositEvent) events.get(1);
+        assertEquals(1, pe.getPreviousPosit());
+        assertEquals(3, pe.getNextPosit());
+        StateEvent se = (StateEvent) events.get(2);
+        assertEquals(1, se.getPreviousState());
+        assertEquals(5, se.getNextState());
+        Map<String, Object> expectedOld = new HashMap<>();
+        expectedOld.put("test.batch", "a");
+        expectedOld.put("test.batchLong", null);
+        assertEquals(expectedOld, events.get(3));
+
+        assertTrue(terrain.at(3).contains(e1));
+        assertTrue(terrain.at(1).isEmpty());
+        assertTrue(terrain.inState(5).contains(e1));
+    }
+
+    /**
+     * Test of deferred delivery through an EventQueue.
+     */
+    @Test
+    public void testEventQueue() {
+        System.out.println("eventQueue");
+        Entity e1 = new Entity("e1");
+        Entity e2 = new Entity("e2");
+        List<String> events = new ArrayList<>();
+        e1.addPositListener(e -> {
+            events.add("e1 "+e.getPreviousPosit()+"->"+e.getNextPosit());
+            e2.setState(e.getNextPosit());
+        });
+        e2.addStateListener(e -> events.add("e2 "+e.getPreviousState()+"->"+e.getNextState()));
+
+        EventQueue queue = new EventQueue().open();
+        try {
+            e1.setPosit(1);
+            e1.setPosit(2);
+            e1.batch(e -> e.setPosit(3));
+            assertEquals(3, e1.getPosit());
+            assertTrue(events.isEmpty());
+            assertEquals(1, queue.pendingCount());
+            queue.flush();
+            assertEquals(Arrays.asList("e1 0->3", "e2 0->3"), events);
+            assertEquals(0, queue.pendingCount());
+            e1.setPosit(4);
+        } finally {
+            queue.close();
+        }
+        assertNull(EventQueue.current());
+        assertEquals("e1 3->4", events.get(2));
+        e1.setPosit(5);
+        assertEquals(6, events.size());
+    }
+
+    /**
+     * Test of the lazily allocated function record and children list.
+     */
+    @Test
+    public void testLazyFields() {
+        System.out.println("lazyFields");
+        Entity e = new Entity("e");
+        assertNull(e.getChildren());
+        try {
+            e.call("f");
+            fail();
+        } catch (NoSuchElementException ex) {
+        }
+        e.getFunctionRecord().setFunc("f", (en, args) -> en.getName());
+        assertEquals("e", e.call("f"));
+        assertNull(new Entity("other").getFunctionRecord().lookUp("f"));
+
+        List<Entity> children = new ArrayList<>();
+        e.setChildren(children);
+        assertSame(children, e.getChildren());
+        e.setChildren(null);
+        assertNull(e.getChildren());
+    }
+
+    /**
+     * Test that the inputs of an entity are reacted to one at a time and in
+     * order, while many entities react in parallel.
+     */
+    @Test
+    public void testAsyncReact() throws Exception {
+        System.out.println("asyncReact");
+        int entities = 1000;
+        int inputs = 50;
+        List<Entity> all = new ArrayList<>();
+        AtomicInteger overlaps = new AtomicInteger();
+        for (int i = 0; i < entities; i++) {
+            Entity e = new Entity("e"+i);
+            AtomicInteger running = new AtomicInteger();
+            e.addLogic((self, input) -> {
+                if (running.incrementAndGet() != 1) {
+                    overlaps.incrementAndGet();
+                }
+                // the posit counts the inputs; a lost update breaks the order
+                Reaction reaction = (Integer) input == self.getPosit()
+                        ? new Reaction().posit(self.getPosit() + 1) : null;
+                running.decrementAndGet();
+                return reaction;
+            });
+            all.add(e);
+        }
+        List<Future<Reaction>> futures = new ArrayList<>();
+        for (int n = 0; n < inputs; n++) {
+            for (Entity e : all) {
+                futures.add(e.asyncReact(n));
+            }
+        }
+        Future<Long> last = all.get(0).asyncExecute(Entity::getPosit);
+        for (Future<Reaction> f : futures) {
+            f.get();
+        }
+        assertEquals(inputs, (long) last.get());
+        assertEquals(0, overlaps.get());
+        for (Entity e : all) {
+            assertEquals(inputs, e.getPosit());
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package gr.entij;
+
+import gr.entij.EventBus.Kind;
+import gr.entij.event.EntityEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class EventBusTest {
+
+    public EventBusTest() {
+    }
+
+    @After
+    public void tearDown() {
+        Entity.setEventBus(null);
+    }
+
+    /**
+     * Test of the changes published by entities.
+     */
+    @Test
+    public void testPublish() {
+        System.out.println("publish");
+        EventBus bus = new EventBus(16);
+        EventBus.Subscription sub = bus.subscribe();
+        Entity.setEventBus(bus);
+        Terrain terrain = new Terrain();
+        Entity e1 = new Entity("e1");
+        terrain.add(e1);
+        e1.setPosit(5);
+        e1.setState(6);
+        e1.set("test.bus", "a");
+        e1.setLong("test.busLong", 3);
+        e1.setLong("test.busLong", 4);
+        e1.destroy();
+
+        List<String> seen = new ArrayList<>();
+        int count = sub.poll((slot, seq, end) -> {
+            assertSame(e1, slot.source());
+            switch (slot.kind()) {
+                case POSIT: case STATE:
+                    seen.add(slot.kind()+" "+slot.previous()+"->"+slot.next());
+                    break;
+                case PROPERTY:
+                    seen.add(slot.key().name()+" "+slot.oldValue());
+                    break;
+                default:
+                    seen.add(slot.type().toString());
+            }
+        });
+        assertEquals(8, count);
+        assertEquals("ADDED", seen.get(0));
+        assertEquals("POSIT 0->5", seen.get(1));
+        assertEquals("STATE 0->6", seen.get(2));
+        assertEquals("test.bus null", seen.get(3));
+        assertEquals("test.busLong null", seen.get(4));
+        assertEquals("test.busLong 3", seen.get(5));
+        assertEquals(EntityEvent.Type.DESTROYED.toString(), seen.get(6));
+        assertEquals(0, sub.poll((slot, seq, end) -> fail()));
+    }
+
+    /**
+     * Test of a publisher that gets ahead of a consumer on another thread.
+     */
+    @Test
+    public void testWrapAround() throws InterruptedException {
+        System.out.println("wrapAround");
+        // long enough a wait for a consumer that keeps polling
+        EventBus bus = new EventBus(256, 10, TimeUnit.SECONDS);
+        EventBus.Subscription sub = bus.subscribe();
+        Entity.setEventBus(bus);
+        final int changes = 10000;
+        AtomicLong sum = new AtomicLong();
+        AtomicLong last = new AtomicLong(-1);
+        AtomicBoolean ordered = new AtomicBoolean(true);
+        Thread consumer = new Thread(() -> {
+            long handled = 0;
+            while (handled < changes) {
+                handled += sub.poll((slot, seq, end) -> {
+                    if (slot.kind() == Kind.POSIT) {
+                        sum.addAndGet(slot.next());
+                        if (slot.next() != last.get() + 1) {
+                            ordered.set(false);
+                        }
+                        last.set(slot.next());
+                    }
+                });
+            }
+        });
+        consumer.start();
+        Entity e1 = new Entity("e1");
+        for (int i = 0; i < changes; i++) {
+            e1.setPosit(i);
+        }
+        consumer.join(10000);
+        assertFalse(consumer.isAlive());
+        assertEquals((long) changes * (changes - 1) / 2, sum.get());
+        assertTrue(ordered.get());
+        assertEquals(0, sub.lag());
+    }
+
+    /**
+     * Test that a subscription that stops polling is marked as lagged instead
+     * of blocking the publishers.
+     */
+    @Test
+    public void testLagged() {
+        System.out.println("lagged");
+        EventBus bus = new EventBus(8, 0, TimeUnit.MILLISECONDS);
+        EventBus.Subscription active = bus.subscribe();
+        EventBus.Subscription stalled = bus.subscribe();
+        Entity.setEventBus(bus);
+        Entity e1 = new Entity("e1");
+        List<Long> seen = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            e1.setPosit(i);
+            active.poll((slot, seq, end) -> seen.add(slot.next()));
+        }
+        assertEquals(20, seen.size());
+        assertEquals(20L, (long) seen.get(19));
+        assertFalse(active.isLagged());
+        assertTrue(stalled.isLagged());
+
+        // skips to the latest changes and counts the rest
+        assertEquals(0, stalled.poll((slot, seq, end) -> fail()));
+        assertFalse(stalled.isLagged());
+        assertEquals(20, stalled.missed());
+        e1.setPosit(21);
+        List<Long> late = new ArrayList<>();
+        assertEquals(1, stalled.poll((slot, seq, end) -> late.add(slot.next())));
+        assertEquals(21L, (long) late.get(0));
+        assertEquals(0, active.missed());
+    }
+}
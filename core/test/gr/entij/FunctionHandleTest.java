@@ -0,0 +1,94 @@
+package gr.entij;
+
+import gr.entij.function_records.HashFunctionRecord;
+import java.util.NoSuchElementException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FunctionHandleTest {
+
+    public FunctionHandleTest() {
+    }
+
+    /**
+     * Test of interning and calling through handles.
+     */
+    @Test
+    public void testCall() {
+        System.out.println("call");
+        FunctionHandle twice = FunctionHandle.of("twice");
+        assertSame(twice, FunctionHandle.of("twice"));
+        assertNotSame(twice, FunctionHandle.of("thrice"));
+        assertEquals("twice", twice.name());
+
+        HashFunctionRecord shared = new HashFunctionRecord();
+        shared.setFunc("twice", (e, args) -> 2 * (Integer) args[0]);
+        Entity e = new Entity("e");
+        e.setFunctionRecord(shared);
+        int r = e.call(twice, 21);
+        assertEquals(42, r);
+        r = e.call(twice, 5);
+        assertEquals(10, r);
+
+        try {
+            e.call(FunctionHandle.of("missing"));
+            fail();
+        } catch (NoSuchElementException ex) {
+        }
+    }
+
+    /**
+     * Test that changing a function of a parent record invalidates the
+     * functions resolved by its children.
+     */
+    @Test
+    public void testInvalidation() {
+        System.out.println("invalidation");
+        FunctionHandle name = FunctionHandle.of("kind");
+        HashFunctionRecord shared = new HashFunctionRecord();
+        shared.setFunc("kind", (e, args) -> "old");
+        Entity e = new Entity("e");
+        e.setFunctionRecord(shared);
+        assertEquals("old", e.call(name));
+
+        shared.setFunc("kind", (en, args) -> "new");
+        assertEquals("new", e.call(name));
+        assertEquals("new", e.call("kind"));
+    }
+
+    /**
+     * Test of the arity-specialized calls and of their fallback to the
+     * varargs form.
+     */
+    @Test
+    public void testArityCalls() {
+        System.out.println("arityCalls");
+        HashFunctionRecord shared = new HashFunctionRecord();
+        shared.setFunc("answer", EntityFunction.of0(e -> 42));
+        shared.setFunc("pair", EntityFunction.of2((e, a, b) -> a+"-"+b));
+        shared.setFunc("inc", EntityFunction.ofLong((e, x) -> x + 1));
+        shared.setFunc("half", EntityFunction.ofDouble((e, x) -> x / 2));
+        shared.setFunc("plain", (e, args) -> args.length);
+        Entity e = new Entity("e");
+        e.setFunctionRecord(shared);
+
+        int answer = e.call(FunctionHandle.of("answer"));
+        assertEquals(42, answer);
+        assertEquals("a-b", e.call(FunctionHandle.of("pair"), "a", "b"));
+        assertEquals("a-null", e.call("pair", "a"));
+        assertEquals(8L, e.callLong(FunctionHandle.of("inc"), 7));
+        assertEquals(8L, (long) e.call("inc", 7));
+        assertEquals(1.5, e.callDouble(FunctionHandle.of("half"), 3), 0.0);
+        assertEquals(1L, e.callLong(FunctionHandle.of("plain"), 7));
+        int count = e.call(FunctionHandle.of("plain"), "x", "y");
+        assertEquals(2, count);
+
+        int[] calls = {0};
+        shared.setFunc("count", EntityFunction.of1((en, a) -> calls[0] += (Integer) a));
+        Reaction reaction = new Reaction().andThenCall(FunctionHandle.of("count"), 3).freeze();
+        e.addLogic((en, in) -> reaction);
+        e.react("go");
+        e.react("go");
+        assertEquals(6, calls[0]);
+    }
+}
@@ -0,0 +1,89 @@
+package gr.entij.logics;
+
+import gr.entij.Entity;
+import gr.entij.Reaction;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MapLogicTest {
+
+    interface Move {}
+    interface Push extends Move {}
+    static class Step implements Move {}
+    static class LongStep extends Step {}
+    static class Shove extends LongStep implements Push {}
+
+    public MapLogicTest() {
+    }
+
+    /**
+     * Test of the lookup by value, by most specific class and by match.
+     */
+    @Test
+    public void testReaction() {
+        System.out.println("reaction");
+        MapLogic logic = new MapLogic()
+                .map("jump", (e, m) -> new Reaction().posit(1))
+                .mapClass(Move.class, (e, m) -> new Reaction().posit(2))
+                .mapClass(Step.class, (e, m) -> new Reaction().posit(3))
+                .mapClass(Push.class, (e, m) -> new Reaction().posit(4))
+                .match((e, m) -> m instanceof Number, (e, m) -> new Reaction().posit(5));
+        Entity e1 = new Entity("e1");
+        e1.addLogic(logic);
+
+        e1.react("jump");
+        assertEquals(1, e1.getPosit());
+        e1.react(new Move() {});
+        assertEquals(2, e1.getPosit());
+        e1.react(new LongStep());
+        assertEquals(3, e1.getPosit());
+        e1.react(new Shove());
+        assertEquals(4, e1.getPosit());
+        e1.react(7);
+        assertEquals(5, e1.getPosit());
+        assertNull(logic.reaction(e1, "walk"));
+
+        // a more specific mapping added later replaces the cached one
+        logic.mapClass(LongStep.class, (e, m) -> new Reaction().posit(6));
+        e1.react(new LongStep());
+        assertEquals(6, e1.getPosit());
+    }
+
+    /**
+     * Test of the mapping of numeric codes.
+     */
+    @Test
+    public void testMapCode() {
+        System.out.println("mapCode");
+        MapLogic logic = new MapLogic()
+                .mapCode(7, e -> e.getState() == 0, (e, code) -> new Reaction().posit(code))
+                .mapCode(7, (e, code) -> new Reaction().posit(-code))
+                .map(8L, (e, m) -> new Reaction().posit(80));
+        Entity e1 = new Entity("e1");
+        e1.addLogic(logic);
+        e1.addLogic(new MapLogic().mapCode(9, (e, code) -> new Reaction().state(9)));
+
+        assertNotNull(e1.reactCode(7));
+        assertEquals(7, e1.getPosit());
+        e1.setState(1);
+        e1.reactCode(7);
+        assertEquals(-7, e1.getPosit());
+        e1.setPosit(0);
+        e1.react(7);
+        assertEquals(-7, e1.getPosit());
+        e1.reactCode(8);
+        assertEquals(80, e1.getPosit());
+        e1.reactCode(9);
+        assertEquals(9, e1.getState());
+        assertNull(e1.reactCode(10));
+
+        // primitive arguments of react are boxed as their own type
+        Entity e2 = new Entity("e2");
+        e2.addLogic(new MapLogic().map(5, (e, m) -> new Reaction().posit(5))
+                .map('a', (e, m) -> new Reaction().state(1)));
+        assertNotNull(e2.react(5));
+        assertEquals(5, e2.getPosit());
+        assertNotNull(e2.react('a'));
+        assertEquals(1, e2.getState());
+    }
+}
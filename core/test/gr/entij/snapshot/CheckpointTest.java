@@ -0,0 +1,100 @@
+package gr.entij.snapshot;
+
+import gr.entij.Entity;
+import gr.entij.Terrain;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CheckpointTest {
+
+    public CheckpointTest() {
+    }
+
+    /**
+     * Test of writing a checkpoint and restoring its entities and indexes.
+     */
+    @Test
+    public void testRestore() throws IOException {
+        System.out.println("restore");
+        Terrain terrain = new Terrain("world");
+        terrain.setPosit(3);
+        terrain.set("checkpoint.title", "checkpoint test");
+        for (int i = 0; i < 20000; i++) {
+            Entity e = new Entity("e"+i, i % 100, i % 7 == 0 ? 1 : 0);
+            e.setLong("checkpoint.id", i);
+            terrain.add(e);
+        }
+
+        Path file = Files.createTempFile("entij", ".checkpoint");
+        try {
+            Checkpoint.write(terrain, file);
+            Terrain copy = Checkpoint.restore(file);
+
+            assertEquals("world", copy.getName());
+            assertEquals(3, copy.getPosit());
+            assertEquals("checkpoint test", copy.get("checkpoint.title"));
+            assertEquals(20000, copy.getEntityCount());
+            assertEquals(200, copy.at(42).size());
+            assertEquals(2858, copy.inState(1).size());
+            assertEquals(0, copy.at(100).size());
+            Entity e123 = copy.named("e123").any().get();
+            assertEquals(23, e123.getPosit());
+            assertEquals(123, e123.getLong("checkpoint.id"));
+            assertTrue(copy.at(23).contains(e123));
+
+            // the restored indexes are live
+            e123.setPosit(1000);
+            assertEquals(199, copy.at(23).size());
+            assertTrue(copy.at(1000).contains(e123));
+            e123.destroy();
+            assertEquals(19999, copy.getEntityCount());
+            assertTrue(copy.at(1000).isEmpty());
+
+            Files.write(file, new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+            try {
+                Checkpoint.restore(file);
+                fail();
+            } catch (IOException ex) {
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Test of a checkpoint whose index refers to a missing entity.
+     */
+    @Test
+    public void testInvalidMember() throws IOException {
+        System.out.println("invalidMember");
+        Terrain terrain = new Terrain("world");
+        terrain.add(new Entity("a", 0, 0));
+        terrain.add(new Entity("b", 1, 0));
+
+        Path file = Files.createTempFile("entij", ".checkpoint");
+        try {
+            Checkpoint.write(terrain, file);
+            // header, 2 posits, 2 states, 2 posit keys, 1 state key,
+            // 2 posit sizes and 1 state size precede the first posit member
+            long member = Checkpoint.HEADER_SIZE + 8 * 7 + 4 * 3;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.allocate(4).putInt(0, 2), member);
+            }
+            try {
+                Checkpoint.restore(file);
+                fail();
+            } catch (StreamCorruptedException ex) {
+                assertTrue(ex.getMessage().contains("member"));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package gr.entij.snapshot;
+
+import gr.entij.Entity;
+import gr.entij.Reaction;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+import static java.nio.file.StandardOpenOption.*;
+import static org.junit.Assert.*;
+
+public class ReactionJournalTest {
+
+    public ReactionJournalTest() {
+    }
+
+    @After
+    public void tearDown() {
+        Entity.setReactionRecorder(null);
+    }
+
+    private static Entity walker(String name) {
+        Entity e = new Entity(name);
+        e.addLogic((self, input) -> "step".equals(input)
+                ? new Reaction().posit(self.getPosit() + 1).set("journal.last", input)
+                : input instanceof Long ? new Reaction().state((Long) input) : null);
+        return e;
+    }
+
+    /**
+     * Test of journaling reactions and replaying them onto fresh entities,
+     * in batches smaller than the reactions recorded.
+     */
+    @Test
+    public void testReplay() throws IOException {
+        System.out.println("replay");
+        Path file = Files.createTempFile("journal", ".bin");
+        try {
+            Entity a = walker("a");
+            Entity b = walker("b");
+            ReactionJournal journal = new ReactionJournal(FileChannel.open(file, WRITE, APPEND))
+                    .batchRecords(4).sync(ReactionJournal.Sync.DATA);
+            Entity.setReactionRecorder(journal);
+            for (int i = 0; i < 10; i++) {
+                a.react("step");
+            }
+            b.react(42L);
+            b.react("ignored");
+            b.react(Integer.valueOf(7));
+            assertNull(b.react("nothing"));
+            Entity.setReactionRecorder(null);
+            journal.close();
+            assertNull(journal.failure());
+            Entity.setReactionRecorder(journal);
+            a.react("step");
+            Entity.setReactionRecorder(null);
+            assertEquals(11, a.getPosit());
+            assertNotNull(journal.failure());
+            journal.close();
+
+            Map<String, Entity> fresh = new HashMap<>();
+            fresh.put("a", new Entity("a"));
+            fresh.put("b", new Entity("b"));
+            int applied;
+            try (FileChannel in = FileChannel.open(file, READ)) {
+                applied = ReactionJournal.replay(in, (id, name) -> fresh.get(name));
+            }
+            assertEquals(11, applied);
+            assertEquals(10, fresh.get("a").getPosit());
+            assertEquals("step", fresh.get("a").get("journal.last"));
+            assertEquals(42, fresh.get("b").getState());
+            assertEquals(0, fresh.get("b").getPosit());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Test that a replay stops at a torn last record.
+     */
+    @Test
+    public void testTornTail() throws IOException {
+        System.out.println("tornTail");
+        Path file = Files.createTempFile("journal", ".bin");
+        try {
+            Entity a = walker("a");
+            try (ReactionJournal journal = new ReactionJournal(FileChannel.open(file, WRITE, APPEND))) {
+                Entity.setReactionRecorder(journal);
+                for (int i = 0; i < 3; i++) {
+                    a.react("step");
+                }
+                Entity.setReactionRecorder(null);
+            }
+            try (FileChannel out = FileChannel.open(file, WRITE)) {
+                out.truncate(out.size() - 3);
+            }
+
+            Entity copy = new Entity("a");
+            try (FileChannel in = FileChannel.open(file, READ)) {
+                assertEquals(2, ReactionJournal.replay(in, (id, name) -> copy));
+            }
+            assertEquals(2, copy.getPosit());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Test that inputs and property values without codec do not make the
+     * reactions fail.
+     */
+    @Test
+    public void testNoCodec() throws IOException {
+        System.out.println("noCodec");
+        Path file = Files.createTempFile("journal", ".bin");
+        try {
+            Entity a = new Entity("a");
+            a.addLogic((self, input) -> input instanceof Character
+                    ? new Reaction().set("journal.value", new Object())
+                    : new Reaction().posit(self.getPosit() + 1));
+            ReactionJournal journal = new ReactionJournal(FileChannel.open(file, WRITE, APPEND));
+            Entity.setReactionRecorder(journal);
+            a.react(new Object());
+            assertEquals(1, a.getPosit());
+            assertNull(journal.failure());
+            a.react('x');
+            assertTrue(a.has("journal.value"));
+            assertTrue(journal.failure() instanceof NotSerializableException);
+            a.react(new Object());
+            assertEquals(2, a.getPosit());
+            Entity.setReactionRecorder(null);
+            try {
+                journal.close();
+                fail();
+            } catch (NotSerializableException ex) {
+            }
+
+            Entity copy = new Entity("a");
+            try (FileChannel in = FileChannel.open(file, READ)) {
+                assertEquals(1, ReactionJournal.replay(in, (id, name) -> copy));
+            }
+            assertEquals(1, copy.getPosit());
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package gr.entij.snapshot;
+
+import gr.entij.Entity;
+import gr.entij.PropertyKey;
+import gr.entij.Terrain;
+import java.awt.Point;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SnapshotTest {
+
+    public SnapshotTest() {
+    }
+
+    private static final ValueCodec<Point> POINT_CODEC = new ValueCodec<Point>() {
+        @Override
+        public Class<Point> type() {
+            return Point.class;
+        }
+
+        @Override
+        public void encode(Point value, SnapshotWriter out) throws IOException {
+            out.writeInt(value.x);
+            out.writeInt(value.y);
+        }
+
+        @Override
+        public Point decode(SnapshotReader in) throws IOException {
+            return new Point(in.readInt(), in.readInt());
+        }
+    };
+
+    private static ValueCodecs codecs() {
+        return new ValueCodecs().register(ValueCodecs.FIRST_CUSTOM_ID, POINT_CODEC);
+    }
+
+    /**
+     * Test of writing and reading back a terrain larger than the buffers.
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        System.out.println("roundTrip");
+        PropertyKey<Long> hp = PropertyKey.of("snapshot.hp");
+        Terrain terrain = new Terrain("world");
+        terrain.setState(7);
+        terrain.set("snapshot.title", "snapshot test");
+        List<Entity> all = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            Entity e = new Entity("e"+i, i, -i);
+            e.setLong(hp, 100 + i);
+            if (i % 2 == 0) {
+                e.setDouble("snapshot.speed", i / 4.0);
+                e.set("snapshot.pos", new Point(i, 2 * i));
+                e.set("snapshot.note", null);
+            }
+            terrain.add(e);
+            all.add(e);
+        }
+        all.get(0).setChildren(Arrays.asList(all.get(1), all.get(2)));
+        terrain.setChildren(new ArrayList<>(Arrays.asList(all.get(0), terrain)));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (SnapshotWriter out = new SnapshotWriter(Channels.newChannel(bytes), codecs())) {
+            out.writeTerrain(terrain);
+        }
+        Terrain copy;
+        try (SnapshotReader in = new SnapshotReader(
+                Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), codecs())) {
+            copy = in.readTerrain();
+        }
+
+        assertEquals("world", copy.getName());
+        assertEquals(7, copy.getState());
+        assertEquals("snapshot test", copy.get("snapshot.title"));
+        assertEquals(5000, copy.getEntityCount());
+        Map<String, Entity> byName = new HashMap<>();
+        for (Entity e : copy.getAll()) {
+            byName.put(e.getName(), e);
+        }
+        Entity e42 = byName.get("e42");
+        assertEquals(42, e42.getPosit());
+        assertEquals(-42, e42.getState());
+        assertEquals(142, e42.getLong(hp));
+        assertEquals(10.5, e42.getDouble("snapshot.speed"), 0.0);
+        assertEquals(new Point(42, 84), e42.get("snapshot.pos"));
+        assertTrue(e42.has("snapshot.note"));
+        assertNull(e42.get("snapshot.note"));
+        assertFalse(byName.get("e43").has("snapshot.pos"));
+        assertNull(byName.get("e43").getChildren());
+
+        assertEquals(Arrays.asList(byName.get("e1"), byName.get("e2")),
+                byName.get("e0").getChildren());
+        assertEquals(Arrays.asList(byName.get("e0"), copy), copy.getChildren());
+        assertEquals(1, copy.at(1).size());
+    }
+
+    /**
+     * Test of the errors for values without codec and foreign children.
+     */
+    @Test
+    public void testNotSerializable() throws IOException {
+        System.out.println("notSerializable");
+        Terrain terrain = new Terrain("world");
+        Entity e = new Entity("e");
+        e.set("snapshot.pos", new Point(1, 2));
+        terrain.add(e);
+        try {
+            new SnapshotWriter(Channels.newChannel(new ByteArrayOutputStream()))
+                    .writeTerrain(terrain);
+            fail();
+        } catch (NotSerializableException ex) {
+        }
+
+        e.remove("snapshot.pos");
+        e.setChildren(Arrays.asList(new Entity("outsider")));
+        try {
+            new SnapshotWriter(Channels.newChannel(new ByteArrayOutputStream()))
+                    .writeTerrain(terrain);
+            fail();
+        } catch (NotSerializableException ex) {
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package gr.entij.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LongObjectMapTest {
+
+    public LongObjectMapTest() {
+    }
+
+    /**
+     * Test of put and get methods, of class LongObjectMap.
+     */
+    @Test
+    public void testPutGet() {
+        System.out.println("putGet");
+        LongObjectMap<String> map = new LongObjectMap<>();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(0));
+        assertNull(map.put(0, "zero"));
+        assertNull(map.put(Long.MIN_VALUE, "min"));
+        assertEquals("zero", map.put(0, "0"));
+        assertEquals("0", map.get(0));
+        assertEquals("min", map.get(Long.MIN_VALUE));
+        assertEquals(2, map.size());
+        assertEquals("x", map.computeIfAbsent(42, () -> "x"));
+        assertEquals("x", map.computeIfAbsent(42, () -> "y"));
+        try {
+            map.put(1, null);
+            fail("A NullPointerException should had been thrown");
+        } catch (NullPointerException e) {};
+
+        Map<Long, String> expected = new HashMap<>();
+        Random random = new Random(17);
+        for (int i = 0; i < 10000; i++) {
+            long key = random.nextInt(5000) * 1024L;
+            expected.put(key, "v"+i);
+            map.put(key, "v"+i);
+        }
+        expected.forEach((key, value) -> assertEquals(value, map.get(key)));
+        assertNull(map.get(3));
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertNull(map.get(42));
+    }
+}
@@ -82,14 +82,16 @@ public class GEntity implements Component {
         this.target = target;
         target.addPositListener((PositEvent e) -> {
             if (asyncEventProccesing) {
-                THREAD_POOL.execute(() -> proccessMoveEvent(e));
+                PositEvent retained = e.retain();
+                THREAD_POOL.execute(() -> proccessMoveEvent(retained));
             } else {
                 proccessMoveEvent(e);
             }
         });
         target.addStateListener((StateEvent e) -> {
             if (asyncEventProccesing) {
-                THREAD_POOL.execute(() -> processStateEvent(e));
+                StateEvent retained = e.retain();
+                THREAD_POOL.execute(() -> processStateEvent(retained));
             } else {
                 processStateEvent(e);
             }
@@ -283,7 +285,7 @@ public class GEntity implements Component {
     }
     
     protected void proccessMoveEvent(PositEvent e) {
-        Point finalPosit = getPositioning().logicalToRealPosit(e.nextPosit, positionType, parent.getWidth(), parent.getHeight());
+        Point finalPosit = getPositioning().logicalToRealPosit(e.getNextPosit(), positionType, parent.getWidth(), parent.getHeight());
         if (moveSmoth) {
             smoothMove(finalPosit.x, finalPosit.y, 2, 4);
         } else {
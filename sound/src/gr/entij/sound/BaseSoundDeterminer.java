@@ -22,13 +22,13 @@ implements StateSoundDeterminer, PositSoundDeterminer {
     
     @Override
     public String getSoundForPosit(PositEvent e) {
-        return positSounds.get(e.nextPosit);
+        return positSounds.get(e.getNextPosit());
     }
 
     @Override
     public String getSoundForState(StateEvent e) {
-        return e.nextState != e.previousState
-                ? stateSounds.get(e.nextState)
+        return e.getNextState() != e.getPreviousState()
+                ? stateSounds.get(e.getNextState())
                 : null;
     }
 
@@ -32,8 +32,8 @@ public class SoundComp implements Component {
     
     private final Predicate<EntityEvent> destroyListener = (EntityEvent e) -> {
         if (e.type == EntityEvent.Type.DESTROYED) {
-            e.source.removePositListener(moveListener);
-            e.source.removeStateListener(stateListener);
+            e.getSource().removePositListener(moveListener);
+            e.getSource().removeStateListener(stateListener);
             return false;
         }
         return true;